@@ -0,0 +1,28 @@
+package com.hxd.push.benchmark;
+
+import java.util.Random;
+
+// The same tokens as the benchmarks of the current library, as hex strings: the first baseline takes no others
+final class BenchmarkTokens {
+	
+	private static final int TOKEN_LENGTH = 32;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	private BenchmarkTokens() {}
+	
+	static String[] randomTokenStrings(final int count, final long seed) {
+		final Random random = new Random(seed);
+		final byte[] token = new byte[TOKEN_LENGTH];
+		final String[] tokenStrings = new String[count];
+		for (int i = 0; i < count; i++) {
+			random.nextBytes(token);
+			final char[] hex = new char[TOKEN_LENGTH * 2];
+			for (int j = 0; j < TOKEN_LENGTH; j++) {
+				hex[j * 2] = HEX_DIGITS[(token[j] >> 4) & 0xf];
+				hex[j * 2 + 1] = HEX_DIGITS[token[j] & 0xf];
+			}
+			tokenStrings[i] = new String(hex);
+		}
+		return tokenStrings;
+	}
+}
@@ -0,0 +1,35 @@
+package com.hxd.push.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.hxd.push.DeviceTokenDataItem;
+
+// The first baseline decodes a token where the notification takes it, into its token item, and never encodes one
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DeviceTokenCodecBenchmark {
+	
+	private static final int TOKENS = 1024;
+	
+	private String[] tokenStrings;
+	private int next = 0;
+	
+	@Setup
+	public void setUp() {
+		this.tokenStrings = BenchmarkTokens.randomTokenStrings(TOKENS, 1);
+	}
+	
+	@Benchmark
+	public byte[] decode() {
+		return new DeviceTokenDataItem(this.tokenStrings[this.next++ & (TOKENS - 1)]).getItemData();
+	}
+}
@@ -0,0 +1,55 @@
+package com.hxd.push.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.hxd.push.APNConnectionManager;
+import com.hxd.push.NotificationQueue;
+import com.hxd.push.SendablePushNotification;
+
+// One producer and ten consumers sharing a queue, the shape APNConnectionManager runs with. The first baseline
+// only has the linked queue.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class NotificationQueueBenchmark {
+	
+	private static final long POLL_TIMEOUT_MICROSECONDS = 1000;
+	
+	@Param({"linked"})
+	public String queueType;
+	
+	private NotificationQueue queue;
+	private SendablePushNotification notification;
+	
+	@Setup(Level.Iteration)
+	public void setUp() {
+		this.queue = new NotificationQueue(APNConnectionManager.MAX_PRODUCER_QUEUE_SIZE);
+		this.notification = new SendablePushNotification(BenchmarkTokens.randomTokenStrings(1, 1)[0], "{}", null);
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void put() throws InterruptedException {
+		this.queue.put(this.notification);
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(10)
+	public SendablePushNotification poll() throws InterruptedException {
+		return this.queue.pollNotification(POLL_TIMEOUT_MICROSECONDS, TimeUnit.MICROSECONDS);
+	}
+}
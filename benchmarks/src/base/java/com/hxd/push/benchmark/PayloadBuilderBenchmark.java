@@ -0,0 +1,39 @@
+package com.hxd.push.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.hxd.push.APNPayloadBuilder;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PayloadBuilderBenchmark {
+	
+	private Map<String, String> customFields;
+	
+	@Setup
+	public void setUp() {
+		this.customFields = new HashMap<String, String>();
+		this.customFields.put("campaign", "benchmark");
+		this.customFields.put("url", "https://example.com/landing");
+	}
+	
+	@Benchmark
+	public String build() {
+		return new APNPayloadBuilder().alertBody("Benchmark alert body for the push hot path")
+				.badge(1)
+				.sound("Default")
+				.customFields(this.customFields)
+				.build();
+	}
+}
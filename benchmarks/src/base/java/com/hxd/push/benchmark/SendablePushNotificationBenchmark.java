@@ -0,0 +1,79 @@
+package com.hxd.push.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.hxd.push.APNPayloadBuilder;
+import com.hxd.push.PushNotificationDataItem;
+import com.hxd.push.SendablePushNotification;
+
+// Construction and encoding of a single notification. The first baseline has no shared broadcast payload, and its
+// encoder is private to PushRunnable: ApnsPushNotificationEncoder below is a copy of it.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SendablePushNotificationBenchmark {
+	
+	private String payload;
+	private String token;
+	private SendablePushNotification notification;
+	private EmbeddedChannel channel;
+	
+	@Setup
+	public void setUp() {
+		this.payload = new APNPayloadBuilder().alertBody("Benchmark alert body for the push hot path").badge(1).sound("Default").build();
+		this.token = BenchmarkTokens.randomTokenStrings(1, 1)[0];
+		this.notification = new SendablePushNotification(this.token, this.payload, null);
+		this.channel = new EmbeddedChannel(new ApnsPushNotificationEncoder());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		this.channel.finishAndReleaseAll();
+	}
+	
+	@Benchmark
+	public SendablePushNotification construct() {
+		return new SendablePushNotification(this.token, this.payload, null);
+	}
+	
+	@Benchmark
+	public int encode() {
+		this.channel.writeOutbound(this.notification);
+		final ByteBuf frame = this.channel.readOutbound();
+		final int frameLength = frame.readableBytes();
+		frame.release();
+		return frameLength;
+	}
+	
+	private static class ApnsPushNotificationEncoder extends MessageToByteEncoder<SendablePushNotification> {
+
+		private static final byte MODERN_FOMAT_NOTIFICATION_COMMAND = 2;
+
+		@Override
+		protected void encode(final ChannelHandlerContext context, final SendablePushNotification sendablePushNotification, final ByteBuf out) throws Exception {
+		
+			out.writeByte(MODERN_FOMAT_NOTIFICATION_COMMAND);
+			out.writeInt(sendablePushNotification.getFrameLength());
+			
+			for (PushNotificationDataItem dataItem : sendablePushNotification.getItems()) {
+				out.writeByte(dataItem.getItemID());
+				out.writeShort(dataItem.getItemLength());
+				out.writeBytes(dataItem.getItemData());
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.hxd.push.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.hxd.push.APNConnectionManager;
+import com.hxd.push.SendablePushNotification;
+import com.hxd.push.SentNotificationCache;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SentNotificationCacheBenchmark {
+	
+	// Notifications following the rejected one
+	@Param({"10", "1000"})
+	public int replayed;
+	
+	private SentNotificationCache warmCache;
+	private SentNotificationCache replayCache;
+	private SendablePushNotification[] notifications;
+	private int replayFrom;
+	
+	@Setup(Level.Trial)
+	public void setUpTrial() {
+		this.notifications = new SendablePushNotification[APNConnectionManager.SENT_BUFFER_CAPACITY_PER_TASK];
+		final String[] tokens = BenchmarkTokens.randomTokenStrings(this.notifications.length, 1);
+		for (int i = 0; i < this.notifications.length; i++) {
+			this.notifications[i] = new SendablePushNotification(tokens[i], "{}", null);
+		}
+		this.warmCache = this.filledCache();
+	}
+	
+	@Setup(Level.Invocation)
+	public void setUpInvocation() {
+		this.replayCache = this.filledCache();
+		this.replayFrom = this.notifications[this.notifications.length - this.replayed].getIdentifier();
+	}
+	
+	private SentNotificationCache filledCache() {
+		final SentNotificationCache cache = new SentNotificationCache(APNConnectionManager.SENT_BUFFER_CAPACITY_PER_TASK);
+		for (SendablePushNotification notification : this.notifications) {
+			cache.addNotification(notification);
+		}
+		return cache;
+	}
+	
+	// Adding to a full cache evicts the eldest notification, the notification is added again under its identifier
+	@Benchmark
+	public int addToFullCache() {
+		final SendablePushNotification notification = this.notifications[0];
+		this.warmCache.addNotification(notification);
+		return notification.getIdentifier();
+	}
+	
+	@Benchmark
+	public List<SendablePushNotification> replayAfterRejection() {
+		return this.replayCache.getAllNotificationsAfterIdentifierAndPurgeCache(this.replayFrom);
+	}
+}
@@ -0,0 +1,211 @@
+package com.hxd.push;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// ThreadSafe
+// An embeddable stand-in for the APNs binary gateway, to measure throughput and failure handling on a single box.
+// It speaks TLS with a generated self-signed certificate (BouncyCastle, a dependency of the benchmarks), decodes command 2 frames,
+// and answers a notification for a rejected token with a command 8 error response, then closes the connection as APNs does.
+// The close is left to the client for a while: closing a socket with unread input resets it, and the reset may
+// discard the error response before the client read it.
+// Point a push controller at it with getEnvironment().
+public class MockAPNSGateway {
+	
+	private static final int MAX_FRAME_LENGTH = 64 * 1024;
+	private static final byte ERROR_RESPONSE_COMMAND = 8;
+	private static final long REJECTED_CONNECTION_CLOSE_DELAY_MILLISECONDS = 1000;
+	
+	private final Logger logger = LoggerFactory.getLogger(MockAPNSGateway.class);
+	private final int requestedPort;
+	private final SelfSignedCertificate certificate;
+	private final SslContext sslContext;
+	private final EventLoopGroup bossGroup;
+	private final EventLoopGroup workerGroup;
+	private final Set<ByteBuffer> rejectedTokens = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+	private final AtomicLong acceptedNotifications = new AtomicLong(0);
+	private final AtomicLong rejectedNotifications = new AtomicLong(0);
+	private final AtomicLong connections = new AtomicLong(0);
+	
+	private volatile long latencyNanos = 0;
+	private volatile RejectedNotificationReason rejectionReason = RejectedNotificationReason.INVALID_TOKEN;
+	private Channel serverChannel;
+	
+	// Port 0 binds an ephemeral port, see getPort()
+	public MockAPNSGateway(final int port) throws CertificateException, SSLException {
+		this.requestedPort = port;
+		this.certificate = new SelfSignedCertificate("localhost");
+		this.sslContext = SslContextBuilder.forServer(this.certificate.certificate(), this.certificate.privateKey()).build();
+		this.bossGroup = new NioEventLoopGroup(1);
+		this.workerGroup = new NioEventLoopGroup();
+	}
+	
+	public synchronized void start() throws InterruptedException {
+		final MockAPNSGateway gateway = this;
+		this.serverChannel = new ServerBootstrap()
+				.group(this.bossGroup, this.workerGroup)
+				.channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(final SocketChannel channel) throws Exception {
+						final ChannelPipeline pipeline = channel.pipeline();
+						pipeline.addLast("ssl", sslContext.newHandler(channel.alloc()));
+						pipeline.addLast("framer", new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 1, 4));
+						pipeline.addLast("handler", new NotificationFrameHandler(gateway));
+					}
+				})
+				.bind(this.requestedPort).sync().channel();
+		this.logger.info("Mock APNs gateway listening on port " + this.getPort());
+	}
+	
+	public synchronized void stop() {
+		if (this.serverChannel != null) {
+			this.serverChannel.close().awaitUninterruptibly();
+		}
+		this.bossGroup.shutdownGracefully();
+		this.workerGroup.shutdownGracefully();
+		this.certificate.delete();
+	}
+	
+	public synchronized int getPort() {
+		return this.serverChannel != null ? ((InetSocketAddress)this.serverChannel.localAddress()).getPort() : this.requestedPort;
+	}
+	
+	// The self-signed certificate is trusted without verification
+	public APNSEnviroment getEnvironment() {
+		return new APNSEnviroment("localhost", this.getPort(), "localhost", 0, InsecureTrustManagerFactory.INSTANCE);
+	}
+	
+	public void rejectToken(final String token) {
+		this.rejectToken(DeviceTokenDataItem.tokenStringToBytes(token));
+	}
+	
+	public void rejectToken(final byte[] token) {
+		this.rejectedTokens.add(ByteBuffer.wrap(token.clone()));
+	}
+	
+	public void setRejectionReason(final RejectedNotificationReason rejectionReason) {
+		this.rejectionReason = rejectionReason;
+	}
+	
+	// After every read the gateway stops reading for this long, simulating a slow or distant gateway.
+	public void setLatency(final long latency, final TimeUnit unit) {
+		this.latencyNanos = unit.toNanos(latency);
+	}
+	
+	public long getAcceptedNotificationCount() {
+		return this.acceptedNotifications.get();
+	}
+	
+	public long getRejectedNotificationCount() {
+		return this.rejectedNotifications.get();
+	}
+	
+	public long getConnectionCount() {
+		return this.connections.get();
+	}
+	
+	private static class NotificationFrameHandler extends SimpleChannelInboundHandler<ByteBuf> {
+		
+		private final MockAPNSGateway gateway;
+		private boolean rejected = false;
+		
+		public NotificationFrameHandler(final MockAPNSGateway gateway) {
+			this.gateway = gateway;
+		}
+		
+		@Override
+		public void channelActive(final ChannelHandlerContext context) throws Exception {
+			this.gateway.connections.incrementAndGet();
+			super.channelActive(context);
+		}
+		
+		@Override
+		protected void channelRead0(final ChannelHandlerContext context, final ByteBuf frame) throws Exception {
+			if (this.rejected) {
+				return; // APNs ignores everything following a rejected notification
+			}
+			
+			frame.skipBytes(ApnsPushNotificationEncoder.FRAME_HEADER_LENGTH);
+			ByteBuffer token = null;
+			int identifier = 0;
+			while (frame.isReadable()) {
+				final byte itemId = frame.readByte();
+				final int itemLength = frame.readUnsignedShort();
+				if (itemId == DeviceTokenDataItem.ITEM_ID && !this.gateway.rejectedTokens.isEmpty()) {
+					token = frame.nioBuffer(frame.readerIndex(), itemLength);
+				} else if (itemId == NotificationIdentifierDataItem.ITEM_ID) {
+					identifier = frame.getInt(frame.readerIndex());
+				}
+				frame.skipBytes(itemLength);
+			}
+			
+			if (token != null && this.gateway.rejectedTokens.contains(token)) {
+				this.rejected = true;
+				this.gateway.rejectedNotifications.incrementAndGet();
+				final ByteBuf errorResponse = context.alloc().buffer(6);
+				errorResponse.writeByte(ERROR_RESPONSE_COMMAND);
+				errorResponse.writeByte(this.gateway.rejectionReason.getErrorCode());
+				errorResponse.writeInt(identifier);
+				context.writeAndFlush(errorResponse);
+				context.executor().schedule(new Runnable() {
+					@Override
+					public void run() {
+						context.close();
+					}
+				}, REJECTED_CONNECTION_CLOSE_DELAY_MILLISECONDS, TimeUnit.MILLISECONDS);
+			} else {
+				this.gateway.acceptedNotifications.incrementAndGet();
+			}
+		}
+		
+		@Override
+		public void channelReadComplete(final ChannelHandlerContext context) throws Exception {
+			super.channelReadComplete(context);
+			final long latencyNanos = this.gateway.latencyNanos;
+			if (latencyNanos > 0 && context.channel().config().isAutoRead()) {
+				context.channel().config().setAutoRead(false);
+				context.executor().schedule(new Runnable() {
+					@Override
+					public void run() {
+						context.channel().config().setAutoRead(true);
+					}
+				}, latencyNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+			this.gateway.logger.debug("Mock APNs gateway connection failed: " + cause.getMessage());
+			context.close();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package com.hxd.push;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// ThreadSafe
+// An embeddable stand-in for the APNs HTTP/2 provider API, the counterpart of MockAPNSGateway.
+// It negotiates h2 over TLS with a generated self-signed certificate (BouncyCastle, a dependency of the benchmarks),
+// announces maxConcurrentStreams in its SETTINGS, and answers every POST to /3/device/<token> on its stream:
+// 200 when accepted, 400 with {"reason":"BadDeviceToken"} for a rejected token. The connection stays open.
+// With a latency every response is delayed by it, as by the round trip to a distant gateway.
+// Given the public key of a provider token, requests must carry a token it verifies, not older than the max age:
+// otherwise they are answered 403 with MissingProviderToken, InvalidProviderToken or ExpiredProviderToken.
+// As APNs does, a connection verifies the signature of a token once and only checks its age after.
+// Point an APNHttp2ConnectionManager at it with getEnvironment().
+public class MockAPNSHttp2Gateway {
+
+	public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 1000;
+	private static final String PATH_PREFIX = "/3/device/";
+
+	private final Logger logger = LoggerFactory.getLogger(MockAPNSHttp2Gateway.class);
+	private final int requestedPort;
+	private final SelfSignedCertificate certificate;
+	private final SslContext sslContext;
+	private final EventLoopGroup bossGroup;
+	private final EventLoopGroup workerGroup;
+	private final Set<ByteBuffer> rejectedTokens = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+	private final AtomicLong acceptedNotifications = new AtomicLong(0);
+	private final AtomicLong rejectedNotifications = new AtomicLong(0);
+	private final AtomicLong connections = new AtomicLong(0);
+	private final AtomicLong peakConcurrentStreams = new AtomicLong(0);
+	private final AtomicLong verifiedProviderTokens = new AtomicLong(0);
+	private final Set<String> topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile long latencyNanos = 0;
+	private volatile int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+	private volatile PublicKey providerTokenKey;
+	private volatile long providerTokenMaxAgeMillis = TimeUnit.HOURS.toMillis(1);
+	private Channel serverChannel;
+
+	// Port 0 binds an ephemeral port, see getPort()
+	public MockAPNSHttp2Gateway(final int port) throws CertificateException, SSLException {
+		this.requestedPort = port;
+		this.certificate = new SelfSignedCertificate("localhost");
+		this.sslContext = SslContextBuilder.forServer(this.certificate.certificate(), this.certificate.privateKey())
+											.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+											.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+													ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+													ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+													ApplicationProtocolNames.HTTP_2))
+											.build();
+		this.bossGroup = new NioEventLoopGroup(1);
+		this.workerGroup = new NioEventLoopGroup();
+	}
+
+	public synchronized void start() throws InterruptedException {
+		final MockAPNSHttp2Gateway gateway = this;
+		this.serverChannel = new ServerBootstrap()
+				.group(this.bossGroup, this.workerGroup)
+				.channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(final SocketChannel channel) throws Exception {
+						final ChannelPipeline pipeline = channel.pipeline();
+						pipeline.addLast("ssl", sslContext.newHandler(channel.alloc()));
+						pipeline.addLast("http2", Http2FrameCodecBuilder.forServer()
+															.initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(maxConcurrentStreams))
+															.build());
+						pipeline.addLast("handler", new RequestHandler(gateway));
+					}
+				})
+				.bind(this.requestedPort).sync().channel();
+		this.logger.info("Mock APNs HTTP/2 gateway listening on port " + this.getPort());
+	}
+
+	public synchronized void stop() {
+		if (this.serverChannel != null) {
+			this.serverChannel.close().awaitUninterruptibly();
+		}
+		this.bossGroup.shutdownGracefully();
+		this.workerGroup.shutdownGracefully();
+		this.certificate.delete();
+	}
+
+	public synchronized int getPort() {
+		return this.serverChannel != null ? ((InetSocketAddress)this.serverChannel.localAddress()).getPort() : this.requestedPort;
+	}
+
+	// The self-signed certificate is trusted without verification
+	public APNSEnviroment getEnvironment() {
+		return new APNSEnviroment("localhost", this.getPort(), "localhost", 0, InsecureTrustManagerFactory.INSTANCE);
+	}
+
+	public void rejectToken(final byte[] token) {
+		this.rejectedTokens.add(ByteBuffer.wrap(token.clone()));
+	}
+
+	// Announced to connections accepted afterwards
+	public void setMaxConcurrentStreams(final int maxConcurrentStreams) {
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	// Requests must carry a provider token signed by the private key of this one, null to not check
+	public void setProviderTokenKey(final PublicKey providerTokenKey) {
+		this.providerTokenKey = providerTokenKey;
+	}
+
+	public void setProviderTokenMaxAge(final long maxAge, final TimeUnit unit) {
+		this.providerTokenMaxAgeMillis = unit.toMillis(maxAge);
+	}
+
+	public void setLatency(final long latency, final TimeUnit unit) {
+		this.latencyNanos = unit.toNanos(latency);
+	}
+
+	public long getAcceptedNotificationCount() {
+		return this.acceptedNotifications.get();
+	}
+
+	public long getRejectedNotificationCount() {
+		return this.rejectedNotifications.get();
+	}
+
+	public long getConnectionCount() {
+		return this.connections.get();
+	}
+
+	// Signatures verified, once per token and connection
+	public long getVerifiedProviderTokenCount() {
+		return this.verifiedProviderTokens.get();
+	}
+
+	// The apns-topic of the requests so far
+	public Set<String> getTopics() {
+		return Collections.unmodifiableSet(this.topics);
+	}
+
+	// The most requests open at once on one connection
+	public long getPeakConcurrentStreamCount() {
+		return this.peakConcurrentStreams.get();
+	}
+
+	private static class RequestHandler extends ChannelDuplexHandler {
+
+		private final MockAPNSHttp2Gateway gateway;
+		// The token of every stream whose request is not answered yet, null for a malformed path
+		private final Map<Http2FrameStream, ByteBuffer> openStreams = new HashMap<Http2FrameStream, ByteBuffer>();
+		// The reason every stream failed authentication with, for the streams that did
+		private final Map<Http2FrameStream, String> unauthorizedStreams = new HashMap<Http2FrameStream, String>();
+		// The provider token last verified on this connection and its issue time in seconds
+		private String verifiedAuthorization;
+		private long verifiedIssuedAt;
+
+		public RequestHandler(final MockAPNSHttp2Gateway gateway) {
+			this.gateway = gateway;
+		}
+
+		@Override
+		public void channelActive(final ChannelHandlerContext context) throws Exception {
+			this.gateway.connections.incrementAndGet();
+			super.channelActive(context);
+		}
+
+		@Override
+		public void channelRead(final ChannelHandlerContext context, final Object message) throws Exception {
+			try {
+				if (message instanceof Http2HeadersFrame) {
+					final Http2HeadersFrame headersFrame = (Http2HeadersFrame)message;
+					final CharSequence path = headersFrame.headers().path();
+					final byte[] token = path != null && path.toString().startsWith(PATH_PREFIX) ? DeviceTokenCodec.decode(path.toString().substring(PATH_PREFIX.length())) : null;
+					this.openStreams.put(headersFrame.stream(), token != null ? ByteBuffer.wrap(token) : null);
+					final CharSequence topic = headersFrame.headers().get("apns-topic");
+					if (topic != null) {
+						this.gateway.topics.add(topic.toString());
+					}
+					final String unauthorized = this.authenticate(headersFrame.headers().get("authorization"));
+					if (unauthorized != null) {
+						this.unauthorizedStreams.put(headersFrame.stream(), unauthorized);
+					}
+					long peak;
+					while (this.openStreams.size() > (peak = this.gateway.peakConcurrentStreams.get())
+							&& !this.gateway.peakConcurrentStreams.compareAndSet(peak, this.openStreams.size())) {
+						// Retry
+					}
+					if (headersFrame.isEndStream()) {
+						this.respond(context, headersFrame.stream());
+					}
+				} else if (message instanceof Http2DataFrame) {
+					final Http2DataFrame dataFrame = (Http2DataFrame)message;
+					if (dataFrame.initialFlowControlledBytes() > 0) {
+						context.write(new DefaultHttp2WindowUpdateFrame(dataFrame.initialFlowControlledBytes()).stream(dataFrame.stream()));
+					}
+					if (dataFrame.isEndStream()) {
+						this.respond(context, dataFrame.stream());
+					}
+				}
+			} finally {
+				ReferenceCountUtil.release(message);
+			}
+		}
+
+		@Override
+		public void channelReadComplete(final ChannelHandlerContext context) throws Exception {
+			context.flush();
+			super.channelReadComplete(context);
+		}
+
+		// The reason a request with the given authorization is refused, null if it is not
+		private String authenticate(final CharSequence authorization) {
+			final PublicKey providerTokenKey = this.gateway.providerTokenKey;
+			if (providerTokenKey == null) {
+				return null;
+			}
+			if (authorization == null || !authorization.toString().startsWith("bearer ")) {
+				return "MissingProviderToken";
+			}
+			final String providerToken = authorization.toString().substring("bearer ".length());
+			if (!providerToken.equals(this.verifiedAuthorization)) {
+				final long issuedAt = ApnsProviderToken.verify(providerToken, providerTokenKey);
+				if (issuedAt < 0) {
+					return "InvalidProviderToken";
+				}
+				this.gateway.verifiedProviderTokens.incrementAndGet();
+				this.verifiedAuthorization = providerToken;
+				this.verifiedIssuedAt = issuedAt;
+			}
+			if (System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(this.verifiedIssuedAt) > this.gateway.providerTokenMaxAgeMillis) {
+				return "ExpiredProviderToken";
+			}
+			return null;
+		}
+
+		private void respond(final ChannelHandlerContext context, final Http2FrameStream stream) {
+			final ByteBuffer token = this.openStreams.get(stream);
+			final long latencyNanos = this.gateway.latencyNanos;
+			if (latencyNanos > 0) {
+				context.executor().schedule(new Runnable() {
+					@Override
+					public void run() {
+						answer(context, stream, token);
+						context.flush();
+					}
+				}, latencyNanos, TimeUnit.NANOSECONDS);
+			} else {
+				this.answer(context, stream, token);
+			}
+		}
+
+		private void answer(final ChannelHandlerContext context, final Http2FrameStream stream, final ByteBuffer token) {
+			this.openStreams.remove(stream);
+			final String unauthorized = this.unauthorizedStreams.remove(stream);
+			if (unauthorized != null) {
+				this.answerError(context, stream, HttpResponseStatus.FORBIDDEN, unauthorized);
+				return;
+			}
+			if (token != null && !this.gateway.rejectedTokens.contains(token)) {
+				this.gateway.acceptedNotifications.incrementAndGet();
+				context.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText()), true).stream(stream));
+				return;
+			}
+			this.gateway.rejectedNotifications.incrementAndGet();
+			this.answerError(context, stream, HttpResponseStatus.BAD_REQUEST, token != null ? "BadDeviceToken" : "MissingDeviceToken");
+		}
+
+		private void answerError(final ChannelHandlerContext context, final Http2FrameStream stream, final HttpResponseStatus status, final String reason) {
+			final ByteBuf body = context.alloc().buffer();
+			body.writeCharSequence("{\"reason\":\"" + reason + "\"}", CharsetUtil.UTF_8);
+			context.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status(status.codeAsText()), false).stream(stream));
+			context.write(new DefaultHttp2DataFrame(body, true).stream(stream));
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+			this.gateway.logger.debug("Mock APNs HTTP/2 gateway connection failed: " + cause.getMessage());
+			context.close();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.hxd.push;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// ThreadSafe
+// An embeddable stand-in for the APNs feedback service, to measure how fast expired tokens can be drained.
+// Every connection is sent tupleCount (timestamp, token length, token) tuples and then closed, as the real service does.
+// The stream is written in chunks of chunkSize bytes, each flushed on its own, so tuples straddle chunk boundaries
+// the way they straddle reads from a real connection. Tokens are generated, see expiredToken().
+public class MockFeedbackService {
+
+	public static final int TUPLE_LENGTH = FeedbackTupleDecoder.TUPLE_LENGTH;
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(MockFeedbackService.class);
+	private final int requestedPort;
+	private final SelfSignedCertificate certificate;
+	private final SslContext sslContext;
+	private final EventLoopGroup bossGroup;
+	private final EventLoopGroup workerGroup;
+	private final AtomicLong sentTuples = new AtomicLong(0);
+	private final AtomicLong connections = new AtomicLong(0);
+
+	private volatile long tupleCount = 0;
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	private Channel serverChannel;
+
+	// Port 0 binds an ephemeral port, see getPort()
+	public MockFeedbackService(final int port) throws CertificateException, SSLException {
+		this.requestedPort = port;
+		this.certificate = new SelfSignedCertificate("localhost");
+		this.sslContext = SslContextBuilder.forServer(this.certificate.certificate(), this.certificate.privateKey()).build();
+		this.bossGroup = new NioEventLoopGroup(1);
+		this.workerGroup = new NioEventLoopGroup();
+	}
+
+	public synchronized void start() throws InterruptedException {
+		final MockFeedbackService feedbackService = this;
+		this.serverChannel = new ServerBootstrap()
+				.group(this.bossGroup, this.workerGroup)
+				.channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(final SocketChannel channel) throws Exception {
+						channel.pipeline().addLast("ssl", sslContext.newHandler(channel.alloc()));
+						channel.pipeline().addLast("handler", new FeedbackStreamHandler(feedbackService));
+					}
+				})
+				.bind(this.requestedPort).sync().channel();
+		this.logger.info("Mock APNs feedback service listening on port " + this.getPort());
+	}
+
+	public synchronized void stop() {
+		if (this.serverChannel != null) {
+			this.serverChannel.close().awaitUninterruptibly();
+		}
+		this.bossGroup.shutdownGracefully();
+		this.workerGroup.shutdownGracefully();
+		this.certificate.delete();
+	}
+
+	public synchronized int getPort() {
+		return this.serverChannel != null ? ((InetSocketAddress)this.serverChannel.localAddress()).getPort() : this.requestedPort;
+	}
+
+	// The self-signed certificate is trusted without verification
+	public APNSEnviroment getEnvironment() {
+		return new APNSEnviroment("localhost", 0, "localhost", this.getPort(), InsecureTrustManagerFactory.INSTANCE);
+	}
+
+	// Number of tuples sent to each new connection
+	public void setTupleCount(final long tupleCount) {
+		this.tupleCount = tupleCount;
+	}
+
+	public void setChunkSize(final int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public long getSentTupleCount() {
+		return this.sentTuples.get();
+	}
+
+	public long getConnectionCount() {
+		return this.connections.get();
+	}
+
+	// The token of the index-th tuple of a connection: the index big-endian in the first 8 bytes, the rest 0xA5.
+	public static void expiredToken(final long index, final byte[] token) {
+		ByteBuffer.wrap(token).putLong(index);
+		for (int i = 8; i < DeviceTokenCodec.TOKEN_LENGTH; i++) {
+			token[i] = (byte)0xA5;
+		}
+	}
+
+	private static class FeedbackStreamHandler extends ChannelInboundHandlerAdapter {
+
+		private final MockFeedbackService feedbackService;
+		private final byte[] tuple = new byte[TUPLE_LENGTH];
+		private final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+		private final int timestamp = (int)(System.currentTimeMillis() / 1000);
+
+		private long tuplesRemaining;
+		private long nextIndex = 0;
+		private int tupleOffset = TUPLE_LENGTH; // bytes of the current tuple already written
+		private boolean streaming = false;
+
+		public FeedbackStreamHandler(final MockFeedbackService feedbackService) {
+			this.feedbackService = feedbackService;
+			this.tuplesRemaining = feedbackService.tupleCount;
+		}
+
+		@Override
+		public void channelActive(final ChannelHandlerContext context) throws Exception {
+			this.feedbackService.connections.incrementAndGet();
+			super.channelActive(context);
+		}
+
+		@Override
+		public void userEventTriggered(final ChannelHandlerContext context, final Object event) throws Exception {
+			if (event instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent)event).isSuccess()) {
+				this.streaming = true;
+				this.writeChunks(context);
+			}
+			super.userEventTriggered(context, event);
+		}
+
+		@Override
+		public void channelWritabilityChanged(final ChannelHandlerContext context) throws Exception {
+			if (this.streaming && context.channel().isWritable()) {
+				this.writeChunks(context);
+			}
+			super.channelWritabilityChanged(context);
+		}
+
+		// Write until the outbound buffer is full, the rest follows when the channel becomes writable again.
+		private void writeChunks(final ChannelHandlerContext context) {
+			final int chunkSize = this.feedbackService.chunkSize;
+			while (this.tuplesRemaining > 0 && context.channel().isWritable()) {
+				final ByteBuf chunk = context.alloc().buffer(chunkSize, chunkSize);
+				while (chunk.isWritable() && this.tuplesRemaining > 0) {
+					if (this.tupleOffset == TUPLE_LENGTH) {
+						this.nextTuple();
+					}
+					final int length = Math.min(chunk.writableBytes(), TUPLE_LENGTH - this.tupleOffset);
+					chunk.writeBytes(this.tuple, this.tupleOffset, length);
+					this.tupleOffset += length;
+					if (this.tupleOffset == TUPLE_LENGTH) {
+						this.tuplesRemaining--;
+						this.feedbackService.sentTuples.incrementAndGet();
+					}
+				}
+				context.writeAndFlush(chunk);
+			}
+			if (this.tuplesRemaining == 0) {
+				this.streaming = false;
+				context.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+			}
+		}
+
+		private void nextTuple() {
+			MockFeedbackService.expiredToken(this.nextIndex++, this.token);
+			final ByteBuffer tupleBuffer = ByteBuffer.wrap(this.tuple);
+			tupleBuffer.putInt(this.timestamp);
+			tupleBuffer.putShort((short)DeviceTokenCodec.TOKEN_LENGTH);
+			tupleBuffer.put(this.token);
+			this.tupleOffset = 0;
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+			this.feedbackService.logger.debug("Mock APNs feedback connection failed: " + cause.getMessage());
+			context.close();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.hxd.push.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+final class BenchmarkKeyStores {
+	
+	static final String PASSWORD = "benchmark";
+	
+	private BenchmarkKeyStores() {}
+	
+	// The mock services do not ask for a client certificate, an empty keystore is enough to connect.
+	static String emptyPKCS12File() throws IOException, GeneralSecurityException {
+		final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(null, null);
+		final File keyStoreFile = File.createTempFile("apnpush-benchmark", ".p12");
+		keyStoreFile.deleteOnExit();
+		final FileOutputStream outputStream = new FileOutputStream(keyStoreFile);
+		try {
+			keyStore.store(outputStream, PASSWORD.toCharArray());
+		} finally {
+			outputStream.close();
+		}
+		return keyStoreFile.getPath();
+	}
+}
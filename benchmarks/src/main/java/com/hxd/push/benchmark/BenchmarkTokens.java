@@ -0,0 +1,28 @@
+package com.hxd.push.benchmark;
+
+import java.util.Random;
+
+import com.hxd.push.DeviceTokenCodec;
+
+final class BenchmarkTokens {
+	
+	private BenchmarkTokens() {}
+	
+	static byte[][] randomTokens(final int count, final long seed) {
+		final Random random = new Random(seed);
+		final byte[][] tokens = new byte[count][DeviceTokenCodec.TOKEN_LENGTH];
+		for (byte[] token : tokens) {
+			random.nextBytes(token);
+		}
+		return tokens;
+	}
+	
+	static String[] randomTokenStrings(final int count, final long seed) {
+		final byte[][] tokens = BenchmarkTokens.randomTokens(count, seed);
+		final String[] tokenStrings = new String[count];
+		for (int i = 0; i < count; i++) {
+			tokenStrings[i] = DeviceTokenCodec.encode(tokens[i]);
+		}
+		return tokenStrings;
+	}
+}
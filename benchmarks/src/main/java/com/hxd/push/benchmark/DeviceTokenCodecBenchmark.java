@@ -0,0 +1,42 @@
+package com.hxd.push.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.hxd.push.DeviceTokenCodec;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DeviceTokenCodecBenchmark {
+	
+	private static final int TOKENS = 1024;
+	
+	private String[] tokenStrings;
+	private byte[][] tokens;
+	private final byte[] decoded = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+	private int next = 0;
+	
+	@Setup
+	public void setUp() {
+		this.tokenStrings = BenchmarkTokens.randomTokenStrings(TOKENS, 1);
+		this.tokens = BenchmarkTokens.randomTokens(TOKENS, 1);
+	}
+	
+	@Benchmark
+	public boolean decode() {
+		return DeviceTokenCodec.decode(this.tokenStrings[this.next++ & (TOKENS - 1)], this.decoded);
+	}
+	
+	@Benchmark
+	public String encode() {
+		return DeviceTokenCodec.encode(this.tokens[this.next++ & (TOKENS - 1)]);
+	}
+}
@@ -0,0 +1,102 @@
+package com.hxd.push.benchmark;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hxd.push.AsyncFileTokenSink;
+import com.hxd.push.ExpiredTokenBatch;
+import com.hxd.push.FeedbackController;
+import com.hxd.push.FeedbackManager;
+import com.hxd.push.FeedbackService;
+import com.hxd.push.MockFeedbackService;
+
+// Expired token drain throughput from a local MockFeedbackService.
+// "manager" runs the tuples through FeedbackManager, which writes them to a temporary file through an AsyncFileTokenSink,
+// "decoder" through FeedbackService with a controller that only counts them, to separate decoding from the sink.
+// A small sink queue makes the manager pause reading the feedback connection until the sink drained.
+// Usage: FeedbackThroughputHarness [tuples] [chunk size in bytes] [manager|decoder] [sink queue capacity]
+public class FeedbackThroughputHarness {
+
+	private static final long TIMEOUT_MINUTES = 30;
+
+	public static void main(String args[]) throws Exception {
+		final long tuples = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+		final int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : MockFeedbackService.DEFAULT_CHUNK_SIZE;
+		final boolean decoderOnly = args.length > 2 && "decoder".equals(args[2]);
+		final int sinkQueueCapacity = args.length > 3 ? Integer.parseInt(args[3]) : AsyncFileTokenSink.DEFAULT_QUEUE_CAPACITY;
+
+		final MockFeedbackService mockFeedbackService = new MockFeedbackService(0);
+		mockFeedbackService.setTupleCount(tuples);
+		mockFeedbackService.setChunkSize(chunkSize);
+		mockFeedbackService.start();
+
+		final File feedbackFile = File.createTempFile("apnpush-feedback", ".txt");
+		feedbackFile.deleteOnExit();
+		final AsyncFileTokenSink feedbackTokenSink = decoderOnly ? null : new AsyncFileTokenSink(feedbackFile, sinkQueueCapacity,
+				AsyncFileTokenSink.DEFAULT_SYNC_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final AtomicLong expiredTokens = new AtomicLong(0);
+		final long start = System.nanoTime();
+		FeedbackManager feedbackManager = null;
+		if (decoderOnly) {
+			final CountingFeedbackController controller = new CountingFeedbackController(closed, expiredTokens);
+			controller.feedbackService = new FeedbackService(controller, mockFeedbackService.getEnvironment(), BenchmarkKeyStores.emptyPKCS12File(), BenchmarkKeyStores.PASSWORD);
+			controller.feedbackService.start();
+		} else {
+			feedbackManager = new FeedbackManager(mockFeedbackService.getEnvironment(), BenchmarkKeyStores.emptyPKCS12File(), BenchmarkKeyStores.PASSWORD, feedbackTokenSink) {
+				@Override
+				public void feedbackServiceDidRead(final ExpiredTokenBatch batch) {
+					super.feedbackServiceDidRead(batch);
+					expiredTokens.addAndGet(batch.size());
+				}
+			};
+			feedbackManager.doFeedback();
+		}
+		final boolean completed = feedbackManager != null ? feedbackManager.awaitClosed(TIMEOUT_MINUTES, TimeUnit.MINUTES)
+														   : closed.await(TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		final long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("tuples: %d, chunk size: %d bytes, sink: %s%s",
+				tuples, chunkSize, decoderOnly ? "decoder" : "manager", completed ? "" : ", timed out"));
+		System.out.println(String.format("read %d of %d sent in %d ms: %.0f tuples/s, %.1f MB/s",
+				expiredTokens.get(), mockFeedbackService.getSentTupleCount(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+				expiredTokens.get() * 1e9 / elapsed, expiredTokens.get() * MockFeedbackService.TUPLE_LENGTH * 1e3 / elapsed));
+
+		if (feedbackTokenSink != null) {
+			System.out.println(String.format("feedback file: %d written, %d dropped",
+					feedbackTokenSink.getWrittenRecordCount(), feedbackTokenSink.getDroppedRecordCount()));
+		}
+
+		mockFeedbackService.stop();
+		feedbackFile.delete();
+	}
+
+	private static class CountingFeedbackController implements FeedbackController {
+
+		private final CountDownLatch closed;
+		private final AtomicLong expiredTokens;
+		private FeedbackService feedbackService;
+
+		public CountingFeedbackController(final CountDownLatch closed, final AtomicLong expiredTokens) {
+			this.closed = closed;
+			this.expiredTokens = expiredTokens;
+		}
+
+		@Override
+		public void feedbackServiceDidRead(final ExpiredTokenBatch batch) {
+			this.expiredTokens.addAndGet(batch.size());
+		}
+
+		@Override
+		public void feedbackServiceDidClose() {
+			this.feedbackService.shutdown();
+			this.closed.countDown();
+		}
+
+		@Override
+		public void feedbackServiceDidStart() {
+		}
+	}
+}
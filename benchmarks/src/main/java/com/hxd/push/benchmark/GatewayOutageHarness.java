@@ -0,0 +1,143 @@
+package com.hxd.push.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hxd.push.APNConnectionManager;
+import com.hxd.push.BroadcastPayload;
+import com.hxd.push.MockAPNSGateway;
+import com.hxd.push.NotificationQueue;
+import com.hxd.push.PushControllerDelegate;
+import com.hxd.push.RejectedNotificationReason;
+
+// Reconnects of APNConnectionManager during a gateway outage and the recovery after it.
+// With close, the gateway port is held during the outage by a socket that accepts and closes every connection, as
+// a gateway behind a failing load balancer would, and counts the connects. With refuse nothing listens on the port
+// and every connect is refused, as with a gateway host that is down. Then MockAPNSGateway takes the port over.
+// A producer pushes all the notifications from the start; it is held while the circuit breaker is open.
+// Usage: GatewayOutageHarness [outage seconds] [notifications] [connections] [threads|eventloop] [close|refuse]
+public class GatewayOutageHarness implements PushControllerDelegate {
+
+	private static final long STALL_TIMEOUT_MILLISECONDS = 10000;
+
+	public static void main(String args[]) throws Exception {
+		final int outageSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		final int notifications = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		final int connections = args.length > 2 ? Integer.parseInt(args[2]) : APNConnectionManager.CONCURRENT_CONNECTIONS;
+		final boolean eventLoopConnections = args.length > 3 && "eventloop".equals(args[3]);
+		final boolean refuseConnects = args.length > 4 && "refuse".equals(args[4]);
+		new GatewayOutageHarness().run(outageSeconds, notifications, connections, eventLoopConnections, refuseConnects);
+	}
+
+	private void run(final int outageSeconds, final int notifications, final int connections, final boolean eventLoopConnections,
+			final boolean refuseConnects) throws Exception {
+		final ServerSocket outage = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+		final AtomicLong outageConnects = new AtomicLong(0);
+		if (refuseConnects) {
+			// The port stays free for the gateway, nothing accepts on it until then
+			outage.close();
+		}
+		final Thread outageThread = new Thread("outage") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = outage.accept();
+						outageConnects.incrementAndGet();
+						socket.close();
+					}
+				} catch (IOException e) {
+					// Closed, the outage is over
+				}
+			}
+		};
+		outageThread.setDaemon(true);
+		outageThread.start();
+		final MockAPNSGateway gateway = new MockAPNSGateway(outage.getLocalPort());
+
+		final APNConnectionManager pushController = new APNConnectionManager(gateway.getEnvironment(), BenchmarkKeyStores.emptyPKCS12File(), BenchmarkKeyStores.PASSWORD, this,
+				new NotificationQueue(APNConnectionManager.queueCapacity(connections)));
+		pushController.setConnectionPoolSize(connections, connections);
+		pushController.setEventLoopConnections(eventLoopConnections);
+		final BroadcastPayload payload = new BroadcastPayload("{\"aps\":{\"alert\":{\"body\":\"Gateway outage harness\"},\"badge\":1,\"sound\":\"Default\"}}");
+		final byte[][] tokens = BenchmarkTokens.randomTokens(notifications, 1);
+		final AtomicLong pushed = new AtomicLong(0);
+		final Thread producer = new Thread("producer") {
+			@Override
+			public void run() {
+				try {
+					for (byte[] token : tokens) {
+						pushController.doPush(token, payload);
+						pushed.incrementAndGet();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		producer.setDaemon(true);
+
+		final long cpuStart = ProcessCpu.nanos();
+		pushController.start();
+		producer.start();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(outageSeconds));
+		final long cpuOutage = ProcessCpu.nanos() - cpuStart;
+		// Refused connects never reach a socket, the breaker counts them
+		final long connects = refuseConnects ? pushController.getCircuitBreaker().getFailureCount() : outageConnects.get();
+		System.out.println(String.format("outage of %d s (%s) with %d %s connections: %d connects, %.0f ms of CPU, %d notifications pushed",
+				outageSeconds, refuseConnects ? "refused" : "closed", connections, eventLoopConnections ? "event loop" : "thread", connects,
+				cpuOutage / 1e6, pushed.get()));
+		System.out.println(pushController.getCircuitBreaker());
+
+		outage.close();
+		outageThread.join();
+		gateway.start();
+		final long recoveryStart = System.nanoTime();
+		long firstAccepted = 0;
+		long lastAccepted = 0;
+		long lastProgress = System.nanoTime();
+		while (gateway.getAcceptedNotificationCount() < notifications) {
+			final long accepted = gateway.getAcceptedNotificationCount();
+			if (accepted > 0 && firstAccepted == 0) {
+				firstAccepted = System.nanoTime();
+			}
+			if (accepted != lastAccepted) {
+				lastAccepted = accepted;
+				lastProgress = System.nanoTime();
+			} else if (System.nanoTime() - lastProgress > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLISECONDS)) {
+				break;
+			}
+			Thread.sleep(1);
+		}
+		final long recovered = Math.min(System.nanoTime(), lastProgress);
+		System.out.println(String.format("gateway back: first notification accepted after %d ms, all %d after %d ms, lost %d",
+				firstAccepted == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstAccepted - recoveryStart), gateway.getAcceptedNotificationCount(),
+				TimeUnit.NANOSECONDS.toMillis(recovered - recoveryStart), Math.max(0, notifications - gateway.getAcceptedNotificationCount())));
+		System.out.println(pushController.getCircuitBreaker());
+		System.out.println("reconnect latency: " + pushController.getReconnectLatency());
+
+		pushController.stop();
+		payload.release();
+		gateway.stop();
+	}
+
+	@Override
+	public void pushControllerDidStop() {
+	}
+
+	@Override
+	public void handleRejectedNotification(final String token, final RejectedNotificationReason reason) {
+	}
+
+	// CPU time of the whole process, the reconnect loop burns it on the event loop and the connection threads alike
+	private static class ProcessCpu {
+		static long nanos() {
+			final java.lang.management.OperatingSystemMXBean bean = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+			return bean instanceof com.sun.management.OperatingSystemMXBean ? ((com.sun.management.OperatingSystemMXBean)bean).getProcessCpuTime() : 0;
+		}
+	}
+}
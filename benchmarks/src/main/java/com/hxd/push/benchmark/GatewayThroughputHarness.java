@@ -0,0 +1,133 @@
+package com.hxd.push.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hxd.push.APNConnectionManager;
+import com.hxd.push.BroadcastPayload;
+import com.hxd.push.InvalidTokenFilter;
+import com.hxd.push.MockAPNSGateway;
+import com.hxd.push.NotificationQueue;
+import com.hxd.push.PushControllerDelegate;
+import com.hxd.push.RejectedNotificationReason;
+import com.hxd.push.ReclaimableNotificationQueue;
+import com.hxd.push.RingBufferNotificationQueue;
+
+// End-to-end broadcast throughput through APNConnectionManager against a local MockAPNSGateway.
+// Every rejectEvery-th token is rejected, which exercises connection teardown and the reclaim path.
+// With "filter" the tokens to reject are known invalid beforehand, as if rejected by an earlier broadcast,
+// and an InvalidTokenFilter drops them before they are enqueued.
+// With min:max connections the pool scales between the two, its metrics are printed at the end.
+// With "eventloop" the connections run on the event loop group instead of a thread each.
+// With standby connections, replacements take a channel connected ahead of time; the reconnect latency is printed.
+// Usage: GatewayThroughputHarness [notifications] [rejectEvery, 0 for none] [gateway latency in microseconds] [linked|ring] [filter|nofilter] [min:max connections] [threads|eventloop] [standby connections]
+public class GatewayThroughputHarness implements PushControllerDelegate {
+	
+	// Give up waiting once the gateway accepted nothing new for this long, the rest is reported as lost.
+	private static final long STALL_TIMEOUT_MILLISECONDS = 10000;
+	
+	private final AtomicLong rejectedNotifications = new AtomicLong(0);
+	
+	public static void main(String args[]) throws Exception {
+		final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final int rejectEvery = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		final long latencyMicroseconds = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		final boolean ringBufferQueue = args.length > 3 && "ring".equals(args[3]);
+		final boolean filter = args.length > 4 && "filter".equals(args[4]);
+		final String[] connections = args.length > 5 ? args[5].split(":") : null;
+		final int minConnections = connections != null ? Integer.parseInt(connections[0]) : APNConnectionManager.CONCURRENT_CONNECTIONS;
+		final int maxConnections = connections != null ? Integer.parseInt(connections[connections.length - 1]) : minConnections;
+		final boolean eventLoopConnections = args.length > 6 && "eventloop".equals(args[6]);
+		final int standbyConnections = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+		new GatewayThroughputHarness().run(notifications, rejectEvery, latencyMicroseconds, ringBufferQueue, filter, minConnections, maxConnections, eventLoopConnections, standbyConnections);
+	}
+	
+	private void run(final int notifications, final int rejectEvery, final long latencyMicroseconds, final boolean ringBufferQueue, final boolean filter,
+			final int minConnections, final int maxConnections, final boolean eventLoopConnections, final int standbyConnections) throws Exception {
+		final MockAPNSGateway gateway = new MockAPNSGateway(0);
+		gateway.setLatency(latencyMicroseconds, TimeUnit.MICROSECONDS);
+		gateway.start();
+		
+		final byte[][] tokens = BenchmarkTokens.randomTokens(notifications, 1);
+		final InvalidTokenFilter invalidTokenFilter = filter ? new InvalidTokenFilter() : null;
+		int tokensToReject = 0;
+		for (int i = rejectEvery - 1; rejectEvery > 0 && i < notifications; i += rejectEvery) {
+			gateway.rejectToken(tokens[i]);
+			if (invalidTokenFilter != null) {
+				invalidTokenFilter.add(tokens[i]);
+			}
+			tokensToReject++;
+		}
+		final int expectedRejections = filter ? 0 : tokensToReject;
+		
+		final int queueCapacity = APNConnectionManager.queueCapacity(maxConnections);
+		final ReclaimableNotificationQueue queue = ringBufferQueue ? new RingBufferNotificationQueue(queueCapacity)
+																   : new NotificationQueue(queueCapacity);
+		final APNConnectionManager pushController = new APNConnectionManager(gateway.getEnvironment(), BenchmarkKeyStores.emptyPKCS12File(), BenchmarkKeyStores.PASSWORD, this, queue);
+		pushController.setInvalidTokenFilter(invalidTokenFilter);
+		pushController.setConnectionPoolSize(minConnections, maxConnections);
+		pushController.setEventLoopConnections(eventLoopConnections);
+		pushController.setStandbyConnections(standbyConnections);
+		final BroadcastPayload payload = new BroadcastPayload("{\"aps\":{\"alert\":{\"body\":\"Gateway throughput harness\"},\"badge\":1,\"sound\":\"Default\"}}");
+		
+		pushController.start();
+		final long start = System.nanoTime();
+		for (byte[] token : tokens) {
+			pushController.doPush(token, payload);
+		}
+		final long enqueued = System.nanoTime();
+		
+		final long expectedAccepted = notifications - tokensToReject;
+		long lastAccepted = 0;
+		long lastProgress = System.nanoTime();
+		while (gateway.getAcceptedNotificationCount() < expectedAccepted || this.rejectedNotifications.get() < expectedRejections) {
+			final long accepted = gateway.getAcceptedNotificationCount();
+			if (accepted != lastAccepted) {
+				lastAccepted = accepted;
+				lastProgress = System.nanoTime();
+			} else if (System.nanoTime() - lastProgress > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLISECONDS)) {
+				break;
+			}
+			Thread.sleep(1);
+		}
+		final long elapsed = Math.min(System.nanoTime(), lastProgress) - start;
+		
+		System.out.println(String.format("notifications: %d, rejected: %d, queue: %s, gateway latency: %dus%s, connections: %d to %d%s, %d standby",
+				notifications, tokensToReject, ringBufferQueue ? "ring" : "linked", latencyMicroseconds, filter ? ", filtered" : "", minConnections, maxConnections,
+				eventLoopConnections ? " on the event loop" : "", standbyConnections));
+		System.out.println(String.format("enqueued in %d ms, delivered in %d ms: %.0f notifications/s",
+				TimeUnit.NANOSECONDS.toMillis(enqueued - start), TimeUnit.NANOSECONDS.toMillis(elapsed), notifications * 1e9 / elapsed));
+		System.out.println(String.format("gateway accepted %d, lost %d, rejections reported %d, connections opened %d",
+				gateway.getAcceptedNotificationCount(), Math.max(0, expectedAccepted - gateway.getAcceptedNotificationCount()),
+				this.rejectedNotifications.get(), gateway.getConnectionCount()));
+		System.out.println(String.format("peak live threads %d", ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+		
+		if (invalidTokenFilter != null) {
+			System.out.println(invalidTokenFilter);
+		}
+		System.out.println(pushController.getConnectionPoolMetrics());
+		System.out.println(pushController.getHandshakeMetrics());
+		System.out.println("reconnect latency: " + pushController.getReconnectLatency());
+		if (pushController.getStandbyChannelPool() != null) {
+			System.out.println(String.format("standby channels taken %d, missed %d", pushController.getStandbyChannelPool().getTakenCount(),
+					pushController.getStandbyChannelPool().getMissedTakeCount()));
+		}
+		
+		pushController.stop();
+		payload.release();
+		if (invalidTokenFilter != null) {
+			invalidTokenFilter.release();
+		}
+		gateway.stop();
+	}
+
+	@Override
+	public void pushControllerDidStop() {
+	}
+
+	@Override
+	public void handleRejectedNotification(final String token, final RejectedNotificationReason reason) {
+		this.rejectedNotifications.incrementAndGet();
+	}
+}
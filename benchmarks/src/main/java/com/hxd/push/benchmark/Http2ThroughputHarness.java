@@ -0,0 +1,133 @@
+package com.hxd.push.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hxd.push.APNHttp2ConnectionManager;
+import com.hxd.push.ApnsProviderToken;
+import com.hxd.push.BroadcastPayload;
+import com.hxd.push.MockAPNSHttp2Gateway;
+import com.hxd.push.NotificationQueue;
+import com.hxd.push.PushControllerDelegate;
+import com.hxd.push.RejectedNotificationReason;
+import com.hxd.push.SendablePushNotification;
+
+// End-to-end broadcast throughput through APNHttp2ConnectionManager against a local MockAPNSHttp2Gateway,
+// the HTTP/2 counterpart of GatewayThroughputHarness. Every rejectEvery-th token is rejected on its stream.
+// The gateway answers every request after the given latency; the streams in flight per connection hide it.
+// With "token" the controller authenticates by a provider token of a generated key instead of a client certificate,
+// signed anew every refresh interval; the gateway verifies it and refuses it once older than its max age.
+// The notifications then go to TOPICS topics in turn over the same connections.
+// Usage: Http2ThroughputHarness [notifications] [rejectEvery, 0 for none] [gateway latency in microseconds] [connections] [max concurrent streams]
+//        [cert|token] [token refresh seconds] [token max age seconds]
+public class Http2ThroughputHarness implements PushControllerDelegate {
+
+	// Give up waiting once the gateway accepted nothing new for this long, the rest is reported as lost.
+	private static final long STALL_TIMEOUT_MILLISECONDS = 10000;
+
+	private static final String[] TOPICS = { "com.hxd.push.benchmark", "com.hxd.push.benchmark.voip", "com.hxd.push.benchmark.widget" };
+
+	private final AtomicLong rejectedNotifications = new AtomicLong(0);
+
+	public static void main(String args[]) throws Exception {
+		final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final int rejectEvery = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		final long latencyMicroseconds = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		final int connections = args.length > 3 ? Integer.parseInt(args[3]) : APNHttp2ConnectionManager.DEFAULT_CONNECTIONS;
+		final int maxConcurrentStreams = args.length > 4 ? Integer.parseInt(args[4]) : APNHttp2ConnectionManager.DEFAULT_MAX_CONCURRENT_STREAMS;
+		final boolean providerToken = args.length > 5 && "token".equals(args[5]);
+		final long tokenRefreshSeconds = args.length > 6 ? Long.parseLong(args[6]) : TimeUnit.MILLISECONDS.toSeconds(ApnsProviderToken.DEFAULT_REFRESH_INTERVAL_MILLISECONDS);
+		final long tokenMaxAgeSeconds = args.length > 7 ? Long.parseLong(args[7]) : TimeUnit.HOURS.toSeconds(1);
+		new Http2ThroughputHarness().run(notifications, rejectEvery, latencyMicroseconds, connections, maxConcurrentStreams, providerToken, tokenRefreshSeconds, tokenMaxAgeSeconds);
+	}
+
+	private void run(final int notifications, final int rejectEvery, final long latencyMicroseconds, final int connections, final int maxConcurrentStreams,
+			final boolean providerToken, final long tokenRefreshSeconds, final long tokenMaxAgeSeconds) throws Exception {
+		final MockAPNSHttp2Gateway gateway = new MockAPNSHttp2Gateway(0);
+		gateway.setLatency(latencyMicroseconds, TimeUnit.MICROSECONDS);
+		final ApnsProviderToken token = providerToken ? generatedProviderToken(gateway, tokenMaxAgeSeconds) : null;
+		gateway.start();
+
+		final byte[][] tokens = BenchmarkTokens.randomTokens(notifications, 1);
+		int tokensToReject = 0;
+		for (int i = rejectEvery - 1; rejectEvery > 0 && i < notifications; i += rejectEvery) {
+			gateway.rejectToken(tokens[i]);
+			tokensToReject++;
+		}
+
+		final NotificationQueue queue = new NotificationQueue(APNHttp2ConnectionManager.queueCapacity(connections, maxConcurrentStreams));
+		final APNHttp2ConnectionManager pushController = token != null ? new APNHttp2ConnectionManager(gateway.getEnvironment(), token, this, queue)
+				: new APNHttp2ConnectionManager(gateway.getEnvironment(), BenchmarkKeyStores.emptyPKCS12File(), BenchmarkKeyStores.PASSWORD, this, queue);
+		pushController.setProviderTokenRefreshInterval(tokenRefreshSeconds, TimeUnit.SECONDS);
+		pushController.setConnectionCount(connections);
+		pushController.setMaxConcurrentStreams(maxConcurrentStreams);
+		pushController.setTopic("com.hxd.push.benchmark");
+		final BroadcastPayload payload = new BroadcastPayload("{\"aps\":{\"alert\":{\"body\":\"Gateway throughput harness\"},\"badge\":1,\"sound\":\"Default\"}}");
+
+		pushController.start();
+		final long start = System.nanoTime();
+		for (int i = 0; i < tokens.length; i++) {
+			if (token != null) {
+				pushController.doPush(new SendablePushNotification(tokens[i], payload, null, TOPICS[i % TOPICS.length]));
+			} else {
+				pushController.doPush(tokens[i], payload);
+			}
+		}
+		final long enqueued = System.nanoTime();
+
+		final long expectedAccepted = notifications - tokensToReject;
+		long lastAccepted = 0;
+		long lastProgress = System.nanoTime();
+		while (gateway.getAcceptedNotificationCount() < expectedAccepted || this.rejectedNotifications.get() < tokensToReject) {
+			final long accepted = gateway.getAcceptedNotificationCount();
+			if (accepted != lastAccepted) {
+				lastAccepted = accepted;
+				lastProgress = System.nanoTime();
+			} else if (System.nanoTime() - lastProgress > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLISECONDS)) {
+				break;
+			}
+			Thread.sleep(1);
+		}
+		final long elapsed = Math.min(System.nanoTime(), lastProgress) - start;
+
+		System.out.println(String.format("notifications: %d, rejected: %d, gateway latency: %dus, %d HTTP/2 connections, %d streams each",
+				notifications, tokensToReject, latencyMicroseconds, connections, maxConcurrentStreams));
+		System.out.println(String.format("enqueued in %d ms, delivered in %d ms: %.0f notifications/s",
+				TimeUnit.NANOSECONDS.toMillis(enqueued - start), TimeUnit.NANOSECONDS.toMillis(elapsed), notifications * 1e9 / elapsed));
+		System.out.println(String.format("gateway accepted %d, lost %d, rejections reported %d, connections opened %d, peak concurrent streams %d",
+				gateway.getAcceptedNotificationCount(), Math.max(0, expectedAccepted - gateway.getAcceptedNotificationCount()),
+				this.rejectedNotifications.get(), gateway.getConnectionCount(), gateway.getPeakConcurrentStreamCount()));
+		System.out.println(String.format("peak live threads %d", ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+		System.out.println(pushController.getHandshakeMetrics());
+		if (token != null) {
+			System.out.println(String.format("provider tokens signed %d, verified by the gateway %d, topics %s",
+					token.getSignedTokenCount(), gateway.getVerifiedProviderTokenCount(), gateway.getTopics()));
+		}
+
+		pushController.stop();
+		payload.release();
+		gateway.stop();
+	}
+
+	private static ApnsProviderToken generatedProviderToken(final MockAPNSHttp2Gateway gateway, final long maxAgeSeconds) throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(new ECGenParameterSpec("secp256r1"));
+		final KeyPair keyPair = generator.generateKeyPair();
+		gateway.setProviderTokenKey(keyPair.getPublic());
+		gateway.setProviderTokenMaxAge(maxAgeSeconds, TimeUnit.SECONDS);
+		return new ApnsProviderToken(keyPair.getPrivate(), "TEAM123456", "KEY1234567");
+	}
+
+	@Override
+	public void pushControllerDidStop() {
+	}
+
+	@Override
+	public void handleRejectedNotification(final String token, final RejectedNotificationReason reason) {
+		this.rejectedNotifications.incrementAndGet();
+	}
+}
@@ -0,0 +1,43 @@
+package com.hxd.push.benchmark;
+
+import io.netty.util.AsciiString;
+
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.hxd.push.ApnsProviderToken;
+
+// The authorization of a request: a token signed for it against the cached one
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ProviderTokenBenchmark {
+	
+	private ApnsProviderToken providerToken;
+	
+	@Setup
+	public void setUp() throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(new ECGenParameterSpec("secp256r1"));
+		this.providerToken = new ApnsProviderToken(generator.generateKeyPair().getPrivate(), "TEAM123456", "KEY1234567");
+	}
+	
+	@Benchmark
+	public AsciiString signed() {
+		return this.providerToken.refresh();
+	}
+	
+	@Benchmark
+	public AsciiString cached() {
+		return this.providerToken.getAuthorization();
+	}
+}
@@ -0,0 +1,78 @@
+package com.hxd.push.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.hxd.push.APNPayloadBuilder;
+import com.hxd.push.ApnsPushNotificationEncoder;
+import com.hxd.push.BroadcastPayload;
+import com.hxd.push.SendablePushNotification;
+
+// Construction and encoding of a single notification, with its own payload and with a shared broadcast payload.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SendablePushNotificationBenchmark {
+	
+	private String payload;
+	private BroadcastPayload broadcastPayload;
+	private byte[] token;
+	private SendablePushNotification notification;
+	private SendablePushNotification broadcastNotification;
+	private EmbeddedChannel channel;
+	
+	@Setup
+	public void setUp() {
+		this.payload = new APNPayloadBuilder().alertBody("Benchmark alert body for the push hot path").badge(1).sound("Default").build();
+		this.broadcastPayload = new BroadcastPayload(this.payload);
+		this.token = BenchmarkTokens.randomTokens(1, 1)[0];
+		this.notification = new SendablePushNotification(this.token, this.payload, null);
+		this.broadcastNotification = new SendablePushNotification(this.token, this.broadcastPayload, null);
+		this.channel = new EmbeddedChannel(new ApnsPushNotificationEncoder());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		this.channel.finishAndReleaseAll();
+		this.broadcastPayload.release();
+	}
+	
+	@Benchmark
+	public SendablePushNotification construct() {
+		return new SendablePushNotification(this.token, this.payload, null);
+	}
+	
+	@Benchmark
+	public SendablePushNotification constructWithSharedPayload() {
+		return new SendablePushNotification(this.token, this.broadcastPayload, null);
+	}
+	
+	@Benchmark
+	public int encode() {
+		return this.writeAndRelease(this.notification);
+	}
+	
+	@Benchmark
+	public int encodeWithSharedPayload() {
+		return this.writeAndRelease(this.broadcastNotification);
+	}
+	
+	private int writeAndRelease(final SendablePushNotification notification) {
+		this.channel.writeOutbound(notification);
+		final ByteBuf frame = this.channel.readOutbound();
+		final int frameLength = frame.readableBytes();
+		frame.release();
+		return frameLength;
+	}
+}
@@ -0,0 +1,44 @@
+package com.hxd.push.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.hxd.push.TokenDeduplicator;
+
+// Adding the tokens of a broadcast: new tokens into a growing set, then the same tokens again as duplicates.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TokenDeduplicatorBenchmark {
+	
+	private static final int TOKENS = 1 << 20;
+	
+	private byte[][] tokens;
+	private TokenDeduplicator tokenDeduplicator;
+	private int next = 0;
+	
+	@Setup
+	public void setUp() {
+		this.tokens = BenchmarkTokens.randomTokens(TOKENS, 1);
+		this.tokenDeduplicator = new TokenDeduplicator(TOKENS);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		this.tokenDeduplicator.release();
+	}
+	
+	// The first TOKENS operations add new tokens, the rest are duplicates
+	@Benchmark
+	public boolean add() {
+		return this.tokenDeduplicator.add(this.tokens[this.next++ & (TOKENS - 1)]);
+	}
+}
@@ -0,0 +1,71 @@
+package com.hxd.push.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.hxd.push.DeviceTokenCodec;
+import com.hxd.push.MappedTokenStore;
+import com.hxd.push.TokenSource;
+
+// Lookups and a full live token scan of a store filled to half its capacity, one token in ten expired.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TokenStoreBenchmark {
+	
+	private static final int TOKENS = 1 << 20;
+	
+	private File storeFile;
+	private MappedTokenStore tokenStore;
+	private byte[][] tokens;
+	private final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+	private int next = 0;
+	
+	@Setup
+	public void setUp() throws IOException {
+		this.storeFile = File.createTempFile("apnpush-benchmark", ".tokens");
+		this.storeFile.delete();
+		this.tokenStore = new MappedTokenStore(this.storeFile, TOKENS * 2);
+		this.tokens = BenchmarkTokens.randomTokens(TOKENS, 1);
+		for (int i = 0; i < TOKENS; i++) {
+			this.tokenStore.add(this.tokens[i]);
+			if (i % 10 == 0) {
+				this.tokenStore.markExpired(this.tokens[i]);
+			}
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		this.tokenStore.close();
+		this.storeFile.delete();
+	}
+	
+	@Benchmark
+	public boolean isExpired() {
+		return this.tokenStore.isExpired(this.tokens[this.next++ & (TOKENS - 1)]);
+	}
+	
+	// Operations are whole scans of TOKENS * 2 slots
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long scanLiveTokens() throws IOException {
+		final TokenSource liveTokens = this.tokenStore.liveTokens();
+		long count = 0;
+		while (liveTokens.next(this.token)) {
+			count++;
+		}
+		liveTokens.close();
+		return count;
+	}
+}
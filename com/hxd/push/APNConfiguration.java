@@ -10,6 +10,28 @@ public class APNConfiguration {
 	private boolean isDebug;
 	private String logPath;
 	private String tokenFile;
+	private boolean memoryMappedTokenFile;
+	private int producerThreads;
+	private boolean ringBufferQueue;
+	private int flushBytes;
+	private String tokenStore;
+	private long tokenStoreCapacity;
+	private boolean broadcastTokenStore;
+	private boolean invalidTokenFilter;
+	private long invalidTokenFilterCapacity;
+	private boolean deduplicateTokens;
+	private long expectedTokens;
+	private String progressJournal;
+	private int minConnections;
+	private int maxConnections;
+	private boolean eventLoopConnections;
+	private int standbyConnections;
+	private boolean http2;
+	private String topic;
+	private int maxConcurrentStreams;
+	private String authKey;
+	private String teamId;
+	private String keyId;
 	private Map<String, String> customField;
 	
 	public String getPkcs12() {
@@ -49,6 +71,74 @@ public class APNConfiguration {
 	public void setTokenFile(String tokenFile) {
 		this.tokenFile = tokenFile;
 	}
+	public boolean isMemoryMappedTokenFile() {
+		return memoryMappedTokenFile;
+	}
+	public void setMemoryMappedTokenFile(boolean memoryMappedTokenFile) {
+		this.memoryMappedTokenFile = memoryMappedTokenFile;
+	}
+	public int getProducerThreads() {
+		return producerThreads;
+	}
+	public void setProducerThreads(int producerThreads) {
+		this.producerThreads = producerThreads;
+	}
+	public boolean isRingBufferQueue() {
+		return ringBufferQueue;
+	}
+	public void setRingBufferQueue(boolean ringBufferQueue) {
+		this.ringBufferQueue = ringBufferQueue;
+	}
+	public int getFlushBytes() {
+		return flushBytes;
+	}
+	public void setFlushBytes(int flushBytes) {
+		this.flushBytes = flushBytes;
+	}
+	public String getTokenStore() {
+		return tokenStore;
+	}
+	public void setTokenStore(String tokenStore) {
+		this.tokenStore = tokenStore;
+	}
+	public long getTokenStoreCapacity() {
+		return tokenStoreCapacity > 0 ? tokenStoreCapacity : MappedTokenStore.DEFAULT_CAPACITY;
+	}
+	public void setTokenStoreCapacity(long tokenStoreCapacity) {
+		this.tokenStoreCapacity = tokenStoreCapacity;
+	}
+	// Broadcast to every live token of the token store, with the new tokens of the token file imported first,
+	// rather than to the token file with the tokens the store knows as expired skipped
+	public boolean isBroadcastTokenStore() {
+		return broadcastTokenStore;
+	}
+	public void setBroadcastTokenStore(boolean broadcastTokenStore) {
+		this.broadcastTokenStore = broadcastTokenStore;
+	}
+	public boolean isInvalidTokenFilter() {
+		return invalidTokenFilter;
+	}
+	public void setInvalidTokenFilter(boolean invalidTokenFilter) {
+		this.invalidTokenFilter = invalidTokenFilter;
+	}
+	public long getInvalidTokenFilterCapacity() {
+		return invalidTokenFilterCapacity > 0 ? invalidTokenFilterCapacity : InvalidTokenFilter.DEFAULT_EXPECTED_TOKENS;
+	}
+	public void setInvalidTokenFilterCapacity(long invalidTokenFilterCapacity) {
+		this.invalidTokenFilterCapacity = invalidTokenFilterCapacity;
+	}
+	public boolean isDeduplicateTokens() {
+		return deduplicateTokens;
+	}
+	public void setDeduplicateTokens(boolean deduplicateTokens) {
+		this.deduplicateTokens = deduplicateTokens;
+	}
+	public long getExpectedTokens() {
+		return expectedTokens > 0 ? expectedTokens : TokenDeduplicator.DEFAULT_EXPECTED_TOKENS;
+	}
+	public void setExpectedTokens(long expectedTokens) {
+		this.expectedTokens = expectedTokens;
+	}
 	public String getLogPath() {
 		String splash = "";
 		if (!logPath.endsWith("/")) {
@@ -65,11 +155,77 @@ public class APNConfiguration {
 	public void setCustomField(Map<String, String> customField) {
 		this.customField = customField;
 	}
+	public String getProgressJournal() {
+		return progressJournal;
+	}
+	public void setProgressJournal(String progressJournal) {
+		this.progressJournal = progressJournal;
+	}
+	public int getMinConnections() {
+		return minConnections;
+	}
+	public void setMinConnections(int minConnections) {
+		this.minConnections = minConnections;
+	}
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+	public boolean isEventLoopConnections() {
+		return eventLoopConnections;
+	}
+	public void setEventLoopConnections(boolean eventLoopConnections) {
+		this.eventLoopConnections = eventLoopConnections;
+	}
+	public int getStandbyConnections() {
+		return standbyConnections;
+	}
+	public void setStandbyConnections(int standbyConnections) {
+		this.standbyConnections = standbyConnections;
+	}
+	public boolean isHttp2() {
+		return http2;
+	}
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+	public String getTopic() {
+		return topic;
+	}
+	public void setTopic(String topic) {
+		this.topic = topic;
+	}
+	public int getMaxConcurrentStreams() {
+		return maxConcurrentStreams;
+	}
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+	public String getAuthKey() {
+		return authKey;
+	}
+	public void setAuthKey(String authKey) {
+		this.authKey = authKey;
+	}
+	public String getTeamId() {
+		return teamId;
+	}
+	public void setTeamId(String teamId) {
+		this.teamId = teamId;
+	}
+	public String getKeyId() {
+		return keyId;
+	}
+	public void setKeyId(String keyId) {
+		this.keyId = keyId;
+	}
 	
 	@Override
 	public String toString() {
-		return String.format("%s: pkcs12:%s, pwd:%s, alertBody:%s, badge:%d, isDebug:%s, logFile:%s, tokenFile:%s",
+		return String.format("%s: pkcs12:%s, pwd:%s, alertBody:%s, badge:%d, isDebug:%s, logFile:%s, tokenFile:%s, memoryMappedTokenFile:%s, producerThreads:%d, ringBufferQueue:%s, flushBytes:%d, tokenStore:%s, tokenStoreCapacity:%d, broadcastTokenStore:%s, invalidTokenFilter:%s, invalidTokenFilterCapacity:%d, deduplicateTokens:%s, expectedTokens:%d, progressJournal:%s, minConnections:%d, maxConnections:%d, eventLoopConnections:%s, standbyConnections:%d, http2:%s, topic:%s, maxConcurrentStreams:%d, authKey:%s, teamId:%s, keyId:%s",
 				super.toString(), this.getPkcs12(), this.getPassword(), this.getAlertBody(), this.getBadge(), 
-				this.isDebug(), this.getLogPath(), this.getTokenFile()) ;
+				this.isDebug(), this.getLogPath(), this.getTokenFile(), this.isMemoryMappedTokenFile(), this.getProducerThreads(), this.isRingBufferQueue(), this.getFlushBytes(), this.getTokenStore(), this.getTokenStoreCapacity(), this.isBroadcastTokenStore(), this.isInvalidTokenFilter(), this.getInvalidTokenFilterCapacity(), this.isDeduplicateTokens(), this.getExpectedTokens(), this.getProgressJournal(), this.getMinConnections(), this.getMaxConnections(), this.isEventLoopConnections(), this.getStandbyConnections(), this.isHttp2(), this.getTopic(), this.getMaxConcurrentStreams(), this.getAuthKey(), this.getTeamId(), this.getKeyId()) ;
 	}
 }
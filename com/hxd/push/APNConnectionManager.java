@@ -1,123 +1,233 @@
 package com.hxd.push;
 
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-public class APNConnectionManager implements PushController {
+public class APNConnectionManager extends AbstractPushController {
 	
 	public static final int CONCURRENT_CONNECTIONS = 10; //max 15
-	public static final int SENT_BUFFER_CAPACITY_PER_TASK = 5000; // 5000
-	public static final int MAX_PRODUCER_QUEUE_SIZE = SENT_BUFFER_CAPACITY_PER_TASK * (CONCURRENT_CONNECTIONS + 1);
-	public static final int BATCH_SIZE = 32; //32
+	public static final int SENT_BUFFER_CAPACITY_PER_TASK = 5000;
+	public static final int MAX_PRODUCER_QUEUE_SIZE = APNConnectionManager.queueCapacity(CONCURRENT_CONNECTIONS);
+	public static final int BATCH_SIZE = 32; //32, max notifications drained from the queue at once
+	
+	// Connection pool scaling, see adjustConnectionPool()
+	private static final long SCALING_INTERVAL_MILLISECONDS = 1000;
+	private static final int GROW_AFTER_BUSY_SAMPLES = 3;
+	private static final int SHRINK_AFTER_IDLE_SAMPLES = 30;
+	private static final double BUSY_WRITE_BUFFER_UTILIZATION = 0.5;
+	private static final double IDLE_WRITE_BUFFER_UTILIZATION = 0.05;
 	
-	private final char[] keystorePassword;
-	private final APNSEnviroment apnsEnviroment;
-	private final EventLoopGroup nioEventLoopGroup;
 	private final Logger logger = LoggerFactory.getLogger(APNConnectionManager.class);
 	private final ExecutorService pushConnectionPool;
-	private final NotificationQueue notificationQueue;
-	private final KeyStore keyStore;
+	private final ConnectionPoolMetrics connectionPoolMetrics = new ConnectionPoolMetrics();
+	
+	private int minConnections = APNConnectionManager.CONCURRENT_CONNECTIONS;
+	private int maxConnections = APNConnectionManager.CONCURRENT_CONNECTIONS;
+	private boolean eventLoopConnections = false;
+	private int standbyConnections = 0;
+	private volatile StandbyChannelPool standbyChannelPool;
+	// Replacement connections not handshaken yet, with the time the connection they replace ended
+	private final Map<PushConnection, Long> replacementStarts = new HashMap<PushConnection, Long>();
+	private final LatencyHistogram reconnectLatency = new LatencyHistogram();
+	private int targetConnections = 0;
+	private int busySamples = 0;
+	private int idleSamples = 0;
+	private ScheduledFuture<?> scalingTask;
 	
-	private PushControllerDelegate delegate;
+	// Queue size should bigger than the sum of all task buffered notifications: when every connection ends at once,
+	// the reclaim queue takes the sent notification caches of all of them.
+	public static int queueCapacity(final int maxConnections) {
+		return SENT_BUFFER_CAPACITY_PER_TASK * (maxConnections + 1);
+	}
 	
 	public APNConnectionManager(APNSEnviroment apnsEnviroment, final String apsPKCS12FilePath, final String password, final PushControllerDelegate delegate) throws KeyStoreException {
-		this.apnsEnviroment = apnsEnviroment;
-		this.keystorePassword = password.toCharArray();
-		this.keyStore = KeyStore.getInstance("PKCS12");
-		this.nioEventLoopGroup = new NioEventLoopGroup();
-		this.pushConnectionPool = Executors.newFixedThreadPool(APNConnectionManager.CONCURRENT_CONNECTIONS);
 		//Queue size should bigger than the sum of all task buffered notifications.
-		this.notificationQueue = new NotificationQueue(APNConnectionManager.MAX_PRODUCER_QUEUE_SIZE);
-		this.delegate = delegate;
-		
-		try {
-			FileInputStream keystoreInputStream;
-			keystoreInputStream = new FileInputStream(apsPKCS12FilePath);
-			this.keyStore.load(keystoreInputStream, keystorePassword);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		this(apnsEnviroment, apsPKCS12FilePath, password, delegate, new NotificationQueue(APNConnectionManager.MAX_PRODUCER_QUEUE_SIZE));
 	}
 	
-	public APNSEnviroment getApnsEnviroment() {
-		return apnsEnviroment;
+	public APNConnectionManager(APNSEnviroment apnsEnviroment, final String apsPKCS12FilePath, final String password, final PushControllerDelegate delegate, final ReclaimableNotificationQueue notificationQueue) throws KeyStoreException {
+		super(apnsEnviroment, AbstractPushController.loadKeyStore(apsPKCS12FilePath, password.toCharArray()), password.toCharArray(), false, delegate, notificationQueue);
+		this.pushConnectionPool = Executors.newCachedThreadPool(); // One thread per connection, however many the pool scales to
 	}
-
-	public KeyStore getKeyStore() {
-		return keyStore;
+	
+	// The pool starts with minConnections and scales between the two, equal bounds keep it fixed. Set before start.
+	// The queue must have at least queueCapacity(maxConnections).
+	public synchronized void setConnectionPoolSize(final int minConnections, final int maxConnections) {
+		if (minConnections <= 0 || maxConnections < minConnections) {
+			throw new IllegalArgumentException(String.format("Illegal connection pool size: %d to %d", minConnections, maxConnections));
+		}
+		if (this.notificationQueue.capacity() < APNConnectionManager.queueCapacity(maxConnections)) {
+			throw new IllegalArgumentException(String.format("A queue of %d notifications cannot take back the sent notifications of %d connections, %d needed",
+					this.notificationQueue.capacity(), maxConnections, APNConnectionManager.queueCapacity(maxConnections)));
+		}
+		this.minConnections = minConnections;
+		this.maxConnections = maxConnections;
 	}
-
-	public char[] getKeystorePassword() {
-		return keystorePassword;
+	
+	// Run connections as EventLoopPushConnection on the event loop group rather than as a PushRunnable thread each. Set before start.
+	public synchronized void setEventLoopConnections(final boolean eventLoopConnections) {
+		this.eventLoopConnections = eventLoopConnections;
 	}
 	
-	public EventLoopGroup getNioEventLoopGroup() {
-		return nioEventLoopGroup;
+	// Channels kept connected and handshaken for replacement connections to take. Set before start.
+	public synchronized void setStandbyConnections(final int standbyConnections) {
+		this.standbyConnections = standbyConnections;
 	}
-
 	
-	public Collection<SendablePushNotification> getRemainNotifications() {
-		return this.notificationQueue.remainNotifications();
+	// Null without standby connections
+	public StandbyChannelPool getStandbyChannelPool() {
+		return this.standbyChannelPool;
 	}
 	
-	public synchronized void setPushControllerDelegate(final PushControllerDelegate delegate) {
-		this.delegate = delegate;
+	// From a connection ending to its replacement completing the TLS handshake
+	public LatencyHistogram getReconnectLatency() {
+		return this.reconnectLatency;
 	}
 	
-	public synchronized PushControllerDelegate getPushControllerDelegate() {
-		return this.delegate;
+	public ConnectionPoolMetrics getConnectionPoolMetrics() {
+		return this.connectionPoolMetrics;
 	}
 
 	public synchronized void start() {
-		for (int i = 0; i < APNConnectionManager.CONCURRENT_CONNECTIONS; i++) {
-			this.pushConnectionPool.submit(new PushRunnable(this.notificationQueue, this));
+		this.targetConnections = this.minConnections;
+		for (int i = 0; i < this.targetConnections; i++) {
+			this.openConnection(false);
+		}
+		this.connectionPoolMetrics.sample(this.connections.size(), this.targetConnections, this.notificationQueue.size(), 0);
+		if (this.standbyConnections > 0) {
+			// After the first connections, which have nothing to take yet
+			final StandbyChannelPool standbyChannelPool = new StandbyChannelPool(this, this.circuitBreaker, this.standbyConnections);
+			standbyChannelPool.start();
+			this.standbyChannelPool = standbyChannelPool;
+		}
+		if (this.maxConnections > this.minConnections) {
+			this.scalingTask = this.nioEventLoopGroup.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					adjustConnectionPool();
+				}
+			}, SCALING_INTERVAL_MILLISECONDS, SCALING_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
 		}
 	}
 	
-	public synchronized void stop() {
-		this.pushConnectionPool.shutdownNow();
-		this.nioEventLoopGroup.shutdownGracefully();
-	    try {
-	    		if (!this.pushConnectionPool.awaitTermination(60, TimeUnit.SECONDS)) {
-		           this.logger.warn("Pool did not terminate");
-		    }
-	    } catch (InterruptedException ie) {
-	    		this.pushConnectionPool.shutdownNow();
-	    		Thread.currentThread().interrupt();
-	    } finally {
-	    		this.delegate.pushControllerDidStop();
-	    }
-	}
-	
-	public void doPush(String token, String payload) throws InterruptedException {
-		if (token.length() == 64) {
-			SendablePushNotification notification = new SendablePushNotification(token, payload, null);
-			this.notificationQueue.put(notification);
+	// The reconnect latency of a replacement is measured from now
+	@Override
+	protected void openConnection(final boolean replacement) {
+		if (this.eventLoopConnections) {
+			final EventLoopPushConnection connection = new EventLoopPushConnection(this.notificationQueue, this);
+			this.addConnection(connection, replacement);
+			connection.start();
+		} else {
+			final PushRunnable connection = new PushRunnable(this.notificationQueue, this);
+			this.addConnection(connection, replacement);
+			this.pushConnectionPool.submit(connection);
 		}
 	}
-
+	
+	// Guarded by this
+	private void addConnection(final PushConnection connection, final boolean replacement) {
+		this.connections.add(connection);
+		if (replacement) {
+			this.replacementStarts.put(connection, System.nanoTime());
+		}
+	}
+	
+	// Grow by one connection when the queue keeps more than a batch per connection waiting while the write buffers
+	// of the connections stay filled, so the gateway rather than the producers is the limit. Shrink by one when
+	// the queue stays empty and the write buffers drained.
+	private synchronized void adjustConnectionPool() {
+		if (this.stopped) {
+			return;
+		}
+		final int queueDepth = this.notificationQueue.size();
+		double writeBufferUtilization = 0;
+		for (PushConnection connection : this.connections) {
+			writeBufferUtilization += connection.getWriteBufferUtilization();
+		}
+		writeBufferUtilization = this.connections.isEmpty() ? 0 : writeBufferUtilization / this.connections.size();
+		this.connectionPoolMetrics.sample(this.connections.size(), this.targetConnections, queueDepth, writeBufferUtilization);
+		
+		if (queueDepth > APNConnectionManager.BATCH_SIZE * this.connections.size() && writeBufferUtilization >= BUSY_WRITE_BUFFER_UTILIZATION) {
+			this.busySamples++;
+			this.idleSamples = 0;
+		} else if (queueDepth == 0 && writeBufferUtilization <= IDLE_WRITE_BUFFER_UTILIZATION) {
+			this.idleSamples++;
+			this.busySamples = 0;
+		} else {
+			this.busySamples = 0;
+			this.idleSamples = 0;
+		}
+		
+		if (this.busySamples >= GROW_AFTER_BUSY_SAMPLES && this.targetConnections < this.maxConnections
+				&& this.circuitBreaker.getState() == GatewayCircuitBreaker.State.CLOSED) {
+			this.busySamples = 0;
+			this.targetConnections++;
+			this.openConnection(false);
+			this.connectionPoolMetrics.decided(ConnectionPoolMetrics.ScalingDecision.GROW, this.targetConnections);
+			this.logger.info(String.format("Connection pool grown to %d, queue depth %d, write buffer utilization %.2f", this.targetConnections, queueDepth, writeBufferUtilization));
+		} else if (this.idleSamples >= SHRINK_AFTER_IDLE_SAMPLES && this.targetConnections > this.minConnections && !this.connections.isEmpty()) {
+			this.idleSamples = 0;
+			this.targetConnections--;
+			this.connections.iterator().next().terminate(); // Not replaced, pushRunnableWillTerminate finds the pool at its target
+			this.connectionPoolMetrics.decided(ConnectionPoolMetrics.ScalingDecision.SHRINK, this.targetConnections);
+			this.logger.info(String.format("Connection pool shrunk to %d", this.targetConnections));
+		}
+	}
+	
 	@Override
-	public synchronized void pushRunnableWillTerminate() {
-		this.pushConnectionPool.submit(new PushRunnable(this.notificationQueue, this));
+	protected int targetConnectionCount() {
+		return this.targetConnections;
 	}
-
+	
+	@Override
+	protected void willStop() {
+		if (this.scalingTask != null) {
+			this.scalingTask.cancel(false);
+		}
+		if (this.standbyChannelPool != null) {
+			this.standbyChannelPool.close();
+		}
+		this.pushConnectionPool.shutdownNow();
+	}
+	
+	@Override
+	protected boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.pushConnectionPool.awaitTermination(timeout, unit) && super.awaitTermination(timeout, unit);
+	}
+	
+	// A replacement that ends before its handshake is not measured. Connections terminated by shrinking are not replaced,
+	// replaceConnections() finds the pool at its target.
+	@Override
+	protected void connectionDidEnd(final PushConnection connection) {
+		this.replacementStarts.remove(connection);
+	}
+	
+	@Override
+	public Channel takeStandbyChannel(final String name, final ChannelHandler handler) {
+		final StandbyChannelPool standbyChannelPool = this.standbyChannelPool;
+		return standbyChannelPool == null ? null : standbyChannelPool.take(name, handler);
+	}
+	
 	@Override
-	public synchronized void reportRejectedNotification(final String token, final RejectedNotificationReason reason) {
-		this.delegate.handleRejectedNotification(token, reason);
+	protected void connectionDidEstablish(final PushConnection connection) {
+		if (this.standbyChannelPool != null) {
+			this.standbyChannelPool.refill(); // Paused while the breaker was not closed
+		}
+		final Long replacementStart = this.replacementStarts.remove(connection);
+		if (replacementStart != null) {
+			this.reconnectLatency.record(System.nanoTime() - replacementStart);
+		}
 	}
 }
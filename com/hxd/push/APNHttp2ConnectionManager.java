@@ -0,0 +1,118 @@
+package com.hxd.push;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+
+import java.security.KeyStoreException;
+import java.util.concurrent.TimeUnit;
+
+// A PushController for the APNs HTTP/2 provider API. A few Http2PushConnection, each multiplexing up to
+// maxConcurrentStreams notifications, replace the many binary protocol connections of APNConnectionManager:
+// a rejected notification is answered on its own stream and does not cost a reconnect.
+// Reconnects go through a GatewayCircuitBreaker as in APNConnectionManager, producers are held while it is open.
+// It authenticates either by the client certificate of a PKCS12 key store, or by an ApnsProviderToken refreshed on
+// a schedule; with a token one set of connections sends to every topic of the team.
+public class APNHttp2ConnectionManager extends AbstractPushController {
+
+	public static final int DEFAULT_CONNECTIONS = 2;
+	public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 1000;
+
+	private final ApnsProviderToken providerToken;
+	private int connectionCount = APNHttp2ConnectionManager.DEFAULT_CONNECTIONS;
+	private int maxConcurrentStreams = APNHttp2ConnectionManager.DEFAULT_MAX_CONCURRENT_STREAMS;
+	private String topic;
+	private long providerTokenRefreshMillis = ApnsProviderToken.DEFAULT_REFRESH_INTERVAL_MILLISECONDS;
+
+	// Every notification in flight is reclaimed when its connection ends, the reclaim queue takes all streams of all connections
+	public static int queueCapacity(final int connections, final int maxConcurrentStreams) {
+		return Math.max(APNConnectionManager.MAX_PRODUCER_QUEUE_SIZE, maxConcurrentStreams * (connections + 1));
+	}
+
+	public APNHttp2ConnectionManager(APNSEnviroment apnsEnviroment, final String apsPKCS12FilePath, final String password, final PushControllerDelegate delegate) throws KeyStoreException {
+		this(apnsEnviroment, apsPKCS12FilePath, password, delegate, new NotificationQueue(APNConnectionManager.MAX_PRODUCER_QUEUE_SIZE));
+	}
+
+	public APNHttp2ConnectionManager(APNSEnviroment apnsEnviroment, final String apsPKCS12FilePath, final String password, final PushControllerDelegate delegate, final ReclaimableNotificationQueue notificationQueue) throws KeyStoreException {
+		super(apnsEnviroment, AbstractPushController.loadKeyStore(apsPKCS12FilePath, password.toCharArray()), password.toCharArray(), true, delegate, notificationQueue);
+		this.providerToken = null;
+	}
+
+	// Provider token authentication, no client certificate is presented
+	public APNHttp2ConnectionManager(APNSEnviroment apnsEnviroment, final ApnsProviderToken providerToken, final PushControllerDelegate delegate, final ReclaimableNotificationQueue notificationQueue) {
+		super(apnsEnviroment, null, new char[0], true, delegate, notificationQueue);
+		this.providerToken = providerToken;
+	}
+
+	// Set before start
+	public synchronized void setConnectionCount(final int connectionCount) {
+		if (connectionCount <= 0) {
+			throw new IllegalArgumentException("Illegal connection count: " + connectionCount);
+		}
+		this.connectionCount = connectionCount;
+	}
+
+	// Streams in flight per connection, lowered further by the SETTINGS of the gateway. Set before start.
+	public synchronized void setMaxConcurrentStreams(final int maxConcurrentStreams) {
+		if (maxConcurrentStreams <= 0) {
+			throw new IllegalArgumentException("Illegal max concurrent streams: " + maxConcurrentStreams);
+		}
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	// The apns-topic of notifications without a topic of their own, null for the topic of the certificate. Set before start.
+	public synchronized void setTopic(final String topic) {
+		this.topic = topic;
+	}
+
+	// How often the provider token is signed anew. Set before start.
+	public synchronized void setProviderTokenRefreshInterval(final long refreshInterval, final TimeUnit unit) {
+		this.providerTokenRefreshMillis = unit.toMillis(refreshInterval);
+	}
+
+	// Null with certificate authentication
+	public ApnsProviderToken getProviderToken() {
+		return this.providerToken;
+	}
+
+	// The queue must have at least queueCapacity(connections, maxConcurrentStreams)
+	public synchronized void start() {
+		final int queueCapacity = APNHttp2ConnectionManager.queueCapacity(this.connectionCount, this.maxConcurrentStreams);
+		if (this.notificationQueue.capacity() < queueCapacity) {
+			throw new IllegalStateException(String.format("A queue of %d notifications cannot take back the %d streams of %d connections, %d needed",
+					this.notificationQueue.capacity(), this.maxConcurrentStreams, this.connectionCount, queueCapacity));
+		}
+		if (this.providerToken != null) {
+			this.providerToken.refresh(); // Not signed by the first requests on the event loop
+			this.providerToken.start(this.nioEventLoopGroup, this.providerTokenRefreshMillis, TimeUnit.MILLISECONDS);
+		}
+		for (int i = 0; i < this.connectionCount; i++) {
+			this.openConnection(false);
+		}
+	}
+
+	// HTTP/2 connections are not measured, a replacement opens like any other
+	@Override
+	protected void openConnection(final boolean replacement) {
+		final Http2PushConnection connection = new Http2PushConnection(this.notificationQueue, this, this.topic, this.maxConcurrentStreams, this.providerToken);
+		this.connections.add(connection);
+		connection.start();
+	}
+
+	@Override
+	protected int targetConnectionCount() {
+		return this.connectionCount;
+	}
+
+	@Override
+	protected void willStop() {
+		if (this.providerToken != null) {
+			this.providerToken.stop();
+		}
+	}
+
+	// HTTP/2 connections live long and are not replaced per rejection, there is no standby pool
+	@Override
+	public Channel takeStandbyChannel(final String name, final ChannelHandler handler) {
+		return null;
+	}
+}
@@ -1,5 +1,6 @@
 package com.hxd.push;
 
+import javax.net.ssl.TrustManagerFactory;
 
 public class APNSEnviroment {
 	private final String apnsGatewayHost;
@@ -8,12 +9,21 @@ public class APNSEnviroment {
 	private final String feedbackHost;
 	private final int feedbackPort;
 	
+	// null means the platform default trust store
+	private final TrustManagerFactory trustManagerFactory;
+	
 	public APNSEnviroment(final String apnsGatewayHost, final int apnsGatewayPort, final String feedbackHost, final int feedbackPort) {
+		this(apnsGatewayHost, apnsGatewayPort, feedbackHost, feedbackPort, null);
+	}
+	
+	public APNSEnviroment(final String apnsGatewayHost, final int apnsGatewayPort, final String feedbackHost, final int feedbackPort, final TrustManagerFactory trustManagerFactory) {
 		this.apnsGatewayHost = apnsGatewayHost;
 		this.apnsGatewayPort = apnsGatewayPort;
 		
 		this.feedbackHost = feedbackHost;
 		this.feedbackPort = feedbackPort;
+		
+		this.trustManagerFactory = trustManagerFactory;
 	}
 
 	public String getApnsGatewayHost() {
@@ -32,6 +42,10 @@ public class APNSEnviroment {
 		return this.feedbackPort;
 	}
 
+	public TrustManagerFactory getTrustManagerFactory() {
+		return this.trustManagerFactory;
+	}
+
 	public static APNSEnviroment getProductionEnvironment() {
 		return new APNSEnviroment("gateway.push.apple.com", 2195, "feedback.push.apple.com", 2196);
 	}
@@ -39,4 +53,13 @@ public class APNSEnviroment {
 	public static APNSEnviroment getSandboxEnvironment() {
 		return new APNSEnviroment("gateway.sandbox.push.apple.com", 2195, "feedback.sandbox.push.apple.com", 2196);
 	}
+	
+	// The HTTP/2 provider API, which reports unregistered tokens in its responses instead of a feedback service
+	public static APNSEnviroment getHttp2ProductionEnvironment() {
+		return new APNSEnviroment("api.push.apple.com", 443, "feedback.push.apple.com", 2196);
+	}
+
+	public static APNSEnviroment getHttp2SandboxEnvironment() {
+		return new APNSEnviroment("api.sandbox.push.apple.com", 443, "feedback.sandbox.push.apple.com", 2196);
+	}
 }
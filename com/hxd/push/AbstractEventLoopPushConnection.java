@@ -0,0 +1,159 @@
+package com.hxd.push;
+
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// The pump of a push connection driven by the event loop of its channel, without a thread of its own.
+// Notifications are pulled from the queue whenever the channel can take them, and on a timer backing off up to
+// MAX_IDLE_POLL_NANOS while the queue is empty. Written notifications are flushed as the FlushStrategy decides,
+// and at the latest its max flush delay after the first of them. Subclasses write the notifications, decide when
+// pumping stops, and call pump() when the channel can take more.
+// ThreadSafe: the state is confined to the event loop of the channel.
+public abstract class AbstractEventLoopPushConnection implements PushConnection {
+
+	private static final long MIN_IDLE_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long MAX_IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// Batches written before the event loop is handed to the other channels
+	private static final int MAX_BATCHES_PER_PUMP = 4;
+
+	protected final NotificationReclaimableConsumeQueue notificationQueue;
+	protected final PushController controller;
+	protected final FlushStrategy flushStrategy;
+	private final List<SendablePushNotification> batch = new ArrayList<SendablePushNotification>(APNConnectionManager.BATCH_SIZE);
+	private final Runnable pump = new Runnable() {
+		@Override
+		public void run() {
+			pump();
+		}
+	};
+
+	protected volatile Channel channel;
+	protected volatile boolean requestTermination = false;
+
+	// Event loop only
+	private ScheduledFuture<?> scheduledPump;
+	private long idlePollNanos = MIN_IDLE_POLL_NANOS;
+	private int pendingNotifications = 0;
+	private long pendingBytes = 0;
+	private long pendingSince = 0;
+
+	protected AbstractEventLoopPushConnection(final NotificationReclaimableConsumeQueue notificationQueue, final PushController controller) {
+		this.notificationQueue = notificationQueue;
+		this.controller = controller;
+		this.flushStrategy = controller.getFlushStrategy();
+	}
+
+	// Whether the connection sends at all, asked before every pump
+	protected abstract boolean canPump();
+
+	// How many more notifications the connection takes besides what the channel is writable for
+	protected abstract int writeLimit();
+
+	// Write without flushing, then account it by written()
+	protected abstract void write(final SendablePushNotification notification);
+
+	@Override
+	public double getWriteBufferUtilization() {
+		return PushRunnable.writeBufferUtilization(this.channel);
+	}
+
+	protected void pump() {
+		this.cancelPump();
+		if (!this.canPump() || this.requestTermination || !this.channel.isActive()) {
+			return;
+		}
+		int batches = 0;
+		boolean drained = false;
+		int writeLimit;
+		while (this.channel.isWritable() && (writeLimit = this.writeLimit()) > 0) {
+			if (batches == MAX_BATCHES_PER_PUMP) {
+				// Scheduled rather than executed: the event loop checks its task time budget only every 64 tasks,
+				// pumps executed back to back would keep it from reading for up to a second.
+				// Scheduled tasks wait for the next selection.
+				this.flushIfDue();
+				this.schedulePump(0);
+				return;
+			}
+			this.batch.clear();
+			if (this.drainNotifications(Math.min(APNConnectionManager.BATCH_SIZE, writeLimit)) == 0) {
+				drained = true;
+				break;
+			}
+			for (SendablePushNotification notification : this.batch) {
+				this.write(notification);
+			}
+			batches++;
+		}
+		if (!drained) {
+			// Not writable or at the write limit, what is pending has to go out for the channel to drain or to be
+			// answered. The subclass pumps again once it can take more.
+			this.flushPending();
+			return;
+		}
+		this.flushIfDue();
+		this.idlePollNanos = batches > 0 ? MIN_IDLE_POLL_NANOS : Math.min(this.idlePollNanos << 1, MAX_IDLE_POLL_NANOS);
+		long delayNanos = this.idlePollNanos;
+		if (this.pendingNotifications > 0) {
+			delayNanos = Math.min(delayNanos, this.pendingSince + this.flushStrategy.getMaxFlushDelayNanos() - System.nanoTime());
+		}
+		this.schedulePump(Math.max(0, delayNanos));
+	}
+
+	private int drainNotifications(final int maxNotifications) {
+		try {
+			return this.notificationQueue.drainNotifications(this.batch, maxNotifications, 0, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// Event loop threads are not interrupted, and nothing waits with a zero timeout
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	private void schedulePump(final long delayNanos) {
+		if (this.scheduledPump == null) {
+			this.scheduledPump = this.channel.eventLoop().schedule(this.pump, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	// At most one timer, whoever called
+	protected void cancelPump() {
+		if (this.scheduledPump != null) {
+			this.scheduledPump.cancel(false);
+			this.scheduledPump = null;
+		}
+	}
+
+	// A notification of the given length on the wire was written, flushed if the flush strategy says so
+	protected void written(final long bytes) {
+		final long now = System.nanoTime();
+		if (this.pendingNotifications++ == 0) {
+			this.pendingSince = now;
+		}
+		this.pendingBytes += bytes;
+		if (this.flushStrategy.shouldFlush(this.pendingNotifications, this.pendingBytes, now - this.pendingSince)) {
+			this.flush();
+		}
+	}
+
+	private void flushIfDue() {
+		if (this.pendingNotifications > 0 && System.nanoTime() - this.pendingSince >= this.flushStrategy.getMaxFlushDelayNanos()) {
+			this.flush();
+		}
+	}
+
+	protected void flushPending() {
+		if (this.pendingNotifications > 0) {
+			this.flush();
+		}
+	}
+
+	private void flush() {
+		this.channel.flush();
+		this.pendingNotifications = 0;
+		this.pendingBytes = 0;
+	}
+}
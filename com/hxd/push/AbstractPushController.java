@@ -0,0 +1,316 @@
+package com.hxd.push;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// What APNConnectionManager and APNHttp2ConnectionManager have in common: the TLS context, the queue the producers
+// feed, the invalid token filter and the life of the connections. A connection that ends is replaced unless the
+// controller is stopped, after the circuit breaker delay if it failed to connect or could not send.
+// Producers are held while the breaker is not closed. Subclasses decide how many connections of which kind run.
+public abstract class AbstractPushController implements PushController {
+
+	private final Logger logger = LoggerFactory.getLogger(AbstractPushController.class);
+	private final char[] keystorePassword;
+	private final APNSEnviroment apnsEnviroment;
+	private final KeyStore keyStore;
+	private final ApnsClientSslContext sslContext;
+	protected final EventLoopGroup nioEventLoopGroup;
+	protected final ReclaimableNotificationQueue notificationQueue;
+	protected final GatewayCircuitBreaker circuitBreaker = new GatewayCircuitBreaker();
+	// Guarded by this
+	protected final Set<PushConnection> connections = new HashSet<PushConnection>();
+	// Connections that completed their TLS handshake, the others failed to connect when they end
+	private final Set<PushConnection> establishedConnections = new HashSet<PushConnection>();
+
+	private PushControllerDelegate delegate;
+	// Guarded by this
+	protected boolean stopped = false;
+	private int scheduledReplacements = 0;
+	private FlushStrategy flushStrategy = new SizeFlushStrategy(APNConnectionManager.BATCH_SIZE, 0, TimeUnit.MILLISECONDS);
+	private volatile InvalidTokenFilter invalidTokenFilter;
+
+	// A null keyStore presents no client certificate. With http2 the TLS context negotiates h2.
+	protected AbstractPushController(final APNSEnviroment apnsEnviroment, final KeyStore keyStore, final char[] keystorePassword, final boolean http2,
+			final PushControllerDelegate delegate, final ReclaimableNotificationQueue notificationQueue) {
+		this.apnsEnviroment = apnsEnviroment;
+		this.keyStore = keyStore;
+		this.keystorePassword = keystorePassword;
+		this.nioEventLoopGroup = new NioEventLoopGroup();
+		this.notificationQueue = notificationQueue;
+		this.delegate = delegate;
+		this.sslContext = new ApnsClientSslContext(keyStore, keystorePassword, apnsEnviroment.getTrustManagerFactory(), http2);
+	}
+
+	// A key store that can not be read is left unloaded, the handshakes fail then
+	protected static KeyStore loadKeyStore(final String apsPKCS12FilePath, final char[] password) throws KeyStoreException {
+		final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		FileInputStream keystoreInputStream = null;
+		try {
+			keystoreInputStream = new FileInputStream(apsPKCS12FilePath);
+			keyStore.load(keystoreInputStream, password);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (keystoreInputStream != null) {
+				try {
+					keystoreInputStream.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return keyStore;
+	}
+
+	public APNSEnviroment getApnsEnviroment() {
+		return apnsEnviroment;
+	}
+
+	// Null with provider token authentication
+	public KeyStore getKeyStore() {
+		return keyStore;
+	}
+
+	public char[] getKeystorePassword() {
+		return keystorePassword;
+	}
+
+	// Shared by all connections
+	public ApnsClientSslContext getSslContext() {
+		return sslContext;
+	}
+
+	public TlsHandshakeMetrics getHandshakeMetrics() {
+		return this.sslContext.getHandshakeMetrics();
+	}
+
+	public EventLoopGroup getNioEventLoopGroup() {
+		return nioEventLoopGroup;
+	}
+
+	public Collection<SendablePushNotification> getRemainNotifications() {
+		return this.notificationQueue.remainNotifications();
+	}
+
+	public synchronized void setPushControllerDelegate(final PushControllerDelegate delegate) {
+		this.delegate = delegate;
+	}
+
+	public synchronized PushControllerDelegate getPushControllerDelegate() {
+		return this.delegate;
+	}
+
+	// Applies to connections created afterwards
+	public synchronized void setFlushStrategy(final FlushStrategy flushStrategy) {
+		this.flushStrategy = flushStrategy;
+	}
+
+	public synchronized FlushStrategy getFlushStrategy() {
+		return this.flushStrategy;
+	}
+
+	// Notifications to tokens the filter reports are dropped by doPush, tokens rejected as invalid are added to it.
+	// The controller lets go of the filter before it tells its delegate it stopped.
+	public void setInvalidTokenFilter(final InvalidTokenFilter invalidTokenFilter) {
+		this.invalidTokenFilter = invalidTokenFilter;
+	}
+
+	public InvalidTokenFilter getInvalidTokenFilter() {
+		return this.invalidTokenFilter;
+	}
+
+	public GatewayCircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	// Guarded by this. A replacement is a connection opened for one that ended.
+	protected abstract void openConnection(final boolean replacement);
+
+	// Guarded by this. The connections replaceConnections() keeps open.
+	protected abstract int targetConnectionCount();
+
+	// Guarded by this. Stop what opens or scales connections, called before the connections are terminated.
+	protected void willStop() {
+	}
+
+	// Wait for every connection to end, return false on timeout
+	protected boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.awaitConnections(timeout, unit);
+	}
+
+	// Guarded by this. The connection is no longer in connections.
+	protected void connectionDidEnd(final PushConnection connection) {
+	}
+
+	// Guarded by this. The connection completed its TLS handshake.
+	protected void connectionDidEstablish(final PushConnection connection) {
+	}
+
+	// Does not hold the lock while waiting, terminating connections call back into pushRunnableWillTerminate.
+	// The event loop group is shut down once every connection ended, before the delegate is told.
+	public void stop() {
+		final List<PushConnection> connections;
+		synchronized (this) {
+			this.stopped = true;
+			this.willStop();
+			this.circuitBreaker.shutdown();
+			connections = new ArrayList<PushConnection>(this.connections);
+		}
+		for (PushConnection connection : connections) {
+			connection.terminate();
+		}
+		try {
+			if (!this.awaitTermination(60, TimeUnit.SECONDS)) {
+				this.logger.warn("Connections did not terminate");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			this.nioEventLoopGroup.shutdownGracefully();
+			this.detachInvalidTokenFilter();
+			this.delegate.pushControllerDidStop();
+		}
+	}
+
+	// Connections that did not end in time may still report rejections, they must not reach a filter the delegate
+	// releases once told. Rejections are reported under the same lock.
+	private synchronized void detachInvalidTokenFilter() {
+		this.invalidTokenFilter = null;
+	}
+
+	// Wait for every connection to end, return false on timeout
+	protected synchronized boolean awaitConnections(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!this.connections.isEmpty()) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	public void doPush(String token, String payload) throws InterruptedException {
+		final byte[] tokenBytes = DeviceTokenCodec.decodeLenient(token);
+		if (tokenBytes != null && !this.isKnownInvalid(tokenBytes)) {
+			SendablePushNotification notification = new SendablePushNotification(tokenBytes, payload, null);
+			this.circuitBreaker.awaitClosed();
+			this.notificationQueue.put(notification);
+		}
+	}
+
+	public void doPush(byte[] token, BroadcastPayload payload) throws InterruptedException {
+		this.doPush(new SendablePushNotification(token, payload, null));
+	}
+
+	// A notification that is not queued is acknowledged right away. Blocks while the circuit breaker is not closed.
+	public void doPush(SendablePushNotification notification) throws InterruptedException {
+		final byte[] token = notification.getTokenBytes();
+		if (token.length == DeviceTokenCodec.TOKEN_LENGTH && !this.isKnownInvalid(token)) {
+			this.circuitBreaker.awaitClosed();
+			this.notificationQueue.put(notification);
+		} else {
+			notification.acknowledge();
+		}
+	}
+
+	private boolean isKnownInvalid(final byte[] token) {
+		final InvalidTokenFilter invalidTokenFilter = this.invalidTokenFilter;
+		return invalidTokenFilter != null && invalidTokenFilter.mightContain(token);
+	}
+
+	@Override
+	public synchronized void pushRunnableWillTerminate(final PushConnection connection) {
+		this.connections.remove(connection);
+		this.connectionDidEnd(connection);
+		if (!this.establishedConnections.remove(connection) && !this.stopped) {
+			this.circuitBreaker.connectFailed();
+		}
+		this.replaceConnections();
+		this.notifyAll();
+	}
+
+	// Guarded by this. A replacement scheduled after a backoff opens its connection when the backoff is over unless
+	// the breaker opened meanwhile: while closed the breaker keeps answering with a backoff until a connect succeeds.
+	protected void replaceConnections() {
+		while (!this.stopped && this.connections.size() + this.scheduledReplacements < this.targetConnectionCount()) {
+			final long delay = this.circuitBreaker.reconnectDelayMillis();
+			if (delay == 0) {
+				this.openConnection(true);
+				continue;
+			}
+			this.scheduledReplacements++;
+			this.nioEventLoopGroup.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (AbstractPushController.this) {
+						scheduledReplacements--;
+						if (!stopped && connections.size() + scheduledReplacements < targetConnectionCount()
+								&& circuitBreaker.getState() == GatewayCircuitBreaker.State.CLOSED) {
+							openConnection(true);
+						}
+						replaceConnections();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void pushConnectionDidConnect(final PushConnection connection, final Channel channel) {
+		channel.pipeline().get(SslHandler.class).handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+			@Override
+			public void operationComplete(final Future<Channel> future) throws Exception {
+				if (future.isSuccess()) {
+					pushConnectionDidEstablish(connection);
+				}
+			}
+		});
+	}
+
+	private synchronized void pushConnectionDidEstablish(final PushConnection connection) {
+		if (!this.connections.contains(connection)) {
+			return; // Ended meanwhile
+		}
+		this.establishedConnections.add(connection);
+		this.circuitBreaker.connectSucceeded();
+		this.connectionDidEstablish(connection);
+	}
+
+	@Override
+	public void pushConnectionDidFail(final PushConnection connection, final String cause) {
+		this.logger.error("Push connection can not send, closing it. Because: " + cause);
+		this.circuitBreaker.trip();
+	}
+
+	@Override
+	public synchronized void reportRejectedNotification(final String token, final RejectedNotificationReason reason) {
+		final InvalidTokenFilter invalidTokenFilter = this.invalidTokenFilter;
+		if (invalidTokenFilter != null && (reason == RejectedNotificationReason.INVALID_TOKEN || reason == RejectedNotificationReason.INVALID_TOKEN_SIZE)) {
+			final byte[] tokenBytes = DeviceTokenCodec.decode(token);
+			if (tokenBytes != null) {
+				invalidTokenFilter.add(tokenBytes);
+			}
+		}
+		this.delegate.handleRejectedNotification(token, reason);
+	}
+}
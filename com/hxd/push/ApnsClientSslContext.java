@@ -0,0 +1,105 @@
+package com.hxd.push;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The client TLS context shared by the connections of an APNConnectionManager or a FeedbackService.
+// Key and trust managers are built from the key store once, on first use, instead of for every channel.
+// Handlers are created for the peer host and port, so the session cache of the context resumes the session of an
+// earlier connection to the same service: a reconnect after a rejection skips the certificate exchange.
+// OpenSSL is used when netty-tcnative is on the classpath.
+// ThreadSafe
+public class ApnsClientSslContext {
+
+	private final Logger logger = LoggerFactory.getLogger(ApnsClientSslContext.class);
+	private final KeyStore keyStore;
+	private final char[] keyStorePassword;
+	private final TrustManagerFactory trustManagerFactory;
+	private final boolean http2;
+	private final TlsHandshakeMetrics handshakeMetrics = new TlsHandshakeMetrics();
+
+	private SslContext sslContext; // Guarded by this
+
+	// A null trustManagerFactory means the platform default trust store
+	public ApnsClientSslContext(final KeyStore keyStore, final char[] keyStorePassword, final TrustManagerFactory trustManagerFactory) {
+		this(keyStore, keyStorePassword, trustManagerFactory, false);
+	}
+	
+	// With http2 the handshake negotiates h2 by ALPN, for the HTTP/2 provider API.
+	// A null keyStore presents no client certificate, the requests carry a provider token instead.
+	public ApnsClientSslContext(final KeyStore keyStore, final char[] keyStorePassword, final TrustManagerFactory trustManagerFactory, final boolean http2) {
+		this.keyStore = keyStore;
+		this.keyStorePassword = keyStorePassword;
+		this.trustManagerFactory = trustManagerFactory;
+		this.http2 = http2;
+	}
+
+	public synchronized SslContext getSslContext() throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, SSLException {
+		if (this.sslContext == null) {
+			this.sslContext = SslHandlerUtil.createSslContext(this.keyStore, this.keyStorePassword, this.trustManagerFactory, this.http2);
+			this.logger.info("Client TLS context created with " + SslHandlerUtil.getSslProvider());
+		}
+		return this.sslContext;
+	}
+
+	public TlsHandshakeMetrics getHandshakeMetrics() {
+		return this.handshakeMetrics;
+	}
+
+	// Add "ssl" to the pipeline of a channel to the given peer, followed by a handler timing its handshake
+	public void configurePipeline(final ChannelPipeline pipeline, final String host, final int port) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, SSLException {
+		final SslHandler sslHandler = this.getSslContext().newHandler(pipeline.channel().alloc(), host, port);
+		pipeline.addLast("ssl", sslHandler);
+		pipeline.addLast("handshakeMetrics", new HandshakeTimer(sslHandler));
+	}
+
+	// Removes itself once the handshake completed
+	private class HandshakeTimer extends ChannelInboundHandlerAdapter {
+
+		private final SslHandler sslHandler;
+		private long activeNanos;
+		private long activeMillis;
+
+		HandshakeTimer(final SslHandler sslHandler) {
+			this.sslHandler = sslHandler;
+		}
+
+		@Override
+		public void channelActive(final ChannelHandlerContext context) throws Exception {
+			this.activeNanos = System.nanoTime();
+			this.activeMillis = System.currentTimeMillis();
+			super.channelActive(context);
+		}
+
+		@Override
+		public void userEventTriggered(final ChannelHandlerContext context, final Object event) throws Exception {
+			if (event instanceof SslHandshakeCompletionEvent) {
+				if (((SslHandshakeCompletionEvent)event).isSuccess()) {
+					// A resumed session was created by an earlier handshake
+					final SSLSession session = this.sslHandler.engine().getSession();
+					handshakeMetrics.handshakeSucceeded(System.nanoTime() - this.activeNanos, session.getCreationTime() < this.activeMillis);
+				} else {
+					handshakeMetrics.handshakeFailed();
+				}
+				context.pipeline().remove(this);
+			}
+			super.userEventTriggered(context, event);
+		}
+	}
+}
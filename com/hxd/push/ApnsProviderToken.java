@@ -0,0 +1,218 @@
+package com.hxd.push;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.AsciiString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+// The provider authentication token of the APNs HTTP/2 API: a JWT signed with ES256 by the .p8 key of the team.
+// Signing costs an ECDSA operation, so the token is signed once and sent as the authorization of every request
+// until it is refreshed: on a schedule every refresh interval (APNs rejects tokens older than an hour and refreshes
+// more often than every 20 minutes), or when the gateway reported the current token expired.
+// A token is not bound to a topic, one connection set sends for every app of the team.
+// ThreadSafe
+public class ApnsProviderToken {
+
+	public static final long DEFAULT_REFRESH_INTERVAL_MILLISECONDS = TimeUnit.MINUTES.toMillis(50);
+	// A token younger than this is not refreshed when reported expired, the report is about an older one or the clock
+	private static final long MIN_TOKEN_AGE_MILLISECONDS = TimeUnit.SECONDS.toMillis(10);
+	private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+	// An ES256 signature is r and s of 32 bytes each, JWS carries them concatenated rather than DER encoded
+	private static final int SIGNATURE_COMPONENT_LENGTH = 32;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Gson GSON = new Gson();
+
+	private final Logger logger = LoggerFactory.getLogger(ApnsProviderToken.class);
+	private final PrivateKey signingKey;
+	private final String teamId;
+	private final String keyId;
+	private final AtomicLong signedTokens = new AtomicLong(0);
+
+	private volatile AsciiString authorization;
+	private long issuedAt; // Guarded by this
+	private ScheduledFuture<?> refreshTask; // Guarded by this
+
+	public ApnsProviderToken(final PrivateKey signingKey, final String teamId, final String keyId) {
+		this.signingKey = signingKey;
+		this.teamId = teamId;
+		this.keyId = keyId;
+	}
+
+	// The PKCS#8 .p8 file of the signing key as downloaded from the developer account
+	public static ApnsProviderToken fromP8File(final String p8FilePath, final String teamId, final String keyId) throws IOException, GeneralSecurityException {
+		final String pem = new String(Files.readAllBytes(new File(p8FilePath).toPath()), UTF8);
+		final String base64 = pem.replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "").replaceAll("\\s", "");
+		final PrivateKey signingKey = KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64)));
+		return new ApnsProviderToken(signingKey, teamId, keyId);
+	}
+
+	// The value of the authorization header, "bearer" and the current token. Signed on first use.
+	public AsciiString getAuthorization() {
+		final AsciiString authorization = this.authorization;
+		return authorization != null ? authorization : this.refresh();
+	}
+
+	// Sign a new token and use it from now on
+	public synchronized AsciiString refresh() {
+		final long now = System.currentTimeMillis();
+		final Map<String, Object> header = new LinkedHashMap<String, Object>();
+		header.put("alg", "ES256");
+		header.put("kid", this.keyId);
+		final Map<String, Object> claims = new LinkedHashMap<String, Object>();
+		claims.put("iss", this.teamId);
+		claims.put("iat", TimeUnit.MILLISECONDS.toSeconds(now));
+		final String signingInput = base64Url(GSON.toJson(header).getBytes(UTF8)) + "." + base64Url(GSON.toJson(claims).getBytes(UTF8));
+		try {
+			final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+			signature.initSign(this.signingKey);
+			signature.update(signingInput.getBytes(UTF8));
+			this.authorization = new AsciiString("bearer " + signingInput + "." + base64Url(derToJose(signature.sign())));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Signing the provider token failed", e);
+		}
+		this.issuedAt = now;
+		this.signedTokens.incrementAndGet();
+		this.logger.debug("Provider token signed");
+		return this.authorization;
+	}
+
+	// The gateway answered ExpiredProviderToken to a request sent with the given authorization
+	public synchronized void expired(final AsciiString rejectedAuthorization) {
+		if (rejectedAuthorization == this.authorization && System.currentTimeMillis() - this.issuedAt >= MIN_TOKEN_AGE_MILLISECONDS) {
+			this.logger.warn("Provider token reported expired, signing a new one");
+			this.refresh();
+		}
+	}
+
+	// Refresh on the given event loop group every interval until stop()
+	public synchronized void start(final EventLoopGroup scheduler, final long refreshInterval, final TimeUnit unit) {
+		if (this.refreshTask != null) {
+			return;
+		}
+		this.refreshTask = scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, refreshInterval, refreshInterval, unit);
+	}
+
+	public synchronized void stop() {
+		if (this.refreshTask != null) {
+			this.refreshTask.cancel(false);
+			this.refreshTask = null;
+		}
+	}
+
+	public long getSignedTokenCount() {
+		return this.signedTokens.get();
+	}
+
+	public String getTeamId() {
+		return this.teamId;
+	}
+
+	public String getKeyId() {
+		return this.keyId;
+	}
+
+	// The issue time of a token in seconds if it is signed by the key of the given public key, -1 otherwise.
+	// For MockAPNSHttp2Gateway of the benchmarks, which verifies the tokens it is sent as APNs does.
+	static long verify(final String token, final PublicKey publicKey) {
+		final int claimsStart = token.indexOf('.');
+		final int signatureStart = token.lastIndexOf('.');
+		if (claimsStart < 0 || signatureStart <= claimsStart) {
+			return -1;
+		}
+		try {
+			final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+			signature.initVerify(publicKey);
+			signature.update(token.substring(0, signatureStart).getBytes(UTF8));
+			if (!signature.verify(joseToDer(Base64.getUrlDecoder().decode(token.substring(signatureStart + 1))))) {
+				return -1;
+			}
+			final Claims claims = GSON.fromJson(new String(Base64.getUrlDecoder().decode(token.substring(claimsStart + 1, signatureStart)), UTF8), Claims.class);
+			return claims != null ? claims.iat : -1;
+		} catch (GeneralSecurityException e) {
+			return -1;
+		} catch (RuntimeException e) {
+			return -1; // Malformed base64 or JSON
+		}
+	}
+
+	private static String base64Url(final byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	// DER SEQUENCE { INTEGER r, INTEGER s } to r and s left padded to 32 bytes each
+	static byte[] derToJose(final byte[] der) {
+		final byte[] jose = new byte[SIGNATURE_COMPONENT_LENGTH * 2];
+		int offset = (der[1] & 0x80) != 0 ? 3 : 2; // Past the sequence header, its length may take a second byte
+		for (int component = 0; component < 2; component++) {
+			final int length = der[offset + 1];
+			int start = offset + 2;
+			int componentLength = length;
+			while (componentLength > SIGNATURE_COMPONENT_LENGTH) {
+				start++; // Sign byte
+				componentLength--;
+			}
+			System.arraycopy(der, start, jose, (component + 1) * SIGNATURE_COMPONENT_LENGTH - componentLength, componentLength);
+			offset += 2 + length;
+		}
+		return jose;
+	}
+
+	static byte[] joseToDer(final byte[] jose) {
+		if (jose.length != SIGNATURE_COMPONENT_LENGTH * 2) {
+			throw new IllegalArgumentException("Illegal ES256 signature length: " + jose.length);
+		}
+		final byte[] r = derInteger(Arrays.copyOfRange(jose, 0, SIGNATURE_COMPONENT_LENGTH));
+		final byte[] s = derInteger(Arrays.copyOfRange(jose, SIGNATURE_COMPONENT_LENGTH, jose.length));
+		final byte[] der = new byte[2 + r.length + s.length];
+		der[0] = 0x30;
+		der[1] = (byte)(r.length + s.length); // At most 2 * 35 bytes, a short form length
+		System.arraycopy(r, 0, der, 2, r.length);
+		System.arraycopy(s, 0, der, 2 + r.length, s.length);
+		return der;
+	}
+
+	// An unsigned big-endian integer as a DER INTEGER: leading zeros stripped, a zero prepended to a high first bit
+	private static byte[] derInteger(final byte[] value) {
+		int start = 0;
+		while (start < value.length - 1 && value[start] == 0) {
+			start++;
+		}
+		final int pad = (value[start] & 0x80) != 0 ? 1 : 0;
+		final byte[] integer = new byte[2 + pad + value.length - start];
+		integer[0] = 0x02;
+		integer[1] = (byte)(pad + value.length - start);
+		System.arraycopy(value, start, integer, 2 + pad, value.length - start);
+		return integer;
+	}
+
+	// The claims of a token, only the issue time is checked
+	private static class Claims {
+		long iat;
+	}
+}
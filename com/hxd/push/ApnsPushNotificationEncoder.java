@@ -0,0 +1,34 @@
+package com.hxd.push;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+// Encodes notifications as binary interface command 2 frames.
+public class ApnsPushNotificationEncoder extends MessageToMessageEncoder<SendablePushNotification> {
+
+	public static final int FRAME_HEADER_LENGTH = 5; // command(1) + frame length(4)
+	
+	private static final byte MODERN_FOMAT_NOTIFICATION_COMMAND = 2;
+	
+	// The pooled buffer is sized to the exact frame so it is never reallocated while encoding.
+	// A shared broadcast payload is not copied, the frame references it as a second component.
+	@Override
+	protected void encode(final ChannelHandlerContext context, final SendablePushNotification sendablePushNotification, final List<Object> out) throws Exception {
+		final boolean sharedPayload = sendablePushNotification.hasSharedPayload();
+		final int frameLength = sendablePushNotification.getFrameLength();
+		final ByteBuf frame = context.alloc().ioBuffer(FRAME_HEADER_LENGTH + frameLength - (sharedPayload ? sendablePushNotification.getPayloadLength() : 0));
+		
+		frame.writeByte(MODERN_FOMAT_NOTIFICATION_COMMAND);
+		frame.writeInt(frameLength);
+		sendablePushNotification.writeItems(frame);
+		
+		if (sharedPayload) {
+			out.add(context.alloc().compositeDirectBuffer(2).addComponents(true, frame, sendablePushNotification.retainedSharedPayloadBuffer()));
+		} else {
+			out.add(frame);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.hxd.push;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// ThreadSafe
+// Appends records to a file from a single writer thread. write() only offers the record to a bounded queue,
+// when the queue is full the record is dropped and counted instead of blocking the caller.
+// Writability listeners run on the writer thread once the queue has room for what they wait for.
+// The writer drains the queue in batches and writes each batch with one flush (group commit),
+// the file is forced to disk at most once per sync interval, and on close.
+public class AsyncFileTokenSink implements TokenSink {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL_MILLISECONDS = 1000;
+
+	private static final int MAX_BATCH_SIZE = 4096;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private final Logger logger = LoggerFactory.getLogger(AsyncFileTokenSink.class);
+	private final File file;
+	private final BlockingQueue<String> records;
+	private final ConcurrentLinkedQueue<WritabilityListener> writabilityListeners = new ConcurrentLinkedQueue<WritabilityListener>();
+	private final long syncIntervalNanos;
+	private final FileOutputStream outputStream;
+	private final BufferedWriter writer;
+	private final Thread writerThread;
+	private final AtomicLong writtenRecords = new AtomicLong(0);
+	private final AtomicLong droppedRecords = new AtomicLong(0);
+
+	private volatile boolean closed = false;
+
+	public AsyncFileTokenSink(final File file) throws IOException {
+		this(file, DEFAULT_QUEUE_CAPACITY, DEFAULT_SYNC_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+	}
+
+	public AsyncFileTokenSink(final File file, final int queueCapacity, final long syncInterval, final TimeUnit unit) throws IOException {
+		this.file = file;
+		this.records = new ArrayBlockingQueue<String>(queueCapacity);
+		this.syncIntervalNanos = unit.toNanos(syncInterval);
+		this.outputStream = new FileOutputStream(file, true);
+		this.writer = new BufferedWriter(new OutputStreamWriter(this.outputStream, CHARSET));
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRecords();
+			}
+		}, "token-sink-" + file.getName());
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	@Override
+	public boolean write(final String record) {
+		if (this.closed || !this.records.offer(record)) {
+			this.droppedRecords.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean canWrite(final int records) {
+		return !this.closed && this.records.remainingCapacity() >= records;
+	}
+
+	@Override
+	public void whenWritable(final int records, final Runnable listener) {
+		this.writabilityListeners.add(new WritabilityListener(records, listener));
+		this.runWritabilityListeners(); // The writer may have checked before the listener was added
+	}
+
+	public long getWrittenRecordCount() {
+		return this.writtenRecords.get();
+	}
+
+	public long getDroppedRecordCount() {
+		return this.droppedRecords.get();
+	}
+
+	// Records already accepted are written and synced before close returns.
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		try {
+			this.writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the sink of " + this.file, e);
+		}
+		if (this.droppedRecords.get() > 0) {
+			this.logger.warn(String.format("%d records dropped by the sink of %s", this.droppedRecords.get(), this.file));
+		}
+	}
+
+	private void writeRecords() {
+		final List<String> batch = new ArrayList<String>(MAX_BATCH_SIZE);
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		try {
+			while (!this.closed || !this.records.isEmpty()) {
+				final String first = this.records.poll(this.syncIntervalNanos, TimeUnit.NANOSECONDS);
+				if (first != null) {
+					batch.add(first);
+					this.records.drainTo(batch, MAX_BATCH_SIZE - 1);
+					this.writeBatch(batch);
+					batch.clear();
+					unsynced = true;
+				}
+				if (!this.writabilityListeners.isEmpty()) {
+					this.runWritabilityListeners();
+				}
+				if (unsynced && System.nanoTime() - lastSync >= this.syncIntervalNanos) {
+					this.sync();
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+			}
+		} catch (InterruptedException e) {
+			this.logger.warn("Sink writer of " + this.file + " interrupted, " + this.records.size() + " records not written");
+		} finally {
+			try {
+				this.sync();
+				this.writer.close();
+			} catch (IOException e) {
+				this.logger.error("Failed to close " + this.file, e);
+			}
+		}
+	}
+
+	// Each listener runs once, whichever thread removes it
+	private void runWritabilityListeners() {
+		for (WritabilityListener listener : this.writabilityListeners) {
+			if ((this.records.remainingCapacity() >= listener.records || this.records.isEmpty()) && this.writabilityListeners.remove(listener)) {
+				try {
+					listener.listener.run();
+				} catch (RuntimeException e) {
+					this.logger.error("Writability listener of the sink of " + this.file + " failed", e);
+				}
+			}
+		}
+	}
+
+	private void writeBatch(final List<String> batch) {
+		try {
+			for (String record : batch) {
+				this.writer.write(record);
+				this.writer.newLine();
+			}
+			this.writer.flush();
+			this.writtenRecords.addAndGet(batch.size());
+		} catch (IOException e) {
+			this.droppedRecords.addAndGet(batch.size());
+			this.logger.error("Failed to write " + batch.size() + " records to " + this.file, e);
+		}
+	}
+
+	private static class WritabilityListener {
+		final int records;
+		final Runnable listener;
+
+		WritabilityListener(final int records, final Runnable listener) {
+			this.records = records;
+			this.listener = listener;
+		}
+	}
+
+	private void sync() {
+		try {
+			this.writer.flush();
+			this.outputStream.getFD().sync();
+		} catch (IOException e) {
+			this.logger.error("Failed to sync " + this.file, e);
+		}
+	}
+}
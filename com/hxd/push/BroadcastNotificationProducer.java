@@ -1,61 +1,106 @@
 package com.hxd.push;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-public class BroadcastNotificationProducer implements Runnable {
-	private final String tokenFilePath;
+public class BroadcastNotificationProducer implements NotificationProducer {
+	private final TokenSource tokenSource;
 	private final PushController pushController;
-	private final String payload;
+	private final BroadcastPayload payload;
 	private final NotificationProducerDelegate delegate;
 	private final Logger logger = LoggerFactory.getLogger(BroadcastNotificationProducer.class);
 	
+	private TokenDeduplicator tokenDeduplicator;
+	private MappedTokenStore expiredTokenStore;
+	private BroadcastProgress progress;
 	private long notificationsProducted = 0;
+	private long duplicateTokens = 0;
+	private long expiredTokens = 0;
 
-	public BroadcastNotificationProducer(final PushController pushController, final String tokenFilePath, final String payload, final NotificationProducerDelegate delegate) {
+	public BroadcastNotificationProducer(final PushController pushController, final String tokenFilePath, final BroadcastPayload payload, final NotificationProducerDelegate delegate) {
+		this(pushController, new LineTokenSource(tokenFilePath), payload, delegate);
+	}
+	
+	public BroadcastNotificationProducer(final PushController pushController, final TokenSource tokenSource, final BroadcastPayload payload, final NotificationProducerDelegate delegate) {
 		this.pushController = pushController;
-		this.tokenFilePath = tokenFilePath;
+		this.tokenSource = tokenSource;
 		this.payload = payload;
 		this.delegate = delegate;
 	}
 
+	// Skip the tokens already added to the deduplicator, which may be shared by several producers. Set before running.
+	public void setTokenDeduplicator(final TokenDeduplicator tokenDeduplicator) {
+		this.tokenDeduplicator = tokenDeduplicator;
+	}
+
+	// Skip the tokens the store knows as expired. Set before running.
+	public void setExpiredTokenStore(final MappedTokenStore expiredTokenStore) {
+		this.expiredTokenStore = expiredTokenStore;
+	}
+
+	// Register every token read with the progress, the token source must be resumable. Set before running.
+	public void setProgress(final BroadcastProgress progress) {
+		if (progress != null && !(this.tokenSource instanceof ResumableTokenSource)) {
+			throw new IllegalArgumentException("Progress of a token source that cannot be resumed: " + this.tokenSource);
+		}
+		this.progress = progress;
+	}
+
+	@Override
+	public long getNotificationsProduced() {
+		return this.notificationsProducted;
+	}
+	
+	@Override
+	public long getDuplicateTokens() {
+		return this.duplicateTokens;
+	}
+
+	@Override
+	public long getExpiredTokens() {
+		return this.expiredTokens;
+	}
+
 	@Override
 	public void run() {
-		BufferedReader bufferedReader = null;
 		Exception caughtException = null;
 		try {
-			bufferedReader = new BufferedReader(new FileReader(new File(this.tokenFilePath)));
-			String line = null;
-			while( (line = bufferedReader.readLine()) != null ) {
-				String token = line.trim().replace(" ", "");
-				if (token.length() == 64) {
-					this.pushController.doPush(token, this.payload);
-					this.notificationsProducted++;
-				} else {
-					this.logger.warn("Illegal token: " + token);
+			byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+			while (this.tokenSource.next(token)) {
+				final long sequence = this.progress != null ? this.progress.register(((ResumableTokenSource)this.tokenSource).getPosition()) : 0;
+				if (this.tokenDeduplicator != null && !this.tokenDeduplicator.add(token)) {
+					this.duplicateTokens++;
+					if (this.progress != null) {
+						this.progress.acknowledge(sequence);
+					}
+					continue; // The array is not kept, reuse it
+				}
+				if (this.expiredTokenStore != null && this.expiredTokenStore.isExpired(token)) {
+					this.expiredTokens++;
+					if (this.progress != null) {
+						this.progress.acknowledge(sequence);
+					}
+					continue;
 				}
+				final SendablePushNotification notification = new SendablePushNotification(token, this.payload, null);
+				if (this.progress != null) {
+					notification.trackProgress(this.progress, sequence);
+				}
+				this.pushController.doPush(notification);
+				this.notificationsProducted++;
+				token = new byte[DeviceTokenCodec.TOKEN_LENGTH]; // The notification keeps the array
+			}
+			if (this.progress != null) {
+				this.progress.sourceExhausted();
 			}
-			bufferedReader.close();
 			this.logger.debug("All tokens have been sent!");
 		} catch (InterruptedException e) {
 			this.logger.debug("NotificationProducer aborted due to InterruptedException!");
 			Thread.currentThread().interrupt();
-			try {
-				if (bufferedReader != null) {
-					bufferedReader.close();
-				}
-			} catch (IOException innerException) {
-				caughtException = innerException;
-				innerException.printStackTrace();
-			}
-			
 		} catch (FileNotFoundException e) {
 			caughtException = e;
 			e.printStackTrace();
@@ -63,7 +108,21 @@ public class BroadcastNotificationProducer implements Runnable {
 			caughtException = e;
 			e.printStackTrace();
 		} finally {
+			try {
+				this.tokenSource.close();
+			} catch (IOException e) {
+				if (caughtException == null) {
+					caughtException = e;
+				}
+				e.printStackTrace();
+			}
 			this.logger.info(this.notificationsProducted + " notifications enqueued!");
+			if (this.tokenDeduplicator != null) {
+				this.logger.info(this.duplicateTokens + " duplicate tokens skipped!");
+			}
+			if (this.expiredTokenStore != null) {
+				this.logger.info(this.expiredTokens + " expired tokens skipped!");
+			}
 			System.out.println("\n" + this.notificationsProducted + " notifications enqueued!");
 			this.delegate.producerDidComplete(this, caughtException);
 		}
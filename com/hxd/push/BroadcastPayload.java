@@ -0,0 +1,46 @@
+package com.hxd.push;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
+
+// ThreadSafe
+// A payload encoded once into an off-heap, read-only buffer and shared by every notification of a broadcast.
+// Frames reference it through retained duplicates, so the payload bytes are never copied per notification.
+// The owner must call release() once the broadcast is over.
+public class BroadcastPayload {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final String payload;
+	private final ByteBuf payloadBuffer;
+	
+	public BroadcastPayload(final String payload) {
+		this.payload = payload;
+		final byte[] payloadBytes = payload.getBytes(UTF8);
+		this.payloadBuffer = Unpooled.directBuffer(payloadBytes.length).writeBytes(payloadBytes).asReadOnly();
+	}
+	
+	public String getPayload() {
+		return this.payload;
+	}
+	
+	public int getLength() {
+		return this.payloadBuffer.readableBytes();
+	}
+	
+	// The caller owns the returned duplicate and must release it, which the channel does after writing.
+	public ByteBuf retainedPayloadBuffer() {
+		return this.payloadBuffer.retainedDuplicate();
+	}
+	
+	public void release() {
+		this.payloadBuffer.release();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("<%s, length: %d>", super.toString(), this.getLength());
+	}
+}
@@ -0,0 +1,103 @@
+package com.hxd.push;
+
+// Tracks which notifications of one producer partition are settled, to find the position its token source
+// can be resumed from without losing a notification. The producer registers every token it reads with the
+// source position following it and gets a sequence number; a notification is acknowledged once it is settled:
+// overwritten in the sent notification cache of its connection (the binary protocol never acknowledges a
+// notification, one that was not rejected before it is evicted counts as delivered), rejected, dropped by
+// the invalid token filter, or left in the cache when its connection is done.
+// Reclaimed notifications are not acknowledged, they are sent again under the same sequence number.
+// The resume position is the position following the last token of the contiguous acknowledged prefix,
+// the low watermark. The window of outstanding sequence numbers doubles when full, it is bounded by what
+// the queue and the sent notification caches of the connections hold.
+// ThreadSafe
+public class BroadcastProgress {
+
+	private static final int INITIAL_WINDOW = 1 << 16;
+
+	private final int partition;
+	private long[] positions = new long[INITIAL_WINDOW];
+	private boolean[] acknowledged = new boolean[INITIAL_WINDOW];
+	private int mask = INITIAL_WINDOW - 1;
+
+	private long nextSequence = 0;
+	private long lowWatermark = 0;
+	private long resumePosition;
+	private boolean sourceExhausted = false;
+
+	public BroadcastProgress(final int partition, final long startPosition) {
+		this.partition = partition;
+		this.resumePosition = startPosition;
+	}
+
+	public int getPartition() {
+		return this.partition;
+	}
+
+	// Return the sequence number of the token ending at the given source position
+	public synchronized long register(final long positionAfterToken) {
+		if (this.nextSequence - this.lowWatermark > this.mask) {
+			this.growWindow();
+		}
+		final long sequence = this.nextSequence++;
+		final int index = (int)(sequence & this.mask);
+		this.positions[index] = positionAfterToken;
+		this.acknowledged[index] = false;
+		return sequence;
+	}
+
+	public synchronized void acknowledge(final long sequence) {
+		if (sequence < this.lowWatermark || sequence >= this.nextSequence) {
+			return;
+		}
+		this.acknowledged[(int)(sequence & this.mask)] = true;
+		if (sequence != this.lowWatermark) {
+			return;
+		}
+		while (this.lowWatermark < this.nextSequence && this.acknowledged[(int)(this.lowWatermark & this.mask)]) {
+			this.resumePosition = this.positions[(int)(this.lowWatermark & this.mask)];
+			this.lowWatermark++;
+		}
+	}
+
+	private void growWindow() {
+		final int window = (this.mask + 1) << 1;
+		final long[] positions = new long[window];
+		final boolean[] acknowledged = new boolean[window];
+		for (long sequence = this.lowWatermark; sequence < this.nextSequence; sequence++) {
+			positions[(int)(sequence & (window - 1))] = this.positions[(int)(sequence & this.mask)];
+			acknowledged[(int)(sequence & (window - 1))] = this.acknowledged[(int)(sequence & this.mask)];
+		}
+		this.positions = positions;
+		this.acknowledged = acknowledged;
+		this.mask = window - 1;
+	}
+
+	// Called by the producer when its token source has no more tokens
+	public synchronized void sourceExhausted() {
+		this.sourceExhausted = true;
+	}
+
+	public synchronized long getResumePosition() {
+		return this.resumePosition;
+	}
+
+	public synchronized long getLowWatermark() {
+		return this.lowWatermark;
+	}
+
+	public synchronized long getOutstandingCount() {
+		return this.nextSequence - this.lowWatermark;
+	}
+
+	// Every token of the source was read and every notification settled
+	public synchronized boolean isComplete() {
+		return this.sourceExhausted && this.lowWatermark == this.nextSequence;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Partition %d: %d of %d notifications settled, resume at %d%s", this.partition,
+				this.lowWatermark, this.nextSequence, this.resumePosition, this.isComplete() ? ", complete" : "");
+	}
+}
@@ -1,14 +1,14 @@
 package com.hxd.push;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -23,8 +23,18 @@ public class BroadcastPushManager implements NotificationProducerDelegate, PushC
 	private final APNConfiguration configuration;
 	private final PushController pushController;
 	private final APNLogEnvironment logEnvironment;
-	private final String payload;
-	private final BufferedWriter invalidTokenBufferedWriter;
+	private final BroadcastPayload payload;
+	private final TokenSink invalidTokenSink;
+	private final MappedTokenStore tokenStore;
+	// Tombstones are written to the store off the event loops, a mapped page may have to be read in first
+	private final ExecutorService tokenStoreService;
+	private final InvalidTokenFilter invalidTokenFilter;
+	// A token store holds every token once, only token files need deduplication
+	private final TokenDeduplicator tokenDeduplicator;
+	private volatile ProgressJournal progressJournal;
+	private volatile ScheduledExecutorService checkpointService;
+	
+	private static final long CHECKPOINT_INTERVAL_MILLISECONDS = 1000;
 	
 	private BroadcastPushManager(final APNConfiguration configuration, final APNLogEnvironment logEnvironment) {
 		this.logger.debug("configuration: " + configuration);
@@ -36,63 +46,330 @@ public class BroadcastPushManager implements NotificationProducerDelegate, PushC
 		if (this.configuration.getCustomField() != null && !this.configuration.getCustomField().isEmpty()) {
 			payloadBuilder.customFields(this.configuration.getCustomField());
 		}
-		this.payload = payloadBuilder.build();
-		this.logger.debug("payload: " + payload);
+		this.payload = new BroadcastPayload(payloadBuilder.build());
+		this.logger.debug("payload: " + this.payload.getPayload());
+		
+		this.invalidTokenFilter = this.configuration.isInvalidTokenFilter() ? this.loadInvalidTokenFilter() : null;
+		final int queueCapacity = this.queueCapacity();
+		final ReclaimableNotificationQueue notificationQueue = this.configuration.isRingBufferQueue() ? new RingBufferNotificationQueue(queueCapacity)
+																									: new NotificationQueue(queueCapacity);
+		this.pushController = this.configuration.isHttp2() ? this.createHttp2PushController(notificationQueue) : this.createPushController(notificationQueue);
+		
+		TokenSink invalidTokenSink = null;
+		try {
+			invalidTokenSink = new AsyncFileTokenSink(new File(logEnvironment.getLogFilePath() + "invalidToken.txt"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Invalid tokens file writer initialization failed.");
+		}
+		this.invalidTokenSink = invalidTokenSink;
 		
+		MappedTokenStore tokenStore = null;
+		if (this.configuration.getTokenStore() != null) {
+			try {
+				tokenStore = new MappedTokenStore(new File(this.configuration.getTokenStore()), this.configuration.getTokenStoreCapacity());
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Token store initialization failed, tokens are read from the token file.");
+			}
+		}
+		this.tokenStore = tokenStore;
+		this.tokenStoreService = tokenStore != null ? Executors.newSingleThreadExecutor() : null;
+		this.tokenDeduplicator = this.configuration.isDeduplicateTokens() && !this.isTokenStoreBroadcast() ? new TokenDeduplicator(this.configuration.getExpectedTokens()) : null;
+	}
+	
+	// The broadcast goes to the live tokens of the store only if configured so, otherwise to the token file
+	private boolean isTokenStoreBroadcast() {
+		return this.tokenStore != null && this.configuration.isBroadcastTokenStore();
+	}
+	
+	// Large enough for the configured connections to give back every notification they hold
+	private int queueCapacity() {
+		if (this.configuration.isHttp2()) {
+			return APNHttp2ConnectionManager.queueCapacity(
+					this.configuration.getMaxConnections() > 0 ? this.configuration.getMaxConnections() : APNHttp2ConnectionManager.DEFAULT_CONNECTIONS,
+					this.configuration.getMaxConcurrentStreams() > 0 ? this.configuration.getMaxConcurrentStreams() : APNHttp2ConnectionManager.DEFAULT_MAX_CONCURRENT_STREAMS);
+		}
+		return APNConnectionManager.queueCapacity(Math.max(APNConnectionManager.CONCURRENT_CONNECTIONS, this.configuration.getMaxConnections()));
+	}
+	
+	// Null if the key store can not be created
+	private APNConnectionManager createPushController(final ReclaimableNotificationQueue notificationQueue) {
 		APNConnectionManager pushController = null;
 		try {
 			pushController = new APNConnectionManager(this.configuration.isDebug() ? APNSEnviroment.getSandboxEnvironment() : APNSEnviroment.getProductionEnvironment(),
 									this.configuration.getPkcs12(),
 									this.configuration.getPassword(),
-									this);
+									this,
+									notificationQueue);
 		} catch (KeyStoreException e) {
 			e.printStackTrace();
+			return null;
 		}
-		this.pushController = pushController;
-		
-		BufferedWriter bufferedWriter = null;
+		if (this.configuration.getMaxConnections() > 0) {
+			// Unset bounds keep the default pool size
+			final int minConnections = this.configuration.getMinConnections() > 0 ? this.configuration.getMinConnections()
+																					: Math.min(APNConnectionManager.CONCURRENT_CONNECTIONS, this.configuration.getMaxConnections());
+			pushController.setConnectionPoolSize(minConnections, this.configuration.getMaxConnections());
+		}
+		pushController.setEventLoopConnections(this.configuration.isEventLoopConnections());
+		pushController.setStandbyConnections(this.configuration.getStandbyConnections());
+		if (this.configuration.getFlushBytes() > 0) {
+			// Broadcast traffic favours fewer syscalls over latency
+			pushController.setFlushStrategy(new ByteFlushStrategy(this.configuration.getFlushBytes(), 50, TimeUnit.MILLISECONDS));
+		}
+		if (this.invalidTokenFilter != null) {
+			pushController.setInvalidTokenFilter(this.invalidTokenFilter);
+		}
+		return pushController;
+	}
+	
+	// Null if the key store or the provider token key can not be loaded. maxConnections is the number of HTTP/2 connections.
+	// With an authKey the .p8 key of the team signs provider tokens, no certificate is needed.
+	private APNHttp2ConnectionManager createHttp2PushController(final ReclaimableNotificationQueue notificationQueue) {
+		final APNSEnviroment environment = this.configuration.isDebug() ? APNSEnviroment.getHttp2SandboxEnvironment() : APNSEnviroment.getHttp2ProductionEnvironment();
+		APNHttp2ConnectionManager pushController = null;
 		try {
-			bufferedWriter = new BufferedWriter(new FileWriter(new File(logEnvironment.getLogFilePath() + "invalidToken.txt"), true));
+			if (this.configuration.getAuthKey() != null) {
+				final ApnsProviderToken providerToken = ApnsProviderToken.fromP8File(this.configuration.getAuthKey(), this.configuration.getTeamId(), this.configuration.getKeyId());
+				pushController = new APNHttp2ConnectionManager(environment, providerToken, this, notificationQueue);
+			} else {
+				pushController = new APNHttp2ConnectionManager(environment,
+										this.configuration.getPkcs12(),
+										this.configuration.getPassword(),
+										this,
+										notificationQueue);
+			}
+		} catch (KeyStoreException e) {
+			e.printStackTrace();
+			return null;
 		} catch (IOException e) {
 			e.printStackTrace();
-			System.out.println("Invalid tokens file writer initialization failed.");
+			System.out.println("Provider token key loading failed.");
+			return null;
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			System.out.println("Provider token key loading failed.");
+			return null;
+		}
+		if (this.configuration.getMaxConnections() > 0) {
+			pushController.setConnectionCount(this.configuration.getMaxConnections());
+		}
+		if (this.configuration.getMaxConcurrentStreams() > 0) {
+			pushController.setMaxConcurrentStreams(this.configuration.getMaxConcurrentStreams());
+		}
+		pushController.setTopic(this.configuration.getTopic());
+		if (this.configuration.getFlushBytes() > 0) {
+			pushController.setFlushStrategy(new ByteFlushStrategy(this.configuration.getFlushBytes(), 50, TimeUnit.MILLISECONDS));
 		}
-		this.invalidTokenBufferedWriter = bufferedWriter;
+		if (this.invalidTokenFilter != null) {
+			pushController.setInvalidTokenFilter(this.invalidTokenFilter);
+		}
+		return pushController;
 	}
 	
 	private void doPush() {
+		if (this.isTokenStoreBroadcast()) {
+			this.importTokenFile();
+		}
 		this.pushController.start();
-		BroadcastNotificationProducer producer = new BroadcastNotificationProducer(pushController, this.configuration.getTokenFile(), this.payload, this);
+		NotificationProducer producer = this.configuration.getProgressJournal() != null ? this.createJournaledProducer() : null;
+		if (producer == null) {
+			producer = this.createProducer();
+		}
 		ExecutorService producerService = Executors.newSingleThreadExecutor();
 		producerService.submit(producer);
 		producerService.shutdown();
 	}
 	
-	@Override
-	public void pushControllerDidStop() {
-		this.logEnvironment.logUnsentTokens(this.pushController.getRemainNotifications());
+	private NotificationProducer createProducer() {
+		final NotificationProducer producer;
+		if (this.isTokenStoreBroadcast()) {
+			if (this.configuration.getProducerThreads() > 1) {
+				producer = new PartitionedBroadcastProducer(pushController, this.tokenStore, this.configuration.getProducerThreads(), this.payload, this);
+			} else {
+				producer = new BroadcastNotificationProducer(pushController, this.tokenStore.liveTokens(), this.payload, this);
+			}
+		} else if (this.configuration.getProducerThreads() > 1) {
+			final PartitionedBroadcastProducer partitionedProducer = new PartitionedBroadcastProducer(pushController, new File(this.configuration.getTokenFile()), this.configuration.getProducerThreads(), this.payload, this);
+			partitionedProducer.setTokenDeduplicator(this.tokenDeduplicator);
+			partitionedProducer.setExpiredTokenStore(this.tokenStore);
+			producer = partitionedProducer;
+		} else {
+			final TokenSource tokenSource = this.configuration.isMemoryMappedTokenFile() ? new MappedTokenFileReader(new File(this.configuration.getTokenFile()))
+																					: new LineTokenSource(this.configuration.getTokenFile());
+			final BroadcastNotificationProducer broadcastProducer = new BroadcastNotificationProducer(pushController, tokenSource, this.payload, this);
+			broadcastProducer.setTokenDeduplicator(this.tokenDeduplicator);
+			broadcastProducer.setExpiredTokenStore(this.tokenStore);
+			producer = broadcastProducer;
+		}
+		return producer;
+	}
+	
+	// A journaled broadcast is always partitioned, one partition per producer thread, and resumes from the journal
+	// left by an earlier run of the same token file or store. Return null if the journal cannot be opened.
+	private NotificationProducer createJournaledProducer() {
+		final int partitions = Math.max(1, this.configuration.getProducerThreads());
+		final PartitionedBroadcastProducer producer;
+		final long sourceSize;
+		if (this.isTokenStoreBroadcast()) {
+			producer = new PartitionedBroadcastProducer(pushController, this.tokenStore, partitions, this.payload, this);
+			sourceSize = this.tokenStore.getSlotCount();
+		} else {
+			final File tokenFile = new File(this.configuration.getTokenFile());
+			producer = new PartitionedBroadcastProducer(pushController, tokenFile, partitions, this.payload, this);
+			producer.setTokenDeduplicator(this.tokenDeduplicator);
+			producer.setExpiredTokenStore(this.tokenStore);
+			sourceSize = tokenFile.length();
+		}
+		final ProgressJournal progressJournal;
 		try {
-			this.invalidTokenBufferedWriter.close();
+			progressJournal = new ProgressJournal(new File(this.configuration.getProgressJournal()), partitions, sourceSize);
 		} catch (IOException e) {
 			e.printStackTrace();
+			System.out.println("Progress journal initialization failed, the broadcast cannot be resumed.");
+			return null;
+		}
+		if (progressJournal.isResumed()) {
+			System.out.println("Resuming the broadcast journaled in " + this.configuration.getProgressJournal());
+		}
+		producer.setProgressJournal(progressJournal);
+		this.progressJournal = progressJournal;
+		this.checkpointService = Executors.newSingleThreadScheduledExecutor();
+		this.checkpointService.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					progressJournal.checkpoint();
+				} catch (IOException e) {
+					logger.error("Failed to checkpoint the broadcast progress", e);
+				}
+			}
+		}, CHECKPOINT_INTERVAL_MILLISECONDS, CHECKPOINT_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+		return producer;
+	}
+	
+	// Tokens of the invalid token file and of every feedback file left in the log directory
+	private InvalidTokenFilter loadInvalidTokenFilter() {
+		final InvalidTokenFilter invalidTokenFilter = new InvalidTokenFilter(this.configuration.getInvalidTokenFilterCapacity(), InvalidTokenFilter.DEFAULT_FALSE_POSITIVE_RATE);
+		final File[] files = new File(this.logEnvironment.getLogFilePath()).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				final String name = file.getName();
+				if (name.equals("invalidToken.txt") || (name.startsWith("feedback_") && name.endsWith(".txt"))) {
+					try {
+						invalidTokenFilter.load(file);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		this.logger.info(invalidTokenFilter.toString());
+		return invalidTokenFilter;
+	}
+	
+	// New tokens of the token file join the store as live, tokens the store knows as expired stay expired.
+	// Runs before the push controller starts, a failed import leaves the broadcast to the tokens already in the store.
+	private void importTokenFile() {
+		if (this.configuration.getTokenFile() == null) {
+			return;
+		}
+		try {
+			final long added = this.tokenStore.importTokens(new MappedTokenFileReader(new File(this.configuration.getTokenFile())));
+			this.logger.info(String.format("%d tokens imported, token store has %d live and %d expired tokens",
+					added, this.tokenStore.getLiveTokenCount(), this.tokenStore.getExpiredTokenCount()));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Token file import failed, pushing to the tokens already in the store.");
+		} catch (IllegalStateException e) {
+			// Full of live tokens, the tokens imported before it filled up are kept
+			this.logger.error(e.getMessage());
+			System.out.println(e.getMessage() + ", pushing to the tokens already in the store. Create a larger store to import the rest.");
 		}
 	}
 	
 	@Override
-	public void handleRejectedNotification(final String token, final RejectedNotificationReason reason) {
-		if (reason.equals(RejectedNotificationReason.INVALID_TOKEN) || reason.equals(RejectedNotificationReason.INVALID_TOKEN_SIZE)) {
+	public void pushControllerDidStop() {
+		this.logEnvironment.logUnsentTokens(this.pushController.getRemainNotifications());
+		if (this.pushController instanceof APNConnectionManager) {
+			final ConnectionPoolMetrics connectionPoolMetrics = ((APNConnectionManager)this.pushController).getConnectionPoolMetrics();
+			this.logger.info(connectionPoolMetrics.toString());
+		}
+		this.payload.release();
+		if (this.progressJournal != null) {
+			this.checkpointService.shutdownNow();
+			try {
+				this.progressJournal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			System.out.println(this.progressJournal.isComplete() ? "Broadcast complete, progress journal deleted."
+					: "Broadcast incomplete, run again with the same configuration to resume it from " + this.configuration.getProgressJournal());
+		}
+		if (this.invalidTokenSink != null) {
+			try {
+				this.invalidTokenSink.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (this.invalidTokenFilter != null) {
+			this.logger.info(this.invalidTokenFilter.toString());
+			// The producers completed before the controller was stopped, and the controller let go of the filter:
+			// no doPush or rejection reads it any more
+			this.invalidTokenFilter.release();
+		}
+		if (this.tokenStore != null) {
+			this.tokenStoreService.shutdown();
+			try {
+				if (!this.tokenStoreService.awaitTermination(1, TimeUnit.MINUTES)) {
+					this.logger.warn("Expired tokens still being recorded in the token store, closing it");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 			try {
-				this.invalidTokenBufferedWriter.write(token);
-				this.invalidTokenBufferedWriter.newLine();
+				this.tokenStore.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
+	
+	@Override
+	public void handleRejectedNotification(final String token, final RejectedNotificationReason reason) {
+		// Called on event loop threads, the sink only queues the token
+		if (reason.equals(RejectedNotificationReason.INVALID_TOKEN) || reason.equals(RejectedNotificationReason.INVALID_TOKEN_SIZE)) {
+			if (this.invalidTokenSink != null) {
+				this.invalidTokenSink.write(token);
+			}
+			final byte[] tokenBytes = DeviceTokenCodec.decode(token);
+			if (this.tokenStore != null && tokenBytes != null) {
+				try {
+					this.tokenStoreService.execute(new Runnable() {
+						@Override
+						public void run() {
+							tokenStore.markExpired(tokenBytes);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					this.logger.warn("Token store is closed, expired token not recorded");
+				}
+			}
+		}
+	}
 
 	@Override
-	public void producerDidComplete(BroadcastNotificationProducer producer, Exception e) {
-		String messageString = "Tokens have been processed";
+	public void producerDidComplete(NotificationProducer producer, Exception e) {
+		String messageString = producer.getNotificationsProduced() + " tokens have been processed";
+		if (this.tokenDeduplicator != null) {
+			messageString += ", " + producer.getDuplicateTokens() + " duplicate tokens skipped";
+			this.tokenDeduplicator.release();
+		}
+		if (this.tokenStore != null && !this.isTokenStoreBroadcast()) {
+			messageString += ", " + producer.getExpiredTokens() + " expired tokens skipped";
+		}
 		if (e != null) {
 			messageString += " with exception: " + e.getMessage();
 		}
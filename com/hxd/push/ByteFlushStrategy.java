@@ -0,0 +1,24 @@
+package com.hxd.push;
+
+import java.util.concurrent.TimeUnit;
+
+// Flush once the written frames add up to the given number of bytes, fewer syscalls for broadcast traffic.
+public class ByteFlushStrategy extends FlushStrategy {
+	
+	private final long bytesPerFlush;
+	
+	public ByteFlushStrategy(final long bytesPerFlush, final long maxFlushDelay, final TimeUnit unit) {
+		super(maxFlushDelay, unit);
+		this.bytesPerFlush = bytesPerFlush;
+	}
+
+	@Override
+	public boolean shouldFlush(final int pendingNotifications, final long pendingBytes, final long pendingNanos) {
+		return pendingBytes >= this.bytesPerFlush;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: bytesPerFlush:%d, maxFlushDelayNanos:%d", super.toString(), this.bytesPerFlush, this.getMaxFlushDelayNanos());
+	}
+}
@@ -0,0 +1,89 @@
+package com.hxd.push;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// The samples and scaling decisions of the connection pool of an APNConnectionManager.
+// ThreadSafe: written by the scaling task, read by anyone.
+public class ConnectionPoolMetrics {
+
+	public enum ScalingDecision {
+		NONE, GROW, SHRINK
+	}
+
+	private final AtomicLong samples = new AtomicLong(0);
+	private final AtomicLong grows = new AtomicLong(0);
+	private final AtomicLong shrinks = new AtomicLong(0);
+
+	private volatile int connections;
+	private volatile int targetConnections;
+	private volatile int queueDepth;
+	private volatile double writeBufferUtilization;
+	private volatile ScalingDecision lastDecision = ScalingDecision.NONE;
+	private volatile long lastDecisionTime = 0;
+
+	void sample(final int connections, final int targetConnections, final int queueDepth, final double writeBufferUtilization) {
+		this.connections = connections;
+		this.targetConnections = targetConnections;
+		this.queueDepth = queueDepth;
+		this.writeBufferUtilization = writeBufferUtilization;
+		this.samples.incrementAndGet();
+	}
+
+	void decided(final ScalingDecision decision, final int targetConnections) {
+		if (decision == ScalingDecision.GROW) {
+			this.grows.incrementAndGet();
+		} else if (decision == ScalingDecision.SHRINK) {
+			this.shrinks.incrementAndGet();
+		}
+		this.targetConnections = targetConnections;
+		this.lastDecision = decision;
+		this.lastDecisionTime = System.currentTimeMillis();
+	}
+
+	public long getSampleCount() {
+		return this.samples.get();
+	}
+
+	public long getGrowCount() {
+		return this.grows.get();
+	}
+
+	public long getShrinkCount() {
+		return this.shrinks.get();
+	}
+
+	// Running connections at the last sample
+	public int getConnections() {
+		return this.connections;
+	}
+
+	public int getTargetConnections() {
+		return this.targetConnections;
+	}
+
+	// Queued notifications at the last sample
+	public int getQueueDepth() {
+		return this.queueDepth;
+	}
+
+	// Mean fill of the connection write buffers up to their high water mark at the last sample, from 0 to 1
+	public double getWriteBufferUtilization() {
+		return this.writeBufferUtilization;
+	}
+
+	public ScalingDecision getLastDecision() {
+		return this.lastDecision;
+	}
+
+	// Milliseconds since the epoch, 0 if the pool was never scaled
+	public long getLastDecisionTime() {
+		return this.lastDecisionTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ConnectionPoolMetrics: %d of %d connections, queue depth %d, write buffer utilization %.2f, %d samples, grown %d times, shrunk %d times, last decision %s",
+				this.getConnections(), this.getTargetConnections(), this.getQueueDepth(), this.getWriteBufferUtilization(),
+				this.getSampleCount(), this.getGrowCount(), this.getShrinkCount(), this.getLastDecision());
+	}
+}
@@ -0,0 +1,36 @@
+package com.hxd.push;
+
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+import java.util.concurrent.TimeUnit;
+
+// Takes its decisions from another strategy and adds a FlushConsolidationHandler in front of the SslHandler,
+// so flushes requested in a row are merged on the event loop into fewer socket writes.
+public class ConsolidatingFlushStrategy extends FlushStrategy {
+	
+	private final FlushStrategy strategy;
+	private final int explicitFlushAfterFlushes;
+	
+	public ConsolidatingFlushStrategy(final FlushStrategy strategy, final int explicitFlushAfterFlushes) {
+		super(strategy.getMaxFlushDelayNanos(), TimeUnit.NANOSECONDS);
+		this.strategy = strategy;
+		this.explicitFlushAfterFlushes = explicitFlushAfterFlushes;
+	}
+
+	@Override
+	public boolean shouldFlush(final int pendingNotifications, final long pendingBytes, final long pendingNanos) {
+		return this.strategy.shouldFlush(pendingNotifications, pendingBytes, pendingNanos);
+	}
+	
+	@Override
+	public void configurePipeline(final ChannelPipeline pipeline) {
+		this.strategy.configurePipeline(pipeline);
+		pipeline.addAfter("ssl", "flushConsolidation", new FlushConsolidationHandler(this.explicitFlushAfterFlushes, true));
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: explicitFlushAfterFlushes:%d, strategy:%s", super.toString(), this.explicitFlushAfterFlushes, this.strategy);
+	}
+}
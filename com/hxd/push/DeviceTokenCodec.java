@@ -0,0 +1,121 @@
+package com.hxd.push;
+
+import java.nio.ByteBuffer;
+
+// ThreadSafe
+// Table driven conversion between the 64 character hex form of a device token and its 32 raw bytes.
+// Decoding skips whitespace and the angle brackets of the "<xxxxxxxx xxxxxxxx ...>" form,
+// any other non hex character makes the token illegal. Lenient decoding skips every non hex character.
+public final class DeviceTokenCodec {
+	
+	public static final int TOKEN_LENGTH = 32;
+	public static final int TOKEN_HEX_LENGTH = TOKEN_LENGTH * 2;
+	
+	private static final byte ILLEGAL = -1;
+	private static final byte SEPARATOR = -2;
+	private static final byte[] HEX_VALUES = new byte[128];
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	static {
+		for (int i = 0; i < HEX_VALUES.length; i++) {
+			HEX_VALUES[i] = ILLEGAL;
+		}
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0' + i] = (byte)i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = (byte)(10 + i);
+			HEX_VALUES['A' + i] = (byte)(10 + i);
+		}
+		HEX_VALUES[' '] = SEPARATOR;
+		HEX_VALUES['\t'] = SEPARATOR;
+		HEX_VALUES['\r'] = SEPARATOR;
+		HEX_VALUES['\n'] = SEPARATOR;
+		HEX_VALUES['<'] = SEPARATOR;
+		HEX_VALUES['>'] = SEPARATOR;
+	}
+	
+	private DeviceTokenCodec() {}
+	
+	// Return the decoded token, or null if the string is not a legal token.
+	public static byte[] decode(final CharSequence tokenString) {
+		final byte[] token = new byte[TOKEN_LENGTH];
+		return DeviceTokenCodec.decode(tokenString, token) ? token : null;
+	}
+	
+	// Decode into the given array of at least TOKEN_LENGTH bytes, return false if the string is not a legal token.
+	public static boolean decode(final CharSequence tokenString, final byte[] token) {
+		return DeviceTokenCodec.decode(tokenString, token, false);
+	}
+	
+	// Return the token made of the hex digits of the string, or null if there are not TOKEN_HEX_LENGTH of them.
+	// For tokens handed to the API as strings, "xxxx-xxxx..." and the like.
+	public static byte[] decodeLenient(final CharSequence tokenString) {
+		final byte[] token = new byte[TOKEN_LENGTH];
+		return DeviceTokenCodec.decode(tokenString, token, true) ? token : null;
+	}
+	
+	private static boolean decode(final CharSequence tokenString, final byte[] token, final boolean lenient) {
+		final int length = tokenString.length();
+		final int skipped = lenient ? SEPARATOR : ILLEGAL;
+		int digits = 0;
+		int high = 0;
+		for (int i = 0; i < length; i++) {
+			final char c = tokenString.charAt(i);
+			final int value = c < 128 && HEX_VALUES[c] != ILLEGAL ? HEX_VALUES[c] : skipped;
+			if (value >= 0) {
+				if (digits == TOKEN_HEX_LENGTH) {
+					return false;
+				}
+				if ((digits & 1) == 0) {
+					high = value << 4;
+				} else {
+					token[digits >> 1] = (byte)(high | value);
+				}
+				digits++;
+			} else if (value == ILLEGAL) {
+				return false;
+			}
+		}
+		return digits == TOKEN_HEX_LENGTH;
+	}
+	
+	// Decode the bytes in [from, to) of the buffer without moving its position, return false if they are not a legal token.
+	public static boolean decode(final ByteBuffer buffer, final int from, final int to, final byte[] token) {
+		int digits = 0;
+		int high = 0;
+		for (int i = from; i < to; i++) {
+			final byte b = buffer.get(i);
+			final int value = b >= 0 ? HEX_VALUES[b] : ILLEGAL;
+			if (value >= 0) {
+				if (digits == TOKEN_HEX_LENGTH) {
+					return false;
+				}
+				if ((digits & 1) == 0) {
+					high = value << 4;
+				} else {
+					token[digits >> 1] = (byte)(high | value);
+				}
+				digits++;
+			} else if (value == ILLEGAL) {
+				return false;
+			}
+		}
+		return digits == TOKEN_HEX_LENGTH;
+	}
+	
+	public static String encode(final byte[] token) {
+		return DeviceTokenCodec.encode(token, 0, token.length);
+	}
+	
+	// Encode the length bytes of the array starting at offset
+	public static String encode(final byte[] bytes, final int offset, final int length) {
+		final char[] hexChars = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			final byte b = bytes[offset + i];
+			hexChars[i * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+			hexChars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+		}
+		return new String(hexChars);
+	}
+}
@@ -3,27 +3,32 @@ package com.hxd.push;
 
 public class DeviceTokenDataItem implements PushNotificationDataItem {
 	
+	public static final byte ITEM_ID = 1;
+	public static final short ITEM_LENGTH = DeviceTokenCodec.TOKEN_LENGTH;
+	
 	private final byte[] itemData;
-	private static final String NON_HEX_CHARACTER_PATTERN = "[^0-9a-fA-F]";
 	
 	public DeviceTokenDataItem(String tokenString) {
-		final String strippedTokenString = tokenString.replaceAll(NON_HEX_CHARACTER_PATTERN, "");
-		final byte[] tokenBytes = new byte[strippedTokenString.length() / 2];
-		for (int i = 0; i < strippedTokenString.length(); i += 2) {
-			tokenBytes[i / 2] = (byte)Integer.parseInt(strippedTokenString.substring(i, i + 2), 16);
+		this.itemData = DeviceTokenDataItem.tokenStringToBytes(tokenString);
+	}
+	
+	// Non hex characters are stripped, the remaining digits must make a whole token
+	public static byte[] tokenStringToBytes(final String tokenString) {
+		final byte[] tokenBytes = DeviceTokenCodec.decodeLenient(tokenString);
+		if (tokenBytes == null) {
+			throw new IllegalArgumentException("Illegal token: " + tokenString);
 		}
-		
-		this.itemData = tokenBytes;
+		return tokenBytes;
 	}
 
 	@Override
 	public byte getItemID() {
-		return 1;
+		return ITEM_ID;
 	}
 
 	@Override
 	public short getItemLength() {
-		return 32;
+		return ITEM_LENGTH;
 	}
 
 	@Override
@@ -0,0 +1,83 @@
+package com.hxd.push;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Frees direct and memory-mapped buffers right away instead of when the garbage collector finds them, so a
+// file mapping is gone once its reader or store is closed and off-heap tables are returned as soon as they are released.
+// Java offers no API for this: on Java 9 and later sun.misc.Unsafe.invokeCleaner does it, on Java 8 the cleaner of the
+// buffer. Where neither is accessible, free does nothing and the buffer is freed by the garbage collector like any
+// other, which only holds the memory or the mapping longer.
+public class DirectBufferUtil {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DirectBufferUtil.class);
+
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	private static final Method CLEANER;
+	private static final Method CLEAN;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		Method cleaner = null;
+		Method clean = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+			} catch (NoSuchMethodException e) {
+				// Java 8
+				final ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+				cleaner = buffer.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				clean = cleaner.getReturnType().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner.invoke(buffer));
+			}
+		} catch (Throwable e) {
+			LOGGER.debug("Direct buffers cannot be freed explicitly, leaving them to the garbage collector", e);
+			unsafe = null;
+			invokeCleaner = null;
+			cleaner = null;
+			clean = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+		CLEANER = cleaner;
+		CLEAN = clean;
+	}
+
+	protected DirectBufferUtil() {}
+
+	// Whether free releases the memory itself rather than leaving it to the garbage collector
+	public static boolean isFreeSupported() {
+		return INVOKE_CLEANER != null || CLEAN != null;
+	}
+
+	// The buffer must not be used afterwards: its memory may already be reused or unmapped.
+	// Heap buffers, slices and duplicates are left alone, only the buffer that owns the memory can free it.
+	public static void free(final ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} else if (CLEAN != null) {
+				final Object cleaner = CLEANER.invoke(buffer);
+				if (cleaner != null) {
+					CLEAN.invoke(cleaner);
+				}
+			}
+		} catch (Throwable e) {
+			LOGGER.debug("Failed to free a direct buffer, leaving it to the garbage collector", e);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.hxd.push;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A push connection driven entirely by the event loop of its channel, without a thread of its own.
+// Notifications are pulled from the queue whenever the channel can take them: once the TLS handshake is done,
+// when the channel becomes writable again, and on the idle timer of AbstractEventLoopPushConnection.
+// Nothing blocks, so many connections share the few threads of the event loop group.
+// Rejections, failed writes and the end of the connection are handled as by PushRunnable.
+// ThreadSafe: the state is confined to the event loop of the channel, terminate() hands over to it.
+public class EventLoopPushConnection extends AbstractEventLoopPushConnection {
+
+	private final Bootstrap bootstrap;
+	private final Logger logger = LoggerFactory.getLogger(EventLoopPushConnection.class);
+	private final SentNotificationCache notificationCache;
+
+	// Event loop only
+	private boolean handshaken = false;
+	private boolean rejected = false;
+	private boolean ended = false;
+	private ChannelFuture lastWriteFuture;
+
+	public EventLoopPushConnection(final NotificationReclaimableConsumeQueue notificationQueue, final PushController controller) {
+		super(notificationQueue, controller);
+		this.notificationCache = new SentNotificationCache(APNConnectionManager.SENT_BUFFER_CAPACITY_PER_TASK);
+		this.bootstrap = new Bootstrap()
+							.group(controller.getNioEventLoopGroup())
+							.channel(NioSocketChannel.class)
+							.option(ChannelOption.SO_KEEPALIVE, true)
+							.handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			protected void initChannel(final SocketChannel channel) throws Exception {
+				final ChannelPipeline pipeline = channel.pipeline();
+				controller.getSslContext().configurePipeline(pipeline, controller.getApnsEnviroment().getApnsGatewayHost(), controller.getApnsEnviroment().getApnsGatewayPort());
+				pipeline.addLast("decoder", new RejectedNotificationDecoder());
+				pipeline.addLast("encoder", new ApnsPushNotificationEncoder());
+				pipeline.addLast("handler", new ConnectionHandler());
+				flushStrategy.configurePipeline(pipeline);
+			}
+		});
+	}
+
+	// Take a standby channel or connect, returning at once. Sending starts after the handshake.
+	public void start() {
+		final Channel standbyChannel = this.controller.takeStandbyChannel("handler", new ConnectionHandler());
+		if (standbyChannel != null) {
+			this.connected(standbyChannel);
+			standbyChannel.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					handshaken = true; // Before it was taken
+					pump();
+				}
+			});
+			return;
+		}
+		final ChannelFuture connectFuture = this.bootstrap.connect(this.controller.getApnsEnviroment().getApnsGatewayHost(), this.controller.getApnsEnviroment().getApnsGatewayPort());
+		connectFuture.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					logger.error("Connect to APS error! Reason: " + future.cause().getMessage());
+					controller.pushRunnableWillTerminate(EventLoopPushConnection.this);
+					return;
+				}
+				connected(future.channel());
+			}
+		});
+	}
+
+	private void connected(final Channel channel) {
+		this.channel = channel;
+		this.controller.pushConnectionDidConnect(this, channel);
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				channelClosed();
+			}
+		});
+		if (this.requestTermination) {
+			channel.close();
+		}
+	}
+
+	@Override
+	public void terminate() {
+		this.requestTermination = true;
+		final Channel channel = this.channel;
+		if (channel != null) {
+			channel.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					flushPending();
+					channel.close();
+				}
+			});
+		}
+	}
+
+	@Override
+	protected boolean canPump() {
+		return this.handshaken && !this.ended && !this.rejected;
+	}
+
+	// Only the writability of the channel limits it
+	@Override
+	protected int writeLimit() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	protected void write(final SendablePushNotification notification) {
+		final int identifier = this.notificationCache.addNotification(notification);
+		this.lastWriteFuture = this.channel.write(notification);
+		this.lastWriteFuture.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					handleWriteFailure(identifier);
+				}
+			}
+		});
+		this.written(ApnsPushNotificationEncoder.FRAME_HEADER_LENGTH + notification.getFrameLength());
+	}
+
+	private void handleWriteFailure(final int failedNotificationIdentifier) {
+		final SendablePushNotification cachedNotification = this.notificationCache.getAndRemoveNotificationWithIdentifier(failedNotificationIdentifier);
+		this.logger.debug("Channel handle failed IO notification id: " + failedNotificationIdentifier + " sendablenotification: " + cachedNotification);
+		this.notificationQueue.reclaimFailedNotification(cachedNotification);
+		this.requestTermination = true;
+		this.channel.close();
+	}
+
+	private void handleRejection(final RejectedNotification rejectedNotification) {
+		final ArrayList<SendablePushNotification> notifications = this.notificationCache.getAllNotificationsAfterIdentifierAndPurgeCache(rejectedNotification.getIdentifier());
+		if (notifications.size() > 0 && notifications.get(0).getIdentifier() == rejectedNotification.getIdentifier()) {
+			final SendablePushNotification rejectedOne = notifications.get(0);
+			this.controller.reportRejectedNotification(rejectedOne.getToken(), rejectedNotification.getRejectionReason());
+			rejectedOne.acknowledge();
+			notifications.remove(0);
+		} else {
+			// Evicted already, the notifications written after it are still resent
+			this.logger.error("Failed to find the rejected notification in SentNotificationCache");
+		}
+		this.notificationQueue.reclaimFailedNotifications(notifications);
+		this.logger.debug(String.format("Hanlder rejected notification, reclaimed %d ", notifications.size()));
+		this.rejected = true;
+		this.channel.close();
+	}
+
+	// Failed writes reclaim their notifications from their listeners, the last write completing means all of them ran.
+	private void channelClosed() {
+		this.cancelPump();
+		if (this.lastWriteFuture != null && !this.lastWriteFuture.isDone()) {
+			this.lastWriteFuture.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture future) throws Exception {
+					end();
+				}
+			});
+		} else {
+			this.end();
+		}
+	}
+
+	private void end() {
+		if (this.ended) {
+			return;
+		}
+		this.ended = true;
+		if (this.rejected) {
+			// The gateway discards everything after a rejected notification
+			final ArrayList<SendablePushNotification> discarded = this.notificationCache.getAllNotificationsAfterPurgeAndPurgeCache();
+			this.notificationQueue.reclaimFailedNotifications(discarded);
+			this.logger.debug(String.format("Reclaimed %d notifications written after the rejection", discarded.size()));
+		}
+		for (SendablePushNotification notification : this.notificationCache.removeAllNotifications()) {
+			notification.acknowledge();
+		}
+		this.controller.pushRunnableWillTerminate(this);
+	}
+
+	private class ConnectionHandler extends SimpleChannelInboundHandler<RejectedNotification> {
+
+		@Override
+		protected void channelRead0(final ChannelHandlerContext context, final RejectedNotification rejectedNotification) throws Exception {
+			logger.warn(String.format("APNs gateway rejected notification with sequence number %d, reason: %s",
+					rejectedNotification.getIdentifier(), rejectedNotification.getRejectionReason()));
+			handleRejection(rejectedNotification);
+		}
+
+		@Override
+		public void userEventTriggered(final ChannelHandlerContext context, final Object event) throws Exception {
+			if (event instanceof SslHandshakeCompletionEvent) {
+				if (((SslHandshakeCompletionEvent)event).isSuccess()) {
+					channel = context.channel();
+					handshaken = true;
+					pump();
+				} else {
+					logger.error("TLS handshake with APS failed: " + ((SslHandshakeCompletionEvent)event).cause().getMessage());
+					context.close();
+				}
+			}
+			super.userEventTriggered(context, event);
+		}
+
+		@Override
+		public void channelWritabilityChanged(final ChannelHandlerContext context) throws Exception {
+			super.channelWritabilityChanged(context);
+			if (context.channel().isWritable()) {
+				pump();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+			// Assume this is a temporary IO problem. Some writes will fail, but will be re-enqueued.
+			logger.error(String.format("Caught an exception. Because: %s", cause.getMessage()), cause);
+		}
+	}
+}
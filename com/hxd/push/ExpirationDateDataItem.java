@@ -6,6 +6,9 @@ import java.util.Date;
 
 public class ExpirationDateDataItem implements PushNotificationDataItem {
 
+	public static final byte ITEM_ID = 4;
+	public static final short ITEM_LENGTH = 4;
+
 	private byte[] itemData;
 	private final Date expirationData;
 	
@@ -16,12 +19,12 @@ public class ExpirationDateDataItem implements PushNotificationDataItem {
 
 	@Override
 	public byte getItemID() {
-		return 4;
+		return ITEM_ID;
 	}
 
 	@Override
 	public short getItemLength() {
-		return 4;
+		return ITEM_LENGTH;
 	}
 
 	@Override
@@ -25,19 +25,6 @@ public class ExpiredToken {
 	}
 	
 	public static String tokenBytesToString(final byte[] tokenBytes) {
-		final StringBuilder builder = new StringBuilder();
-
-        for (final byte b : tokenBytes) {
-        	final String hexString = Integer.toHexString(b & 0xff);
-        	
-        	if (hexString.length() == 1) {
-        		// We need a leading zero
-        		builder.append("0");
-        	}
-        	
-            builder.append(hexString);
-        }
-
-        return builder.toString();
+		return DeviceTokenCodec.encode(tokenBytes);
 	}
 }
@@ -0,0 +1,56 @@
+package com.hxd.push;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Date;
+
+// The expired tokens decoded from one read of the feedback connection.
+// Tokens are kept back to back in a single array and expiration times as seconds in an int array,
+// nothing is allocated per token unless asked for with getTokenString() or getExpiredToken().
+public class ExpiredTokenBatch {
+
+	private final byte[] tokens;
+	private final int[] expirationSeconds;
+	private int size = 0;
+
+	public ExpiredTokenBatch(final int capacity) {
+		this.tokens = new byte[capacity * DeviceTokenCodec.TOKEN_LENGTH];
+		this.expirationSeconds = new int[capacity];
+	}
+
+	// Copy the token at index of the buffer, without moving its reader index
+	void add(final int expirationSeconds, final ByteBuf buffer, final int index) {
+		buffer.getBytes(index, this.tokens, this.size * DeviceTokenCodec.TOKEN_LENGTH, DeviceTokenCodec.TOKEN_LENGTH);
+		this.expirationSeconds[this.size] = expirationSeconds;
+		this.size++;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// Milliseconds since the epoch
+	public long getExpirationTime(final int index) {
+		return (this.expirationSeconds[this.checkIndex(index)] & 0xFFFFFFFFL) * 1000L;
+	}
+
+	// Copy the token into the given array of at least DeviceTokenCodec.TOKEN_LENGTH bytes
+	public void getToken(final int index, final byte[] token) {
+		System.arraycopy(this.tokens, this.checkIndex(index) * DeviceTokenCodec.TOKEN_LENGTH, token, 0, DeviceTokenCodec.TOKEN_LENGTH);
+	}
+
+	public String getTokenString(final int index) {
+		return DeviceTokenCodec.encode(this.tokens, this.checkIndex(index) * DeviceTokenCodec.TOKEN_LENGTH, DeviceTokenCodec.TOKEN_LENGTH);
+	}
+
+	public ExpiredToken getExpiredToken(final int index) {
+		return new ExpiredToken(new Date(this.getExpirationTime(index)), this.getTokenString(index));
+	}
+
+	private int checkIndex(final int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + this.size);
+		}
+		return index;
+	}
+}
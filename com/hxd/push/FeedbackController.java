@@ -2,7 +2,7 @@ package com.hxd.push;
 
 
 public interface FeedbackController {
-	void feedbackServiceDidRead(ExpiredToken expiredToken);
+	void feedbackServiceDidRead(ExpiredTokenBatch expiredTokens);
 	void feedbackServiceDidClose();
 	void feedbackServiceDidStart();
 }
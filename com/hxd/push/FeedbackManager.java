@@ -1,79 +1,175 @@
 package com.hxd.push;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.security.KeyStoreException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.google.gson.Gson;
 import com.hxd.push.APNLogEnvironment.APNLogLevel;
 
 public class FeedbackManager implements FeedbackController {
 
+	// Reading pauses while the sink has less room than this, more than the tuples of one 64KB read (1724)
+	// that may still arrive after the pause. A sink should hold a few times as many.
+	private static final int READ_HEADROOM_RECORDS = 4096;
+	
 	private final FeedbackService feedbackService;
-	private final BufferedWriter feedbackTokensFileWriter;
-	private boolean initialSuccess = false;
+	private final TokenSink feedbackTokenSink;
+	private final MappedTokenStore tokenStore;
+	// Tombstones are written to the store off the event loop, a mapped page may have to be read in first
+	private final ExecutorService tokenStoreService;
+	private final boolean initialSuccess;
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private long lastExpirationTime;
+	private String lastExpirationDateString;
 	
 	public FeedbackManager(final APNConfiguration configuration, final APNLogEnvironment logEnvironment) {
+		this(configuration.isDebug() ? APNSEnviroment.getSandboxEnvironment() : APNSEnviroment.getProductionEnvironment(),
+				configuration.getPkcs12(),
+				configuration.getPassword(),
+				FeedbackManager.createFeedbackTokenSink(logEnvironment.getLogFilePath()),
+				FeedbackManager.openTokenStore(configuration));
+	}
+	
+	// Feedback tokens are appended to feedback_<date>.txt under logFilePath
+	public FeedbackManager(final APNSEnviroment apnsEnviroment, final String pkcs12, final String password, final String logFilePath) {
+		this(apnsEnviroment, pkcs12, password, FeedbackManager.createFeedbackTokenSink(logFilePath));
+	}
+	
+	// Every expired token is written to the sink as "<token>-<expiration date>", the sink is closed with the feedback connection.
+	public FeedbackManager(final APNSEnviroment apnsEnviroment, final String pkcs12, final String password, final TokenSink feedbackTokenSink) {
+		this(apnsEnviroment, pkcs12, password, feedbackTokenSink, null);
+	}
+	
+	// Expired tokens are also tombstoned in the token store if one is given, it is closed with the feedback connection.
+	public FeedbackManager(final APNSEnviroment apnsEnviroment, final String pkcs12, final String password, final TokenSink feedbackTokenSink, final MappedTokenStore tokenStore) {
 		FeedbackService feedbackService = null;
 		try {
-			feedbackService = new FeedbackService(this, 
-					configuration.isDebug() ? APNSEnviroment.getSandboxEnvironment() : APNSEnviroment.getProductionEnvironment(),
-					configuration.getPkcs12(),
-					configuration.getPassword());
+			feedbackService = new FeedbackService(this, apnsEnviroment, pkcs12, password);
 		} catch (KeyStoreException e) {
 			e.printStackTrace();
 		}
 		this.feedbackService = feedbackService;
-		
+		this.feedbackTokenSink = feedbackTokenSink;
+		this.tokenStore = tokenStore;
+		this.tokenStoreService = tokenStore != null ? Executors.newSingleThreadExecutor() : null;
+		this.initialSuccess = feedbackService != null && feedbackTokenSink != null;
+	}
+	
+	private static TokenSink createFeedbackTokenSink(final String logFilePath) {
 		final Date currentDate = new Date();
 		DateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd_HH");
 		String dateTimeString = dateFormat.format(currentDate);
-		BufferedWriter feedbackTokensFileWriter = null;
 		try {
-			feedbackTokensFileWriter = new BufferedWriter(new FileWriter(new File(logEnvironment.getLogFilePath() + "feedback_" + dateTimeString + ".txt"), true));
-			feedbackTokensFileWriter.write("=======" + currentDate + "==========");
-			feedbackTokensFileWriter.newLine();
+			final TokenSink feedbackTokenSink = new AsyncFileTokenSink(new File(logFilePath + "feedback_" + dateTimeString + ".txt"));
+			feedbackTokenSink.write("=======" + currentDate + "==========");
+			return feedbackTokenSink;
 		} catch (IOException e) {
 			e.printStackTrace();
-			this.initialSuccess = false;
 			System.out.println("Feedback tokens file writer initialization failed. Feedback service won't start.");
+			return null;
 		}
-		this.feedbackTokensFileWriter = feedbackTokensFileWriter;
-		this.initialSuccess = true;
 	}
 
-	@Override
-	public void feedbackServiceDidRead(ExpiredToken expiredToken) {
+	private static MappedTokenStore openTokenStore(final APNConfiguration configuration) {
+		if (configuration.getTokenStore() == null) {
+			return null;
+		}
 		try {
-			this.feedbackTokensFileWriter.write(String.format("%s-%s"	, expiredToken.getTokenString(), expiredToken.getExpirationDate()));
-			this.feedbackTokensFileWriter.newLine();
+			return new MappedTokenStore(new File(configuration.getTokenStore()), configuration.getTokenStoreCapacity());
 		} catch (IOException e) {
 			e.printStackTrace();
-			try {
-				this.feedbackTokensFileWriter.close();
-			} catch (IOException e1) {
-				System.err.println("BufferedWriter cannot be closed!");
-				e1.printStackTrace();
+			System.out.println("Token store initialization failed, expired tokens are only written to the feedback file.");
+			return null;
+		}
+	}
+
+	// Called on the event loop, the sink only queues the records
+	@Override
+	public void feedbackServiceDidRead(final ExpiredTokenBatch expiredTokens) {
+		for (int i = 0; i < expiredTokens.size(); i++) {
+			// Feedback tuples come grouped by time, so the date text is only rebuilt when it changes
+			final long expirationTime = expiredTokens.getExpirationTime(i);
+			if (expirationTime != this.lastExpirationTime || this.lastExpirationDateString == null) {
+				this.lastExpirationTime = expirationTime;
+				this.lastExpirationDateString = new Date(expirationTime).toString();
 			}
+			this.feedbackTokenSink.write(expiredTokens.getTokenString(i) + "-" + this.lastExpirationDateString);
+		}
+		if (this.tokenStore != null) {
+			this.tokenStoreService.execute(new Runnable() {
+				@Override
+				public void run() {
+					final byte[] expiredToken = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+					for (int i = 0; i < expiredTokens.size(); i++) {
+						expiredTokens.getToken(i, expiredToken);
+						tokenStore.markExpired(expiredToken);
+					}
+				}
+			});
+		}
+		if (!this.feedbackTokenSink.canWrite(READ_HEADROOM_RECORDS)) {
+			// The gateway sends every tuple once, the connection waits for the sink rather than the sink dropping them
+			this.feedbackService.pauseReading();
+			this.feedbackTokenSink.whenWritable(READ_HEADROOM_RECORDS, new Runnable() {
+				@Override
+				public void run() {
+					feedbackService.resumeReading();
+				}
+			});
 		}
 	}
 
+	// Called on the event loop. Closing the sink joins its writer and syncs the file, the store unmaps itself,
+	// so both are closed on a thread of their own.
 	@Override
 	public void feedbackServiceDidClose() {
+		final ExecutorService closeService = Executors.newSingleThreadExecutor();
+		closeService.submit(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+		closeService.shutdown();
+	}
+	
+	// Return false if the feedback files are still not closed after the timeout
+	public boolean awaitClosed(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.closed.await(timeout, unit);
+	}
+	
+	private void close() {
 		try {
-			this.feedbackTokensFileWriter.close();
+			this.feedbackTokenSink.close();
 		} catch (IOException e) {
-			System.err.println("BufferedWriter cannot be closed!");
+			System.err.println("Feedback token sink cannot be closed!");
 			e.printStackTrace();
 		}
+		if (this.tokenStore != null) {
+			this.tokenStoreService.shutdown();
+			try {
+				this.tokenStoreService.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				this.tokenStore.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		this.feedbackService.shutdown();
+		this.closed.countDown();
 	}
 
 	@Override
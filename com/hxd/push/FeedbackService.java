@@ -4,15 +4,12 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.util.Date;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
@@ -23,28 +20,21 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.ReplayingDecoder;
 import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.util.concurrent.GenericFutureListener;
 
 public class FeedbackService {
 	
-	private enum FeedbackDecodeState {
-		TIMESTAMP,
-		TOKEN_LENGTH,
-		DEVICE_TOKEN
-	}
-	
 	private final EventLoopGroup nioEventLoopGroup;
 	private final Bootstrap bootstrap;
 	private final APNSEnviroment apnsEnviroment;
 	private final FeedbackController feedbackController;
+	private final ApnsClientSslContext sslContext;
 	private final Logger logger = LoggerFactory.getLogger(FeedbackService.class);
 	
-	private Channel channel;
-	private Date expirationDate;
-	private byte[] token;
+	private volatile Channel channel;
+	
 	public FeedbackService(final FeedbackController feedbackController, final APNSEnviroment apnsEnviroment, final String apsPKCS12FilePath, final String password) throws KeyStoreException {
 		this.apnsEnviroment = apnsEnviroment;
 		this.feedbackController = feedbackController;
@@ -61,8 +51,8 @@ public class FeedbackService {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		this.sslContext = new ApnsClientSslContext(keyStore, keystorePassword, apnsEnviroment.getTrustManagerFactory());
 		
-		final FeedbackService connection = this;
 		this.bootstrap = new Bootstrap()
 							.group(this.nioEventLoopGroup)
 							.channel(NioSocketChannel.class)
@@ -70,52 +60,21 @@ public class FeedbackService {
 
 								@Override
 								protected void initChannel(SocketChannel socketChannel) throws Exception {
+									channel = socketChannel; // Before the first read, which may pause reading
 									final ChannelPipeline channelPipeline = socketChannel.pipeline();
-									channelPipeline.addLast("ssl", SslHandlerUtil.createSslHandler(keyStore, keystorePassword));
+									sslContext.configurePipeline(channelPipeline, apnsEnviroment.getFeedbackHost(), apnsEnviroment.getFeedbackPort());
 									channelPipeline.addLast("readTimeoutHandler", new ReadTimeoutHandler(30, TimeUnit.SECONDS));
-									channelPipeline.addLast("decoder", new FeedbackTupleDecoder(connection));
+									channelPipeline.addLast("decoder", new FeedbackTupleDecoder());
 									channelPipeline.addLast("handler", new FeedbackHandler());
 								}
 							});   
 	}
 	
-	private class FeedbackTupleDecoder extends ReplayingDecoder<FeedbackDecodeState> {
+	private class FeedbackHandler extends SimpleChannelInboundHandler<ExpiredTokenBatch> {
 		
-		private final FeedbackService connection;
-		public FeedbackTupleDecoder(final FeedbackService connection) {
-			super(FeedbackDecodeState.TIMESTAMP);
-			this.connection = connection;
-		}
-
 		@Override
-		protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-			switch (state()) {
-			case TIMESTAMP:
-				final long timestamp = (in.readInt() & 0xFFFFFFFFL) * 1000L;
-				this.connection.expirationDate = new Date(timestamp);
-				checkpoint(FeedbackDecodeState.TOKEN_LENGTH);
-				break;
-			case TOKEN_LENGTH:
-				this.connection.token = new byte[in.readShort() & 0x0000FFFF];
-				checkpoint(FeedbackDecodeState.DEVICE_TOKEN);
-				break;
-			case DEVICE_TOKEN:
-				in.readBytes(this.connection.token);
-				out.add(new ExpiredToken(this.connection.expirationDate, this.connection.token));
-				checkpoint(FeedbackDecodeState.TIMESTAMP);
-				break;
-			default:
-				break;
-			}
-		}
-		
-	}
-	
-	private class FeedbackHandler extends SimpleChannelInboundHandler<ExpiredToken> {
-		
-		@Override
-		protected void channelRead0(ChannelHandlerContext ctx, ExpiredToken expiredToken) throws Exception {
-			feedbackController.feedbackServiceDidRead(expiredToken);
+		protected void channelRead0(ChannelHandlerContext ctx, ExpiredTokenBatch expiredTokens) throws Exception {
+			feedbackController.feedbackServiceDidRead(expiredTokens);
 		}
 		
 		@Override
@@ -154,6 +113,26 @@ public class FeedbackService {
 		}
 	}
 	
+	// Called on the event loop by the controller: no more feedback is read until resumeReading()
+	public void pauseReading() {
+		this.channel.config().setAutoRead(false);
+	}
+	
+	// May be called from any thread
+	public void resumeReading() {
+		final Channel channel = this.channel;
+		channel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				channel.config().setAutoRead(true);
+			}
+		});
+	}
+	
+	public TlsHandshakeMetrics getHandshakeMetrics() {
+		return this.sslContext.getHandshakeMetrics();
+	}
+	
 	public synchronized void shutdown() {
 		this.nioEventLoopGroup.shutdownGracefully();
 	}
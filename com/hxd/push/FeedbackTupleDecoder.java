@@ -0,0 +1,44 @@
+package com.hxd.push;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.List;
+
+// Decodes the feedback stream of (4 byte timestamp, 2 byte token length, token) tuples.
+// All whole tuples received so far are decoded in one pass into a single ExpiredTokenBatch,
+// a partial tuple stays in the cumulation buffer until the rest of it arrives.
+// Feedback tokens are always 32 bytes, so a tuple is 38 bytes; any other token length is treated as a corrupted stream.
+public class FeedbackTupleDecoder extends ByteToMessageDecoder {
+
+	public static final int TUPLE_HEADER_LENGTH = 4 + 2;
+	public static final int TUPLE_LENGTH = TUPLE_HEADER_LENGTH + DeviceTokenCodec.TOKEN_LENGTH;
+
+	@Override
+	protected void decode(final ChannelHandlerContext context, final ByteBuf in, final List<Object> out) {
+		final int tuples = in.readableBytes() / TUPLE_LENGTH;
+		if (tuples == 0) {
+			return;
+		}
+
+		final ExpiredTokenBatch batch = new ExpiredTokenBatch(tuples);
+		int index = in.readerIndex();
+		for (int i = 0; i < tuples; i++) {
+			final int tokenLength = in.getUnsignedShort(index + 4);
+			if (tokenLength != DeviceTokenCodec.TOKEN_LENGTH) {
+				// The tuples before it are still delivered, the rest of the stream can not be framed
+				if (batch.size() > 0) {
+					out.add(batch);
+				}
+				in.skipBytes(in.readableBytes());
+				throw new CorruptedFrameException("Unexpected feedback token length: " + tokenLength);
+			}
+			batch.add(in.getInt(index), in, index + TUPLE_HEADER_LENGTH);
+			index += TUPLE_LENGTH;
+		}
+		in.readerIndex(index);
+		out.add(batch);
+	}
+}
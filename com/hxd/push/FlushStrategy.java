@@ -0,0 +1,28 @@
+package com.hxd.push;
+
+import io.netty.channel.ChannelPipeline;
+
+import java.util.concurrent.TimeUnit;
+
+// Decides when a push connection flushes its written notifications to the socket.
+// shouldFlush is asked after every written notification. When the queue runs dry, pending writes are flushed
+// at the latest getMaxFlushDelayNanos() after the first of them was written.
+// Strategies hold no per-connection state, so one instance may be shared by all connections of a controller.
+public abstract class FlushStrategy {
+	
+	private final long maxFlushDelayNanos;
+	
+	protected FlushStrategy(final long maxFlushDelay, final TimeUnit unit) {
+		this.maxFlushDelayNanos = unit.toNanos(maxFlushDelay);
+	}
+	
+	public abstract boolean shouldFlush(int pendingNotifications, long pendingBytes, long pendingNanos);
+	
+	public long getMaxFlushDelayNanos() {
+		return this.maxFlushDelayNanos;
+	}
+	
+	// Called once for every new push channel, strategies may install handlers of their own.
+	public void configurePipeline(final ChannelPipeline pipeline) {
+	}
+}
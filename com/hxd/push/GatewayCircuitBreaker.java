@@ -0,0 +1,138 @@
+package com.hxd.push;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Paces the reconnects of all connections of an APNConnectionManager to the gateway, so an outage does not turn
+// into a tight reconnect loop. A connection that ended without completing its TLS handshake is a failed connect,
+// one that completed it closes the breaker. Only live connections count, standby channels back off on their own.
+// After failed connects a reconnect waits a jittered exponential backoff: between half and all of
+// BASE_BACKOFF * 2^(failures - 1), at most MAX_BACKOFF. Once FAILURE_THRESHOLD connects failed in a row the breaker
+// opens: no connection is attempted until the backoff has passed, then a single probe connection is let through
+// (half open). Its success closes the breaker, its failure opens it again for longer. Connects that fail while the
+// breaker is open were started before it opened and do not lengthen the backoff.
+// Producers are held while the breaker is not closed, instead of filling the queue for connections that can not send.
+// ThreadSafe
+public class GatewayCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final int FAILURE_THRESHOLD = 5;
+	private static final long BASE_BACKOFF_MILLISECONDS = 100;
+	private static final long MAX_BACKOFF_MILLISECONDS = 30 * 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(GatewayCircuitBreaker.class);
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openUntil = 0;
+	private boolean probing = false;
+	private boolean shutdown = false;
+	private long failures = 0;
+	private long opened = 0;
+
+	public synchronized void connectSucceeded() {
+		if (this.state != State.CLOSED) {
+			this.logger.info(String.format("Gateway reachable again after %d failed connects, circuit breaker closed", this.consecutiveFailures));
+		}
+		this.state = State.CLOSED;
+		this.consecutiveFailures = 0;
+		this.probing = false;
+		this.notifyAll();
+	}
+
+	public synchronized void connectFailed() {
+		this.failures++;
+		if (this.state == State.OPEN) {
+			return; // Started before the breaker opened, it must not stretch the open time
+		}
+		this.consecutiveFailures++;
+		this.probing = false;
+		if (this.state == State.HALF_OPEN || this.consecutiveFailures >= FAILURE_THRESHOLD) {
+			final long backoff = this.backoffMillis();
+			this.opened++;
+			this.logger.warn(String.format("%d connects to the gateway failed in a row, circuit breaker open for %d ms", this.consecutiveFailures, backoff));
+			this.state = State.OPEN;
+			this.openUntil = System.currentTimeMillis() + backoff;
+		}
+	}
+
+	// A connection that connected but can not send, e.g. because the gateway refuses its credentials, opens the
+	// breaker at once: a replacement would fail the same way. Other connections failing alike meanwhile do not
+	// lengthen the backoff.
+	public synchronized void trip() {
+		this.failures++;
+		if (this.state == State.OPEN) {
+			return;
+		}
+		this.consecutiveFailures = Math.max(this.consecutiveFailures + 1, FAILURE_THRESHOLD);
+		this.probing = false;
+		final long backoff = this.backoffMillis();
+		this.opened++;
+		this.logger.warn(String.format("Connection to the gateway can not send, circuit breaker open for %d ms", backoff));
+		this.state = State.OPEN;
+		this.openUntil = System.currentTimeMillis() + backoff;
+	}
+
+	// How long the next reconnect has to wait, 0 to connect now. While half open only one probe is let through.
+	public synchronized long reconnectDelayMillis() {
+		if (this.state == State.CLOSED) {
+			return this.consecutiveFailures == 0 ? 0 : this.backoffMillis();
+		}
+		final long now = System.currentTimeMillis();
+		if (this.state == State.OPEN && now < this.openUntil) {
+			return this.openUntil - now;
+		}
+		this.state = State.HALF_OPEN;
+		if (!this.probing) {
+			this.probing = true;
+			return 0;
+		}
+		return this.backoffMillis();
+	}
+
+	// Hold the caller while the breaker is not closed
+	public synchronized void awaitClosed() throws InterruptedException {
+		while (this.state != State.CLOSED && !this.shutdown) {
+			this.wait();
+		}
+	}
+
+	// Release the held producers for good
+	public synchronized void shutdown() {
+		this.shutdown = true;
+		this.notifyAll();
+	}
+
+	public synchronized State getState() {
+		return this.state;
+	}
+
+	public synchronized int getConsecutiveFailureCount() {
+		return this.consecutiveFailures;
+	}
+
+	public synchronized long getFailureCount() {
+		return this.failures;
+	}
+
+	// Times the breaker opened from closed or half open
+	public synchronized long getOpenCount() {
+		return this.opened;
+	}
+
+	// Guarded by this
+	private long backoffMillis() {
+		final long backoff = Math.min(MAX_BACKOFF_MILLISECONDS, BASE_BACKOFF_MILLISECONDS << Math.max(0, Math.min(30, this.consecutiveFailures - 1)));
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("GatewayCircuitBreaker: %s, %d consecutive failed connects, %d in all, opened %d times", this.state, this.consecutiveFailures, this.failures, this.opened);
+	}
+}
@@ -0,0 +1,477 @@
+package com.hxd.push;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2ChannelDuplexHandler;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+// A connection to the APNs HTTP/2 provider API, driven by the event loop of its channel like EventLoopPushConnection.
+// Every notification is a POST on a stream of its own, up to maxConcurrentStreams of them in flight at once,
+// bounded further by what the gateway announces in its SETTINGS. Each stream gets its own status: a rejection
+// settles only its notification and the connection goes on. Notifications the gateway did not answer before the
+// connection ended are reclaimed. Those it answered with a retryable status (429 or 5xx) are reclaimed after a delay
+// that doubles with each retry of the notification, and given up as rejected after MAX_RETRIES: the reclaimed
+// notifications are sent first, right away they would only be refused again. Until then they hold their streams,
+// so a connection never has more than its stream limit to reclaim when it ends.
+// A GOAWAY from the gateway stops new streams; the connection closes once the streams it still processes are answered.
+// With a provider token every request carries its cached authorization, a token reported expired is refreshed and
+// the notification sent again. Authentication the gateway refuses is a fault of the connection, not of its
+// notifications: they are reclaimed, the connection closes and the controller trips its circuit breaker.
+// The topic of a notification overrides the default topic of the connection.
+// ThreadSafe: the state is confined to the event loop of the channel, terminate() hands over to it.
+public class Http2PushConnection extends AbstractEventLoopPushConnection {
+
+	// After terminate(), streams still unanswered for this long are given up and reclaimed
+	private static final long TERMINATION_TIMEOUT_MILLISECONDS = 5000;
+	private static final int MAX_RETRIES = 8;
+	private static final long RETRY_DELAY_MILLISECONDS = 100;
+	private static final long MAX_RETRY_DELAY_MILLISECONDS = 10000;
+	private static final String PATH_PREFIX = "/3/device/";
+	private static final AsciiString APNS_TOPIC = AsciiString.cached("apns-topic");
+	private static final AsciiString AUTHORIZATION = AsciiString.cached("authorization");
+	private static final String EXPIRED_PROVIDER_TOKEN = "ExpiredProviderToken";
+	private static final String INVALID_PROVIDER_TOKEN = "InvalidProviderToken";
+	private static final String MISSING_PROVIDER_TOKEN = "MissingProviderToken";
+	private static final AsciiString APNS_EXPIRATION = AsciiString.cached("apns-expiration");
+	private static final AsciiString APNS_PRIORITY = AsciiString.cached("apns-priority");
+	private static final AsciiString DEFAULT_PRIORITY = AsciiString.cached(String.valueOf(PriorityDataItem.DEFAULT_PRIORITY));
+	private static final AsciiString POST = AsciiString.cached("POST");
+	private static final AsciiString HTTPS = AsciiString.cached("https");
+	private static final Gson GSON = new Gson();
+
+	private final Bootstrap bootstrap;
+	private final Logger logger = LoggerFactory.getLogger(Http2PushConnection.class);
+	private final AsciiString authority;
+	private final AsciiString topic;
+	private final ApnsProviderToken providerToken;
+	private final int maxConcurrentStreams;
+	// Event loop only
+	private final Map<Http2FrameStream, InFlightNotification> inFlight = new HashMap<Http2FrameStream, InFlightNotification>();
+	private final Map<SendablePushNotification, ScheduledFuture<?>> delayedRetries = new HashMap<SendablePushNotification, ScheduledFuture<?>>();
+	private ConnectionHandler handler;
+	private boolean ready = false;
+	private boolean goingAway = false;
+	private boolean ended = false;
+	private boolean streamsFreed = false;
+	private boolean faulted = false;
+	private int streamLimit;
+
+	// A null topic leaves the apns-topic header out for notifications without one, the gateway then takes the topic
+	// of the certificate. A null providerToken authenticates by the client certificate of the TLS context.
+	public Http2PushConnection(final NotificationReclaimableConsumeQueue notificationQueue, final PushController controller, final String topic, final int maxConcurrentStreams,
+			final ApnsProviderToken providerToken) {
+		super(notificationQueue, controller);
+		final APNSEnviroment environment = controller.getApnsEnviroment();
+		this.authority = new AsciiString(environment.getApnsGatewayHost() + ":" + environment.getApnsGatewayPort());
+		this.topic = topic != null ? new AsciiString(topic) : null;
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		this.providerToken = providerToken;
+		this.streamLimit = maxConcurrentStreams;
+		this.bootstrap = new Bootstrap()
+							.group(controller.getNioEventLoopGroup())
+							.channel(NioSocketChannel.class)
+							.option(ChannelOption.SO_KEEPALIVE, true)
+							.handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			protected void initChannel(final SocketChannel channel) throws Exception {
+				final ChannelPipeline pipeline = channel.pipeline();
+				controller.getSslContext().configurePipeline(pipeline, environment.getApnsGatewayHost(), environment.getApnsGatewayPort());
+				pipeline.addLast("http2", Http2FrameCodecBuilder.forClient()
+													.initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+													.build());
+				pipeline.addLast("handler", new ConnectionHandler());
+				flushStrategy.configurePipeline(pipeline);
+			}
+		});
+	}
+
+	// Connect, returning at once. Sending starts once the gateway sent its SETTINGS.
+	public void start() {
+		final ChannelFuture connectFuture = this.bootstrap.connect(this.controller.getApnsEnviroment().getApnsGatewayHost(), this.controller.getApnsEnviroment().getApnsGatewayPort());
+		connectFuture.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					logger.error("Connect to APS error! Reason: " + future.cause().getMessage());
+					controller.pushRunnableWillTerminate(Http2PushConnection.this);
+					return;
+				}
+				connected(future.channel());
+			}
+		});
+	}
+
+	private void connected(final Channel channel) {
+		this.channel = channel;
+		this.controller.pushConnectionDidConnect(this, channel);
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				end();
+			}
+		});
+		if (this.requestTermination) {
+			channel.close();
+		}
+	}
+
+	@Override
+	public void terminate() {
+		this.requestTermination = true;
+		final Channel channel = this.channel;
+		if (channel != null) {
+			channel.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					flushPending();
+					closeWhenAnswered();
+				}
+			});
+			channel.eventLoop().schedule(new Runnable() {
+				@Override
+				public void run() {
+					channel.close();
+				}
+			}, TERMINATION_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	protected boolean canPump() {
+		return this.ready && !this.ended && !this.goingAway && !this.faulted;
+	}
+
+	// The streams left, responses free them and so do delayed retries once reclaimed
+	@Override
+	protected int writeLimit() {
+		return this.streamLimit - this.inFlight.size() - this.delayedRetries.size();
+	}
+
+	@Override
+	protected void write(final SendablePushNotification notification) {
+		final Http2FrameStream stream = this.handler.newStream();
+		final InFlightNotification inFlightNotification = new InFlightNotification(notification);
+		this.inFlight.put(stream, inFlightNotification);
+
+		final Http2Headers headers = new DefaultHttp2Headers()
+										.method(POST)
+										.scheme(HTTPS)
+										.authority(this.authority)
+										.path(PATH_PREFIX + DeviceTokenCodec.encode(notification.getTokenBytes()));
+		headers.add(APNS_PRIORITY, DEFAULT_PRIORITY);
+		headers.addInt(APNS_EXPIRATION, notification.getExpirationTime());
+		if (notification.getTopic() != null) {
+			headers.add(APNS_TOPIC, notification.getTopic());
+		} else if (this.topic != null) {
+			headers.add(APNS_TOPIC, this.topic);
+		}
+		if (this.providerToken != null) {
+			inFlightNotification.authorization = this.providerToken.getAuthorization();
+			headers.add(AUTHORIZATION, inFlightNotification.authorization);
+		}
+		final ChannelFutureListener failureListener = new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					streamFailed(stream, future.cause());
+				}
+			}
+		};
+		this.channel.write(new DefaultHttp2HeadersFrame(headers, false).stream(stream)).addListener(failureListener);
+		this.channel.write(new DefaultHttp2DataFrame(notification.retainedPayloadBuffer(), true).stream(stream)).addListener(failureListener);
+		this.written(notification.getPayloadLength());
+	}
+
+	// The notification of a stream that failed or was reset goes back to the queue, unless it was answered already
+	private void streamFailed(final Http2FrameStream stream, final Throwable cause) {
+		final InFlightNotification inFlightNotification = this.inFlight.remove(stream);
+		if (inFlightNotification != null) {
+			this.logger.debug("Stream failed, notification reclaimed: " + (cause != null ? cause.getMessage() : "reset by the gateway"));
+			this.notificationQueue.reclaimFailedNotification(inFlightNotification.notification);
+			this.streamFreed();
+		}
+	}
+
+	private void responseCompleted(final Http2FrameStream stream) {
+		final InFlightNotification inFlightNotification = this.inFlight.remove(stream);
+		if (inFlightNotification == null) {
+			return;
+		}
+		final SendablePushNotification notification = inFlightNotification.notification;
+		final int status = inFlightNotification.status;
+		if (status == HttpResponseStatus.OK.code()) {
+			notification.acknowledge();
+		} else if (status == HttpResponseStatus.TOO_MANY_REQUESTS.code() || status >= HttpResponseStatus.INTERNAL_SERVER_ERROR.code()) {
+			// The gateway could not take it now, not a verdict on the notification
+			this.retryLater(notification, status, this.reason(inFlightNotification.body));
+		} else {
+			final String reason = this.reason(inFlightNotification.body);
+			if (this.providerToken != null && EXPIRED_PROVIDER_TOKEN.equals(reason)) {
+				// Not a verdict on the notification either, it goes again with a fresh token
+				this.providerToken.expired(inFlightNotification.authorization);
+				this.notificationQueue.reclaimFailedNotification(notification);
+			} else if ((INVALID_PROVIDER_TOKEN.equals(reason) || MISSING_PROVIDER_TOKEN.equals(reason))) {
+				// Every request of the connection would be refused alike, the notification waits for a connection that is let in
+				this.notificationQueue.reclaimFailedNotification(notification);
+				this.fault(String.format("APNs gateway refused the authentication of the connection with status %d, reason: %s", status, reason));
+			} else {
+				this.logger.warn(String.format("APNs gateway rejected notification with status %d, reason: %s", status, reason));
+				this.controller.reportRejectedNotification(notification.getToken(), RejectedNotificationReason.getByHttp2Reason(reason));
+				notification.acknowledge();
+			}
+		}
+		this.streamFreed();
+	}
+
+	// Reclaim the notification once its delay is over, or when the connection ends before
+	private void retryLater(final SendablePushNotification notification, final int status, final String reason) {
+		final int retries = notification.retried();
+		if (retries > MAX_RETRIES) {
+			this.logger.warn(String.format("APNs gateway answered %d (%s) %d times, notification given up", status, reason, MAX_RETRIES));
+			this.controller.reportRejectedNotification(notification.getToken(), RejectedNotificationReason.getByHttp2Reason(reason));
+			notification.acknowledge();
+			return;
+		}
+		final long delay = Math.min(RETRY_DELAY_MILLISECONDS << (retries - 1), MAX_RETRY_DELAY_MILLISECONDS);
+		this.logger.debug(String.format("APNs gateway answered %d, notification reclaimed in %d ms", status, delay));
+		this.delayedRetries.put(notification, this.channel.eventLoop().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (delayedRetries.remove(notification) != null) {
+					notificationQueue.reclaimFailedNotification(notification);
+					pump();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS));
+	}
+
+	// Stop sending, close and leave it to the controller to back off. What is still in flight is reclaimed when it
+	// is answered or the connection ends.
+	private void fault(final String cause) {
+		if (this.faulted) {
+			return;
+		}
+		this.faulted = true;
+		this.controller.pushConnectionDidFail(this, cause);
+		this.channel.close();
+	}
+
+	private String reason(final StringBuilder body) {
+		if (body == null) {
+			return null;
+		}
+		try {
+			final ErrorResponse errorResponse = GSON.fromJson(body.toString(), ErrorResponse.class);
+			return errorResponse != null ? errorResponse.reason : null;
+		} catch (JsonSyntaxException e) {
+			return null;
+		}
+	}
+
+	private void streamFreed() {
+		this.streamsFreed = true;
+		if (this.goingAway || this.requestTermination) {
+			this.closeWhenAnswered();
+		}
+	}
+
+	private void closeWhenAnswered() {
+		if (this.inFlight.isEmpty() && this.channel.isOpen()) {
+			this.channel.close();
+		}
+	}
+
+	// The gateway did not and will not process the streams after lastStreamId, they are reclaimed right away
+	private void goAway(final int lastStreamId, final long errorCode, final String debugData) {
+		this.logger.warn(String.format("APNs gateway going away, error code %d, last stream %d: %s", errorCode, lastStreamId, debugData));
+		this.goingAway = true;
+		final Iterator<Map.Entry<Http2FrameStream, InFlightNotification>> iterator = this.inFlight.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<Http2FrameStream, InFlightNotification> entry = iterator.next();
+			if (entry.getKey().id() > lastStreamId || entry.getKey().id() <= 0) {
+				iterator.remove();
+				this.notificationQueue.reclaimFailedNotification(entry.getValue().notification);
+			}
+		}
+		this.closeWhenAnswered();
+	}
+
+	// Whatever is still in flight was not answered and may not have been delivered, it is sent again, as are the
+	// notifications waiting to be retried
+	private void end() {
+		if (this.ended) {
+			return;
+		}
+		this.ended = true;
+		this.cancelPump();
+		final List<SendablePushNotification> unanswered = new ArrayList<SendablePushNotification>(this.inFlight.size());
+		for (InFlightNotification inFlightNotification : this.inFlight.values()) {
+			unanswered.add(inFlightNotification.notification);
+		}
+		this.inFlight.clear();
+		for (Map.Entry<SendablePushNotification, ScheduledFuture<?>> entry : this.delayedRetries.entrySet()) {
+			entry.getValue().cancel(false);
+			unanswered.add(entry.getKey());
+		}
+		this.delayedRetries.clear();
+		if (!unanswered.isEmpty()) {
+			this.notificationQueue.reclaimFailedNotifications(unanswered);
+			this.logger.debug(String.format("Reclaimed %d notifications not answered before the connection ended", unanswered.size()));
+		}
+		this.controller.pushRunnableWillTerminate(this);
+	}
+
+	// The notification of a stream and its response as far as it was read
+	private static class InFlightNotification {
+		final SendablePushNotification notification;
+		int status;
+		StringBuilder body;
+		AsciiString authorization;
+
+		InFlightNotification(final SendablePushNotification notification) {
+			this.notification = notification;
+		}
+	}
+
+	// The JSON body of an error response
+	private static class ErrorResponse {
+		String reason;
+	}
+
+	private class ConnectionHandler extends Http2ChannelDuplexHandler {
+
+		@Override
+		protected void handlerAdded0(final ChannelHandlerContext context) throws Exception {
+			handler = this;
+		}
+
+		@Override
+		public void channelRead(final ChannelHandlerContext context, final Object message) throws Exception {
+			try {
+				if (message instanceof Http2HeadersFrame) {
+					final Http2HeadersFrame headersFrame = (Http2HeadersFrame)message;
+					final InFlightNotification inFlightNotification = inFlight.get(headersFrame.stream());
+					if (inFlightNotification != null && headersFrame.headers().status() != null) {
+						inFlightNotification.status = HttpResponseStatus.parseLine(headersFrame.headers().status()).code();
+					}
+					if (headersFrame.isEndStream()) {
+						responseCompleted(headersFrame.stream());
+					}
+				} else if (message instanceof Http2DataFrame) {
+					final Http2DataFrame dataFrame = (Http2DataFrame)message;
+					// Give the bytes back to the flow control window of the gateway
+					if (dataFrame.initialFlowControlledBytes() > 0) {
+						context.write(new DefaultHttp2WindowUpdateFrame(dataFrame.initialFlowControlledBytes()).stream(dataFrame.stream()));
+					}
+					final InFlightNotification inFlightNotification = inFlight.get(dataFrame.stream());
+					if (inFlightNotification != null) {
+						if (inFlightNotification.body == null) {
+							inFlightNotification.body = new StringBuilder();
+						}
+						inFlightNotification.body.append(dataFrame.content().toString(CharsetUtil.UTF_8));
+					}
+					if (dataFrame.isEndStream()) {
+						responseCompleted(dataFrame.stream());
+					}
+				} else if (message instanceof Http2ResetFrame) {
+					streamFailed(((Http2ResetFrame)message).stream(), null);
+				} else if (message instanceof Http2SettingsFrame) {
+					final Long remoteMaxConcurrentStreams = ((Http2SettingsFrame)message).settings().maxConcurrentStreams();
+					if (remoteMaxConcurrentStreams != null) {
+						streamLimit = (int)Math.min(maxConcurrentStreams, remoteMaxConcurrentStreams);
+					}
+					ready = true;
+					pump();
+				} else if (message instanceof Http2GoAwayFrame) {
+					final Http2GoAwayFrame goAwayFrame = (Http2GoAwayFrame)message;
+					goAway(goAwayFrame.lastStreamId(), goAwayFrame.errorCode(), goAwayFrame.content().toString(CharsetUtil.UTF_8));
+				}
+			} finally {
+				ReferenceCountUtil.release(message);
+			}
+		}
+
+		@Override
+		public void channelReadComplete(final ChannelHandlerContext context) throws Exception {
+			context.flush(); // Window updates
+			if (streamsFreed) {
+				streamsFreed = false;
+				pump();
+			}
+			super.channelReadComplete(context);
+		}
+
+		@Override
+		public void userEventTriggered(final ChannelHandlerContext context, final Object event) throws Exception {
+			if (event instanceof SslHandshakeCompletionEvent) {
+				if (((SslHandshakeCompletionEvent)event).isSuccess()) {
+					channel = context.channel();
+					final String protocol = context.pipeline().get(SslHandler.class).applicationProtocol();
+					if (!ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+						logger.error("APS did not negotiate HTTP/2 but " + protocol);
+						context.close();
+					}
+				} else {
+					logger.error("TLS handshake with APS failed: " + ((SslHandshakeCompletionEvent)event).cause().getMessage());
+					context.close();
+				}
+			}
+			super.userEventTriggered(context, event);
+		}
+
+		@Override
+		public void channelWritabilityChanged(final ChannelHandlerContext context) throws Exception {
+			super.channelWritabilityChanged(context);
+			if (context.channel().isWritable()) {
+				pump();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+			// Stream errors fail their writes, which reclaim. A connection error closes the channel.
+			logger.error(String.format("Caught an exception. Because: %s", cause.getMessage()), cause);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.hxd.push;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// An off-heap Bloom filter of device tokens known to be invalid, consulted before a notification is enqueued
+// so a token APNs already rejected does not cost another rejection and a reconnect.
+// A token that was added is always reported; a token that was not is reported with the false positive probability,
+// which stays near the configured rate as long as no more tokens than the expected number are added.
+// The bit array lives in a direct buffer, call release() when the filter is no longer used.
+// ThreadSafe: additions are synchronized, lookups read the bits without a lock and may miss a concurrent addition.
+public class InvalidTokenFilter {
+
+	public static final long DEFAULT_EXPECTED_TOKENS = 10 * 1000 * 1000;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+	private static final long MAX_BITS = 1L << 33; // a 1GB buffer
+	private static final char FEEDBACK_SEPARATOR = '-';
+
+	private final Logger logger = LoggerFactory.getLogger(InvalidTokenFilter.class);
+	private final ByteBuffer bits;
+	private final long bitMask;
+	private final int hashFunctions;
+	private final AtomicLong checks = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+
+	private long tokens = 0;
+
+	public InvalidTokenFilter() {
+		this(DEFAULT_EXPECTED_TOKENS, DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	public InvalidTokenFilter(final long expectedTokens, final double falsePositiveRate) {
+		if (expectedTokens <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException(String.format("Illegal filter size: %d tokens at %f", expectedTokens, falsePositiveRate));
+		}
+		// m = -n ln(p) / ln(2)^2 bits, rounded up to a power of two so a hash is reduced with a mask
+		final double optimalBits = -expectedTokens * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		long bitCount = 64;
+		while (bitCount < optimalBits && bitCount < MAX_BITS) {
+			bitCount <<= 1;
+		}
+		this.bitMask = bitCount - 1;
+		// k = -log2(p) probes reach the rate; rounding the bits up only lowers it further
+		this.hashFunctions = Math.max(1, (int)Math.round(-Math.log(falsePositiveRate) / Math.log(2)));
+		this.bits = ByteBuffer.allocateDirect((int)Math.min(bitCount / 8, Integer.MAX_VALUE));
+	}
+
+	public synchronized void add(final byte[] token) {
+		final long h1 = InvalidTokenFilter.hash(token, 0);
+		final long h2 = InvalidTokenFilter.hash(token, 8) | 1;
+		for (int i = 0; i < this.hashFunctions; i++) {
+			final long bit = (h1 + i * h2) & this.bitMask;
+			final int index = (int)(bit >>> 6) << 3;
+			this.bits.putLong(index, this.bits.getLong(index) | (1L << bit));
+		}
+		this.tokens++;
+	}
+
+	// Also counts the check and the hit
+	public boolean mightContain(final byte[] token) {
+		this.checks.incrementAndGet();
+		final long h1 = InvalidTokenFilter.hash(token, 0);
+		final long h2 = InvalidTokenFilter.hash(token, 8) | 1;
+		for (int i = 0; i < this.hashFunctions; i++) {
+			final long bit = (h1 + i * h2) & this.bitMask;
+			if ((this.bits.getLong((int)(bit >>> 6) << 3) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		this.hits.incrementAndGet();
+		return true;
+	}
+
+	// Add the tokens of an invalid token file (one token per line) or a feedback file ("<token>-<date>" lines),
+	// lines without a legal token are skipped. Return the number of tokens added.
+	public long load(final File file) throws IOException {
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+		long added = 0;
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				final int separator = line.indexOf(FEEDBACK_SEPARATOR);
+				if (DeviceTokenCodec.decode(separator < 0 ? line : line.substring(0, separator), token)) {
+					this.add(token);
+					added++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		this.logger.info(String.format("%d invalid tokens loaded from %s", added, file));
+		return added;
+	}
+
+	public synchronized long getTokenCount() {
+		return this.tokens;
+	}
+
+	public long getCheckCount() {
+		return this.checks.get();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	// (1 - e^(-kn/m))^k for the n tokens added so far
+	public double getEstimatedFalsePositiveRate() {
+		final double bitCount = this.bitMask + 1.0;
+		return Math.pow(1 - Math.exp(-this.hashFunctions * this.getTokenCount() / bitCount), this.hashFunctions);
+	}
+
+	// Valid tokens dropped by mistake, estimated from the checks that were not hits
+	public long getEstimatedFalsePositiveCount() {
+		final double rate = this.getEstimatedFalsePositiveRate();
+		return Math.round((this.getCheckCount() - this.getHitCount()) * rate / (1 - rate));
+	}
+
+	// Not synchronized with the lookups: only once nothing calls add or mightContain any more, for the filter of a
+	// push controller after its producers completed and the controller stopped
+	public void release() {
+		DirectBufferUtil.free(this.bits);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("InvalidTokenFilter: %d tokens, %d bits, %d hash functions, %d of %d checks hit, estimated false positive rate %.6f (about %d valid tokens dropped)",
+				this.getTokenCount(), this.bitMask + 1, this.hashFunctions, this.getHitCount(), this.getCheckCount(),
+				this.getEstimatedFalsePositiveRate(), this.getEstimatedFalsePositiveCount());
+	}
+
+	private static long hash(final byte[] token, final int index) {
+		long h = 0;
+		for (int i = index; i < index + 8; i++) {
+			h = (h << 8) | (token[i] & 0xFF);
+		}
+		// Finalizer of MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
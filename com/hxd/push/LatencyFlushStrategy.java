@@ -0,0 +1,22 @@
+package com.hxd.push;
+
+import java.util.concurrent.TimeUnit;
+
+// Flush as soon as the oldest unflushed notification has waited the given latency, meant for transactional traffic.
+// A latency of 0 flushes after every notification.
+public class LatencyFlushStrategy extends FlushStrategy {
+	
+	public LatencyFlushStrategy(final long maxLatency, final TimeUnit unit) {
+		super(maxLatency, unit);
+	}
+
+	@Override
+	public boolean shouldFlush(final int pendingNotifications, final long pendingBytes, final long pendingNanos) {
+		return pendingNanos >= this.getMaxFlushDelayNanos();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: maxFlushDelayNanos:%d", super.toString(), this.getMaxFlushDelayNanos());
+	}
+}
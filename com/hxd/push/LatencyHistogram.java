@@ -0,0 +1,65 @@
+package com.hxd.push;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A histogram of latencies in power of two microsecond buckets: bucket 0 counts latencies under 1us,
+// bucket i those from 2^(i-1) up to 2^i microseconds. Percentiles are reported as the upper bound of their bucket.
+// ThreadSafe
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong totalNanos = new AtomicLong(0);
+	private final AtomicLong maxNanos = new AtomicLong(0);
+
+	public void record(final long nanos) {
+		final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		this.count.incrementAndGet();
+		this.totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = this.maxNanos.get()) && !this.maxNanos.compareAndSet(max, nanos)) {
+			// Retry
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public double getMeanMillis() {
+		final long count = this.count.get();
+		return count == 0 ? 0 : this.totalNanos.get() / (double)count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public double getMaxMillis() {
+		return this.maxNanos.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	// The upper bound in milliseconds of the bucket holding the given percentile, from 0 to 100
+	public double getPercentileMillis(final double percentile) {
+		final long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = (long)Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += this.buckets.get(bucket);
+			if (seen >= rank) {
+				return (1L << bucket) / 1000.0;
+			}
+		}
+		return this.getMaxMillis();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d recorded, mean %.2f ms, p50 <= %.2f ms, p99 <= %.2f ms, max %.2f ms",
+				this.getCount(), this.getMeanMillis(), this.getPercentileMillis(50), this.getPercentileMillis(99), this.getMaxMillis());
+	}
+}
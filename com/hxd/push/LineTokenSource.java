@@ -0,0 +1,43 @@
+package com.hxd.push;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Reads one hex token per line through a BufferedReader, the file is opened on the first read.
+public class LineTokenSource implements TokenSource {
+	private final String tokenFilePath;
+	private final Logger logger = LoggerFactory.getLogger(LineTokenSource.class);
+	
+	private BufferedReader bufferedReader;
+	
+	public LineTokenSource(final String tokenFilePath) {
+		this.tokenFilePath = tokenFilePath;
+	}
+
+	@Override
+	public boolean next(final byte[] token) throws IOException {
+		if (this.bufferedReader == null) {
+			this.bufferedReader = new BufferedReader(new FileReader(new File(this.tokenFilePath)));
+		}
+		String line = null;
+		while( (line = this.bufferedReader.readLine()) != null ) {
+			if (DeviceTokenCodec.decode(line, token)) {
+				return true;
+			}
+			this.logger.warn("Illegal token: " + line);
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.bufferedReader != null) {
+			this.bufferedReader.close();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.hxd.push;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Scans a token file of one 64-hex-character record per line directly from memory mapped chunks,
+// without creating a String per line. Files larger than a single mapping (2GB) are mapped chunk by chunk,
+// every chunk starts at a line boundary so a record never spans two chunks.
+// A reader may be restricted to the byte range [start, end) of the file, both ends being line boundaries.
+public class MappedTokenFileReader implements ResumableTokenSource {
+	
+	private static final long DEFAULT_CHUNK_SIZE = 256L * 1024 * 1024;
+	private static final byte LINE_FEED = '\n';
+	private static final int BOUNDARY_SCAN_BUFFER_SIZE = 4096;
+	
+	private final File tokenFile;
+	private final long chunkSize;
+	private final long rangeStart;
+	private final long rangeEnd;
+	private final Logger logger = LoggerFactory.getLogger(MappedTokenFileReader.class);
+	
+	private RandomAccessFile randomAccessFile;
+	private FileChannel fileChannel;
+	private long end = -1;
+	private MappedByteBuffer chunk;
+	private long chunkStart;
+	private long position;
+	private long illegalTokens = 0;
+	
+	public MappedTokenFileReader(final File tokenFile) {
+		this(tokenFile, DEFAULT_CHUNK_SIZE);
+	}
+	
+	public MappedTokenFileReader(final File tokenFile, final long chunkSize) {
+		this(tokenFile, 0, Long.MAX_VALUE, chunkSize);
+	}
+	
+	public MappedTokenFileReader(final File tokenFile, final long start, final long end) {
+		this(tokenFile, start, end, DEFAULT_CHUNK_SIZE);
+	}
+	
+	public MappedTokenFileReader(final File tokenFile, final long start, final long end, final long chunkSize) {
+		this.tokenFile = tokenFile;
+		this.chunkSize = chunkSize;
+		this.rangeStart = start;
+		this.rangeEnd = end;
+	}
+	
+	// Split the file into at most the given number of byte ranges of similar size, each starting at a line boundary.
+	// Range i is [boundaries[i], boundaries[i + 1]).
+	public static long[] partition(final File tokenFile, final int partitions) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(tokenFile, "r");
+		try {
+			final FileChannel fileChannel = randomAccessFile.getChannel();
+			final long size = fileChannel.size();
+			final long[] boundaries = new long[partitions + 1];
+			boundaries[partitions] = size;
+			for (int i = 1; i < partitions; i++) {
+				final long nominal = Math.max(size / partitions * i, boundaries[i - 1]);
+				boundaries[i] = MappedTokenFileReader.nextLineStart(fileChannel, nominal, size);
+			}
+			return boundaries;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+	
+	// The first line start at or after the given offset.
+	private static long nextLineStart(final FileChannel fileChannel, final long offset, final long size) throws IOException {
+		if (offset == 0) {
+			return 0;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_BUFFER_SIZE);
+		long position = offset - 1;
+		while (position < size) {
+			buffer.clear();
+			final int read = fileChannel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == LINE_FEED) {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+	
+	// A file offset, the start of the line following the last token read
+	@Override
+	public long getPosition() {
+		return this.fileChannel == null ? this.rangeStart : this.position;
+	}
+	
+	public long getIllegalTokenCount() {
+		return this.illegalTokens;
+	}
+	
+	private void open() throws IOException {
+		this.randomAccessFile = new RandomAccessFile(this.tokenFile, "r");
+		this.fileChannel = this.randomAccessFile.getChannel();
+		this.end = Math.min(this.rangeEnd, this.fileChannel.size());
+		this.position = this.rangeStart;
+	}
+	
+	// Map the next chunk starting at the current position, which is always the beginning of a line.
+	private boolean mapChunk() throws IOException {
+		this.unmapChunk();
+		if (this.position >= this.end) {
+			return false;
+		}
+		this.chunkStart = this.position;
+		this.chunk = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, this.chunkStart, Math.min(this.chunkSize, this.end - this.chunkStart));
+		return true;
+	}
+	
+	private void unmapChunk() {
+		if (this.chunk != null) {
+			DirectBufferUtil.free(this.chunk);
+			this.chunk = null;
+		}
+	}
+
+	@Override
+	public boolean next(final byte[] token) throws IOException {
+		if (this.fileChannel == null) {
+			this.open();
+		}
+		
+		while (true) {
+			if (this.chunk == null && !this.mapChunk()) {
+				return false;
+			}
+			
+			final int chunkLimit = this.chunk.limit();
+			final int lineStart = (int)(this.position - this.chunkStart);
+			if (lineStart >= chunkLimit) {
+				this.unmapChunk();
+				continue;
+			}
+			
+			int lineEnd = lineStart;
+			while (lineEnd < chunkLimit && this.chunk.get(lineEnd) != LINE_FEED) {
+				lineEnd++;
+			}
+			
+			if (lineEnd == chunkLimit && this.chunkStart + chunkLimit < this.end) {
+				if (lineStart > 0) {
+					// The line continues in the next chunk, remap from its beginning.
+					this.unmapChunk();
+					continue;
+				}
+				// A line longer than a whole chunk can never be a token, skip the chunk.
+				this.illegalTokens++;
+				this.logger.warn(String.format("Illegal token at offset %d: line exceeds %d bytes", this.position, this.chunkSize));
+				this.position = this.chunkStart + chunkLimit;
+				this.unmapChunk();
+				continue;
+			}
+			
+			this.position = this.chunkStart + lineEnd + 1;
+			if (DeviceTokenCodec.decode(this.chunk, lineStart, lineEnd, token)) {
+				return true;
+			}
+			this.illegalTokens++;
+			this.logger.warn(String.format("Illegal token at offset %d", this.chunkStart + lineStart));
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.unmapChunk();
+		if (this.randomAccessFile != null) {
+			this.randomAccessFile.close();
+		}
+	}
+}
@@ -0,0 +1,485 @@
+package com.hxd.push;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A persistent set of binary device tokens: an open addressing hash table kept in a memory mapped file.
+// Every slot is a state byte followed by the 32 token bytes. A token is either live, and is broadcast to,
+// or expired: the tombstone left by the feedback service or an invalid token rejection, so later broadcasts skip it.
+// Expiring a token that is not in the store adds it as expired, it will not be added back as live.
+//
+// File layout: a 64 byte header (magic, version, slot count, live and expired counts, clean flag) then the slots.
+// The slot array is mapped in segments of at most SEGMENT_SLOTS slots so the store may exceed 2GB.
+// The counts are only written to the header on force() and close(); a store that was not closed cleanly is recounted on open.
+//
+// ThreadSafe: mutations and lookups are synchronized, token sources read the mapping without a lock
+// and may miss a tombstone set concurrently, the token is then pushed once more.
+// Live tokens are expected to be added before a broadcast starts reading them.
+// A file is meant to be opened by one process at a time. Closing the store ends its token sources,
+// the mapping is only released once the last of them is closed.
+//
+// Tombstones take slots too. When adding a token finds the store full, the tombstones are dropped (see compact())
+// provided no token source is open.
+public class MappedTokenStore {
+
+	public static final long DEFAULT_CAPACITY = 1L << 24;
+
+	private static final int MAGIC = 0x41504e54; // "APNT"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 64;
+	private static final int SLOT_COUNT_OFFSET = 8;
+	private static final int LIVE_COUNT_OFFSET = 16;
+	private static final int EXPIRED_COUNT_OFFSET = 24;
+	private static final int CLEAN_OFFSET = 32;
+	private static final int SLOT_LENGTH = 1 + DeviceTokenCodec.TOKEN_LENGTH;
+	private static final int SEGMENT_SHIFT = 25;
+	private static final long SEGMENT_SLOTS = 1L << SEGMENT_SHIFT; // 1.1GB of slots per mapping
+	private static final int MAX_LOAD_PERCENT = 75;
+
+	private static final byte EMPTY = 0;
+	private static final byte LIVE = 1;
+	private static final byte EXPIRED = 2;
+
+	private final File file;
+	private final Logger logger = LoggerFactory.getLogger(MappedTokenStore.class);
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] segments;
+	private final long slotCount;
+	private final long mask;
+	private final long maxTokens;
+
+	private long liveTokens;
+	private long expiredTokens;
+	private int openSources = 0; // Guarded by this
+	private volatile boolean closed = false;
+
+	// Open the store, creating it with at least the given number of slots if the file does not exist.
+	// The capacity of an existing store is kept.
+	public MappedTokenStore(final File file, final long capacity) throws IOException {
+		this.file = file;
+		final boolean created = !file.exists() || file.length() == 0;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean opened = false;
+		try {
+			final FileChannel fileChannel = this.randomAccessFile.getChannel();
+			long slotCount;
+			if (created) {
+				slotCount = 1;
+				while (slotCount < capacity) {
+					slotCount <<= 1;
+				}
+				this.randomAccessFile.setLength(HEADER_LENGTH + slotCount * SLOT_LENGTH);
+			} else {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				fileChannel.read(header, 0);
+				if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+					throw new IOException(file + " is not a token store");
+				}
+				slotCount = header.getLong(SLOT_COUNT_OFFSET);
+				if (Long.bitCount(slotCount) != 1 || fileChannel.size() < HEADER_LENGTH + slotCount * SLOT_LENGTH) {
+					throw new IOException(file + " is a truncated token store");
+				}
+			}
+			this.slotCount = slotCount;
+			this.mask = slotCount - 1;
+			this.maxTokens = slotCount / 100 * MAX_LOAD_PERCENT + slotCount % 100 * MAX_LOAD_PERCENT / 100;
+
+			this.header = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+			final int segmentCount = (int)((slotCount + SEGMENT_SLOTS - 1) >>> SEGMENT_SHIFT);
+			this.segments = new MappedByteBuffer[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				final long slots = Math.min(SEGMENT_SLOTS, slotCount - ((long)i << SEGMENT_SHIFT));
+				this.segments[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, HEADER_LENGTH + ((long)i << SEGMENT_SHIFT) * SLOT_LENGTH, slots * SLOT_LENGTH);
+			}
+
+			if (created) {
+				this.header.putInt(0, MAGIC);
+				this.header.putInt(4, VERSION);
+				this.header.putLong(SLOT_COUNT_OFFSET, slotCount);
+			} else if (this.header.get(CLEAN_OFFSET) == 1) {
+				this.liveTokens = this.header.getLong(LIVE_COUNT_OFFSET);
+				this.expiredTokens = this.header.getLong(EXPIRED_COUNT_OFFSET);
+			} else {
+				this.logger.warn(file + " was not closed cleanly, counting tokens");
+				this.recount();
+			}
+			this.header.put(CLEAN_OFFSET, (byte)0);
+			this.header.force();
+			opened = true;
+		} finally {
+			if (!opened) {
+				this.unmap();
+				this.randomAccessFile.close();
+			}
+		}
+	}
+
+	public long getSlotCount() {
+		return this.slotCount;
+	}
+
+	public synchronized long getLiveTokenCount() {
+		return this.liveTokens;
+	}
+
+	public synchronized long getExpiredTokenCount() {
+		return this.expiredTokens;
+	}
+
+	// Add the token as live, return false if it is already in the store, live or expired.
+	// Throw IllegalStateException when the store is full of live tokens, or full while token sources are open.
+	public synchronized boolean add(final byte[] token) {
+		this.checkOpen();
+		long slot = this.find(token);
+		if (this.stateAt(slot) != EMPTY) {
+			return false;
+		}
+		if (this.liveTokens + this.expiredTokens >= this.maxTokens) {
+			if (this.expiredTokens == 0 || this.openSources > 0) {
+				throw new IllegalStateException(String.format("Token store %s is full: %d slots, %d live tokens", this.file, this.slotCount, this.liveTokens));
+			}
+			this.logger.warn(String.format("Token store %s is full, forgetting its %d expired tokens", this.file, this.expiredTokens));
+			this.compact();
+			slot = this.find(token);
+		}
+		this.write(slot, token, LIVE);
+		this.liveTokens++;
+		return true;
+	}
+
+	// Tombstone the token, return false if it was already expired or the store is full.
+	public synchronized boolean markExpired(final byte[] token) {
+		if (this.closed) {
+			this.logger.warn("Token store is closed, expired token not recorded");
+			return false;
+		}
+		final long slot = this.find(token);
+		final byte state = this.stateAt(slot);
+		if (state == EXPIRED) {
+			return false;
+		}
+		if (state == LIVE) {
+			this.segment(slot).put(this.offset(slot), EXPIRED);
+			this.liveTokens--;
+		} else {
+			if (this.liveTokens + this.expiredTokens >= this.maxTokens) {
+				this.logger.error(String.format("Token store %s is full, expired token not recorded", this.file));
+				return false;
+			}
+			this.write(slot, token, EXPIRED);
+		}
+		this.expiredTokens++;
+		return true;
+	}
+
+	public synchronized boolean isLive(final byte[] token) {
+		this.checkOpen();
+		return this.stateAt(this.find(token)) == LIVE;
+	}
+
+	public synchronized boolean isExpired(final byte[] token) {
+		this.checkOpen();
+		return this.stateAt(this.find(token)) == EXPIRED;
+	}
+
+	// Drop every tombstone and move the live tokens back toward the slots they hash to, return the number dropped.
+	// The expired tokens are forgotten: pushed again, they are rejected and tombstoned once more.
+	// Throw IllegalStateException while token sources are open, they would miss tokens that move or read them twice.
+	public synchronized long compact() {
+		this.checkOpen();
+		if (this.openSources > 0) {
+			throw new IllegalStateException(String.format("Token store %s has %d open token sources", this.file, this.openSources));
+		}
+		final long dropped = this.expiredTokens;
+		if (dropped == 0) {
+			return 0;
+		}
+		for (long slot = 0; slot < this.slotCount; slot++) {
+			if (this.stateAt(slot) == EXPIRED) {
+				this.segment(slot).put(this.offset(slot), EMPTY);
+			}
+		}
+		this.expiredTokens = 0;
+
+		// Going around once in probe order from an empty slot, the tokens before the current one are where they belong,
+		// so the first empty slot from its home is at or before it. The token is written there before its old slot is
+		// cleared: a crash in between leaves it twice rather than losing it.
+		long start = 0;
+		while (this.stateAt(start) != EMPTY) {
+			start++; // The load factor keeps empty slots
+		}
+		final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+		for (long i = 1; i <= this.slotCount; i++) {
+			final long slot = (start + i) & this.mask;
+			if (this.stateAt(slot) != LIVE) {
+				continue;
+			}
+			this.read(slot, token);
+			long target = this.home(token);
+			while (target != slot && this.stateAt(target) != EMPTY) {
+				target = (target + 1) & this.mask;
+			}
+			if (target != slot) {
+				this.write(target, token, LIVE);
+				this.segment(slot).put(this.offset(slot), EMPTY);
+			}
+		}
+		this.force();
+		return dropped;
+	}
+
+	// Add every token of the source as live, return the number of tokens added. The source is closed.
+	public long importTokens(final TokenSource tokenSource) throws IOException {
+		long added = 0;
+		try {
+			final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+			while (tokenSource.next(token)) {
+				if (this.add(token)) {
+					added++;
+				}
+			}
+		} finally {
+			tokenSource.close();
+		}
+		return added;
+	}
+
+	// The live tokens of the whole store
+	public ResumableTokenSource liveTokens() {
+		return this.liveTokens(0, this.slotCount);
+	}
+
+	// The live tokens of one of the given number of slot ranges of similar size
+	public ResumableTokenSource liveTokens(final int partition, final int partitions) {
+		if (partition < 0 || partition >= partitions) {
+			throw new IllegalArgumentException(String.format("Partition %d out of %d", partition, partitions));
+		}
+		final long[] boundaries = this.partition(partitions);
+		return this.liveTokens(boundaries[partition], boundaries[partition + 1]);
+	}
+
+	// The live tokens of the slot range [start, end)
+	public ResumableTokenSource liveTokens(final long start, final long end) {
+		return new LiveTokenSource(Math.max(start, 0), Math.min(end, this.slotCount));
+	}
+
+	// Split the slots into the given number of ranges of similar size, range i is [boundaries[i], boundaries[i + 1]).
+	public long[] partition(final int partitions) {
+		final long[] boundaries = new long[partitions + 1];
+		for (int i = 0; i < partitions; i++) {
+			boundaries[i] = this.slotCount / partitions * i;
+		}
+		boundaries[partitions] = this.slotCount;
+		return boundaries;
+	}
+
+	// Write the counts and the slots to disk
+	public synchronized void force() {
+		this.checkOpen();
+		for (MappedByteBuffer segment : this.segments) {
+			segment.force();
+		}
+		this.writeCounts();
+		this.header.force();
+	}
+
+	// Token sources still open fail on their next read, the last one closed releases the mapping
+	public synchronized void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.force();
+		this.header.put(CLEAN_OFFSET, (byte)1);
+		this.header.force();
+		this.closed = true;
+		if (this.openSources == 0) {
+			this.release();
+		} else {
+			this.logger.info(String.format("Token store %s closed with %d open token sources, unmapped once they are closed", this.file, this.openSources));
+		}
+	}
+
+	private synchronized void sourceOpened() {
+		this.checkOpen();
+		this.openSources++;
+	}
+
+	private synchronized void sourceClosed() throws IOException {
+		if (--this.openSources == 0 && this.closed) {
+			this.release();
+		}
+	}
+
+	private void release() throws IOException {
+		this.unmap();
+		this.randomAccessFile.close();
+	}
+
+	private void checkOpen() {
+		if (this.closed) {
+			throw new IllegalStateException("Token store " + this.file + " is closed");
+		}
+	}
+
+	// The slot the probing for the token starts at
+	private long home(final byte[] token) {
+		final long first = MappedTokenStore.getLong(token, 0);
+		final long second = MappedTokenStore.getLong(token, 8);
+		return MappedTokenStore.mix(first ^ Long.rotateLeft(second, 31)) & this.mask;
+	}
+
+	// The slot holding the token, or the empty slot where it would be inserted
+	private long find(final byte[] token) {
+		long slot = this.home(token);
+		while (true) {
+			final MappedByteBuffer segment = this.segment(slot);
+			final int offset = this.offset(slot);
+			if (segment.get(offset) == EMPTY || this.tokenEquals(segment, offset + 1, token)) {
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	private boolean tokenEquals(final MappedByteBuffer segment, final int offset, final byte[] token) {
+		for (int i = 0; i < DeviceTokenCodec.TOKEN_LENGTH; i += 8) {
+			if (segment.getLong(offset + i) != MappedTokenStore.getLong(token, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The token bytes are written before the state, which publishes the slot to lock free readers.
+	private void write(final long slot, final byte[] token, final byte state) {
+		final MappedByteBuffer segment = this.segment(slot);
+		final int offset = this.offset(slot);
+		for (int i = 0; i < DeviceTokenCodec.TOKEN_LENGTH; i++) {
+			segment.put(offset + 1 + i, token[i]);
+		}
+		segment.put(offset, state);
+	}
+
+	private void read(final long slot, final byte[] token) {
+		final MappedByteBuffer segment = this.segment(slot);
+		final int offset = this.offset(slot);
+		for (int i = 0; i < DeviceTokenCodec.TOKEN_LENGTH; i++) {
+			token[i] = segment.get(offset + 1 + i);
+		}
+	}
+
+	private byte stateAt(final long slot) {
+		return this.segment(slot).get(this.offset(slot));
+	}
+
+	private MappedByteBuffer segment(final long slot) {
+		return this.segments[(int)(slot >>> SEGMENT_SHIFT)];
+	}
+
+	private int offset(final long slot) {
+		return (int)(slot & (SEGMENT_SLOTS - 1)) * SLOT_LENGTH;
+	}
+
+	private void recount() {
+		this.liveTokens = 0;
+		this.expiredTokens = 0;
+		for (long slot = 0; slot < this.slotCount; slot++) {
+			final byte state = this.stateAt(slot);
+			if (state == LIVE) {
+				this.liveTokens++;
+			} else if (state == EXPIRED) {
+				this.expiredTokens++;
+			}
+		}
+	}
+
+	private void writeCounts() {
+		this.header.putLong(LIVE_COUNT_OFFSET, this.liveTokens);
+		this.header.putLong(EXPIRED_COUNT_OFFSET, this.expiredTokens);
+	}
+
+	private void unmap() {
+		if (this.header != null) {
+			DirectBufferUtil.free(this.header);
+		}
+		if (this.segments != null) {
+			for (MappedByteBuffer segment : this.segments) {
+				if (segment != null) {
+					DirectBufferUtil.free(segment);
+				}
+			}
+		}
+	}
+
+	// Big endian, as the mapped buffers read it
+	private static long getLong(final byte[] bytes, final int index) {
+		long value = 0;
+		for (int i = index; i < index + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	// Finalizer of MurmurHash3, device tokens are random but a cheap mix keeps adversarial or sequential ones apart
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// Scans a slot range for live tokens, reading the mapping without a lock. The store keeps its mapping until
+	// the source is closed, and the source ends once the store is closed.
+	private class LiveTokenSource implements ResumableTokenSource {
+
+		private final long end;
+		private long slot;
+		private boolean released = false;
+
+		public LiveTokenSource(final long start, final long end) {
+			this.slot = start;
+			this.end = end;
+			sourceOpened();
+		}
+
+		@Override
+		public boolean next(final byte[] token) throws IOException {
+			if (closed) {
+				throw new IOException("Token store " + file + " closed while its tokens were read");
+			}
+			while (this.slot < this.end) {
+				final long slot = this.slot++;
+				if (stateAt(slot) == LIVE) {
+					read(slot, token);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// The slot following the last token read
+		@Override
+		public long getPosition() {
+			return this.slot;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.slot = this.end;
+			if (!this.released) {
+				this.released = true;
+				sourceClosed();
+			}
+		}
+	}
+}
@@ -4,6 +4,9 @@ import java.nio.ByteBuffer;
 
 public class NotificationIdentifierDataItem implements PushNotificationDataItem {
 
+	public static final byte ITEM_ID = 3;
+	public static final short ITEM_LENGTH = 4;
+
 	private byte[] itemData;
 	private final int identifier;
 	
@@ -14,12 +17,12 @@ public class NotificationIdentifierDataItem implements PushNotificationDataItem
 
 	@Override
 	public byte getItemID() {
-		return 3;
+		return ITEM_ID;
 	}
 
 	@Override
 	public short getItemLength() {
-		return 4;
+		return ITEM_LENGTH;
 	}
 
 	@Override
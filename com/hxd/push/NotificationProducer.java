@@ -0,0 +1,9 @@
+package com.hxd.push;
+
+public interface NotificationProducer extends Runnable {
+	long getNotificationsProduced();
+	// Tokens skipped because they were already produced in this broadcast
+	long getDuplicateTokens();
+	// Tokens skipped because the token store knows them as expired
+	long getExpiredTokens();
+}
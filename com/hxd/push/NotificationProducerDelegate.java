@@ -1,5 +1,5 @@
 package com.hxd.push;
 
 public interface NotificationProducerDelegate {
-	void producerDidComplete(final BroadcastNotificationProducer producer, Exception e);
+	void producerDidComplete(final NotificationProducer producer, Exception e);
 }
@@ -10,11 +10,13 @@ import java.util.concurrent.TimeUnit;
 // ThreadSafe
 // Defined the capacity for memory consideration.
 // Reclaimed notifications should not excess the capacity of the reclaimQueue, otherwise runtime exceptions will be raised.
-public class NotificationQueue implements NotificationEnqueue, NotificationReclaimableConsumeQueue {
+public class NotificationQueue implements ReclaimableNotificationQueue {
 	private final BlockingQueue<SendablePushNotification> workingQueue;
 	private final BlockingQueue<SendablePushNotification> reclaimQueue;
+	private final int capacity;
 	
 	public NotificationQueue(final int capacity) {
+		this.capacity = capacity;
 		this.workingQueue = new LinkedBlockingQueue<SendablePushNotification>(capacity);
 		this.reclaimQueue = new LinkedBlockingQueue<SendablePushNotification>(capacity);
 	}
@@ -34,6 +36,22 @@ public class NotificationQueue implements NotificationEnqueue, NotificationRecla
 		return notification;
 	}
 	
+	// Delegate thread safety to workingQueue and reclaimQueue, and the independence between them
+	public int drainNotifications(Collection<? super SendablePushNotification> notifications, int maxNotifications, long timeout, TimeUnit unit) throws InterruptedException {
+		int drained = this.reclaimQueue.drainTo(notifications, maxNotifications);
+		if (drained < maxNotifications) {
+			drained += this.workingQueue.drainTo(notifications, maxNotifications - drained);
+		}
+		if (drained == 0) {
+			SendablePushNotification notification = this.workingQueue.poll(timeout, unit);
+			if (notification != null) {
+				notifications.add(notification);
+				drained = 1 + this.workingQueue.drainTo(notifications, maxNotifications - 1);
+			}
+		}
+		return drained;
+	}
+	
 	// Delegate thread safety to reclaimQueue
 	public void reclaimFailedNotifications(Collection<SendablePushNotification> notifications) {
 		if (notifications != null) {
@@ -48,10 +66,18 @@ public class NotificationQueue implements NotificationEnqueue, NotificationRecla
 		}
 	}
 	
+	public int size() {
+		return this.workingQueue.size() + this.reclaimQueue.size();
+	}
+	
+	public int capacity() {
+		return this.capacity;
+	}
+	
 	public Collection<SendablePushNotification> remainNotifications() {
 		synchronized (this) {
 			SendablePushNotification[] workingQueueNotifications = this.workingQueue.toArray(new SendablePushNotification[0]);
-			SendablePushNotification[] reclaimQueueNotifications = this.workingQueue.toArray(new SendablePushNotification[0]);
+			SendablePushNotification[] reclaimQueueNotifications = this.reclaimQueue.toArray(new SendablePushNotification[0]);
 			Collection<SendablePushNotification> unsentNotifications = new ArrayList<SendablePushNotification>(workingQueueNotifications.length + reclaimQueueNotifications.length);
 			unsentNotifications.addAll(Arrays.asList(workingQueueNotifications));
 			unsentNotifications.addAll(Arrays.asList(reclaimQueueNotifications));
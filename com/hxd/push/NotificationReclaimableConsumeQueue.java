@@ -7,4 +7,7 @@ public interface NotificationReclaimableConsumeQueue {
 	void reclaimFailedNotifications(Collection<SendablePushNotification> notifications);
 	void reclaimFailedNotification(SendablePushNotification notification);
 	SendablePushNotification pollNotification(long timeout, TimeUnit unit) throws InterruptedException;
+	// Wait up to the timeout for a first notification, then move up to maxNotifications available ones into the collection.
+	// Return the number of notifications moved.
+	int drainNotifications(Collection<? super SendablePushNotification> notifications, int maxNotifications, long timeout, TimeUnit unit) throws InterruptedException;
 }
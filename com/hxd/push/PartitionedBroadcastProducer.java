@@ -0,0 +1,193 @@
+package com.hxd.push;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Splits the token file into byte ranges aligned to line boundaries, or a token store into slot ranges,
+// and runs one BroadcastNotificationProducer per range, all feeding the same push controller.
+// The delegate is told once, after every partition has completed.
+// With a progress journal, each partition starts at its journaled resume position and its progress is journaled.
+public class PartitionedBroadcastProducer implements NotificationProducer, NotificationProducerDelegate {
+	private final PushController pushController;
+	private final File tokenFile;
+	private final MappedTokenStore tokenStore;
+	private final int partitions;
+	private final BroadcastPayload payload;
+	private final NotificationProducerDelegate delegate;
+	private final Logger logger = LoggerFactory.getLogger(PartitionedBroadcastProducer.class);
+	
+	private TokenDeduplicator tokenDeduplicator;
+	private MappedTokenStore expiredTokenStore;
+	private ProgressJournal progressJournal;
+	private BroadcastProgress[] progress;
+	private BroadcastNotificationProducer[] producers = new BroadcastNotificationProducer[0];
+	private CountDownLatch completion;
+	private Exception caughtException;
+	
+	public PartitionedBroadcastProducer(final PushController pushController, final File tokenFile, final int partitions, final BroadcastPayload payload, final NotificationProducerDelegate delegate) {
+		this(pushController, tokenFile, null, partitions, payload, delegate);
+	}
+	
+	public PartitionedBroadcastProducer(final PushController pushController, final MappedTokenStore tokenStore, final int partitions, final BroadcastPayload payload, final NotificationProducerDelegate delegate) {
+		this(pushController, null, tokenStore, partitions, payload, delegate);
+	}
+	
+	private PartitionedBroadcastProducer(final PushController pushController, final File tokenFile, final MappedTokenStore tokenStore, final int partitions, final BroadcastPayload payload, final NotificationProducerDelegate delegate) {
+		this.pushController = pushController;
+		this.tokenFile = tokenFile;
+		this.tokenStore = tokenStore;
+		this.partitions = partitions;
+		this.payload = payload;
+		this.delegate = delegate;
+	}
+	
+	@Override
+	public synchronized long getNotificationsProduced() {
+		long notificationsProduced = 0;
+		for (BroadcastNotificationProducer producer : this.producers) {
+			notificationsProduced += producer.getNotificationsProduced();
+		}
+		return notificationsProduced;
+	}
+
+	@Override
+	public synchronized long getDuplicateTokens() {
+		long duplicateTokens = 0;
+		for (BroadcastNotificationProducer producer : this.producers) {
+			duplicateTokens += producer.getDuplicateTokens();
+		}
+		return duplicateTokens;
+	}
+	
+	@Override
+	public synchronized long getExpiredTokens() {
+		long expiredTokens = 0;
+		for (BroadcastNotificationProducer producer : this.producers) {
+			expiredTokens += producer.getExpiredTokens();
+		}
+		return expiredTokens;
+	}
+	
+	// Shared by all partitions. Set before running.
+	public void setTokenDeduplicator(final TokenDeduplicator tokenDeduplicator) {
+		this.tokenDeduplicator = tokenDeduplicator;
+	}
+	
+	// Partitions of a token file skip the tokens the store knows as expired. Set before running.
+	public void setExpiredTokenStore(final MappedTokenStore expiredTokenStore) {
+		this.expiredTokenStore = expiredTokenStore;
+	}
+
+	// Opened for this.partitions partitions of the token file or store. Set before running.
+	public void setProgressJournal(final ProgressJournal progressJournal) {
+		this.progressJournal = progressJournal;
+	}
+
+	@Override
+	public void run() {
+		ExecutorService producerService = null;
+		try {
+			final TokenSource[] tokenSources = this.createTokenSources();
+			synchronized (this) {
+				this.producers = new BroadcastNotificationProducer[this.partitions];
+				this.completion = new CountDownLatch(this.partitions);
+				for (int i = 0; i < this.partitions; i++) {
+					this.producers[i] = new BroadcastNotificationProducer(this.pushController, tokenSources[i], this.payload, this);
+					this.producers[i].setTokenDeduplicator(this.tokenDeduplicator);
+					this.producers[i].setExpiredTokenStore(this.expiredTokenStore);
+					if (this.progress != null) {
+						this.producers[i].setProgress(this.progress[i]);
+					}
+				}
+			}
+			
+			producerService = Executors.newFixedThreadPool(this.partitions);
+			for (BroadcastNotificationProducer producer : this.producers) {
+				producerService.submit(producer);
+			}
+			producerService.shutdown();
+			this.completion.await();
+		} catch (InterruptedException e) {
+			this.logger.debug("PartitionedBroadcastProducer aborted due to InterruptedException!");
+			producerService.shutdownNow();
+			// The delegate is told only once no partition can still enqueue or acknowledge
+			this.awaitTermination(producerService);
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			this.setCaughtException(e);
+			e.printStackTrace();
+		} finally {
+			for (int i = 0; i < this.producers.length; i++) {
+				this.logger.info(String.format("Partition %d: %d notifications enqueued", i, this.producers[i].getNotificationsProduced()));
+			}
+			this.logger.info(this.getNotificationsProduced() + " notifications enqueued by " + this.producers.length + " partitions!");
+			this.delegate.producerDidComplete(this, this.getCaughtException());
+		}
+	}
+	
+	// Not interruptible, the interrupt that stopped the partitions is what is being handled
+	private void awaitTermination(final ExecutorService producerService) {
+		while (true) {
+			try {
+				if (producerService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				// Keep waiting, the caller restores the interrupt
+			}
+		}
+	}
+	
+	private TokenSource[] createTokenSources() throws IOException {
+		final TokenSource[] tokenSources = new TokenSource[this.partitions];
+		final long[] boundaries = this.tokenStore != null ? this.tokenStore.partition(this.partitions)
+														: MappedTokenFileReader.partition(this.tokenFile, this.partitions);
+		if (this.progressJournal != null) {
+			this.progress = new BroadcastProgress[this.partitions];
+		}
+		for (int i = 0; i < this.partitions; i++) {
+			long start = boundaries[i];
+			if (this.progressJournal != null) {
+				final long resumePosition = this.progressJournal.getResumePosition(i, start);
+				if (resumePosition >= boundaries[i] && resumePosition <= boundaries[i + 1]) {
+					start = resumePosition;
+				} else {
+					this.logger.warn(String.format("Partition %d: resume position %d out of [%d, %d], starting over", i, resumePosition, boundaries[i], boundaries[i + 1]));
+				}
+				this.progress[i] = new BroadcastProgress(i, start);
+				this.progressJournal.track(this.progress[i]);
+				if (start != boundaries[i]) {
+					this.logger.info(String.format("Partition %d resumed at %d of [%d, %d)", i, start, boundaries[i], boundaries[i + 1]));
+				}
+			}
+			tokenSources[i] = this.tokenStore != null ? this.tokenStore.liveTokens(start, boundaries[i + 1])
+													: new MappedTokenFileReader(this.tokenFile, start, boundaries[i + 1]);
+		}
+		return tokenSources;
+	}
+	
+	private synchronized void setCaughtException(final Exception e) {
+		if (this.caughtException == null) {
+			this.caughtException = e;
+		}
+	}
+	
+	private synchronized Exception getCaughtException() {
+		return this.caughtException;
+	}
+
+	@Override
+	public void producerDidComplete(final NotificationProducer producer, final Exception e) {
+		if (e != null) {
+			this.setCaughtException(e);
+		}
+		this.completion.countDown();
+	}
+}
@@ -4,6 +4,8 @@ import java.nio.charset.Charset;
 
 public class PayloadDataItem implements PushNotificationDataItem {
 
+	public static final byte ITEM_ID = 2;
+
 	private byte[] itemData;
 	private final String payload;
 	
@@ -14,7 +16,7 @@ public class PayloadDataItem implements PushNotificationDataItem {
 
 	@Override
 	public byte getItemID() {
-		return 2;
+		return ITEM_ID;
 	}
 
 	@Override
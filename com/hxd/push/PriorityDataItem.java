@@ -2,15 +2,19 @@ package com.hxd.push;
 
 public class PriorityDataItem implements PushNotificationDataItem {
 
-	private static final byte[] itemData = new byte[] {10};
+	public static final byte ITEM_ID = 5;
+	public static final short ITEM_LENGTH = 1;
+	public static final byte DEFAULT_PRIORITY = 10;
+	
+	private static final byte[] itemData = new byte[] {DEFAULT_PRIORITY};
 	@Override
 	public byte getItemID() {
-		return 5;
+		return ITEM_ID;
 	}
 
 	@Override
 	public short getItemLength() {
-		return 1;
+		return ITEM_LENGTH;
 	}
 
 	@Override
@@ -0,0 +1,248 @@
+package com.hxd.push;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A write-ahead journal of the resume positions of a partitioned broadcast, so a broadcast whose process died
+// is restarted where its notifications stopped being settled instead of from the first token.
+// The file is memory mapped and append only: a 64 byte header (magic, version, partition count, size of the token source)
+// followed by 32 byte records of a partition, its resume position, the record number and a checksum.
+// The last valid record of each partition wins; a torn record and everything after it are ignored.
+// When the file is full the last record of each partition is rewritten to a new file which replaces it.
+// A journal written for another partition count or source size is started over.
+// ThreadSafe
+public class ProgressJournal implements Closeable {
+
+	public static final int DEFAULT_RECORD_CAPACITY = 32 * 1024;
+
+	private static final int MAGIC = 0x41504E4A; // "APNJ"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 64;
+	private static final int RECORD_LENGTH = 32;
+	private static final int PARTITIONS_OFFSET = 8;
+	private static final int SOURCE_SIZE_OFFSET = 16;
+	private static final long NO_POSITION = -1;
+
+	private final Logger logger = LoggerFactory.getLogger(ProgressJournal.class);
+	private final File file;
+	private final int partitions;
+	private final long sourceSize;
+	private final int recordCapacity;
+	private final long[] recoveredPositions;
+	private final long[] journaledPositions;
+	private final List<BroadcastProgress> trackedProgress = new ArrayList<BroadcastProgress>();
+
+	private MappedByteBuffer records;
+	private int recordCount = 0;
+	private boolean closed = false;
+
+	public ProgressJournal(final File file, final int partitions, final long sourceSize) throws IOException {
+		this(file, partitions, sourceSize, DEFAULT_RECORD_CAPACITY);
+	}
+
+	// A rewrite keeps a record of each partition, the capacity must leave room to append after it
+	public ProgressJournal(final File file, final int partitions, final long sourceSize, final int recordCapacity) throws IOException {
+		if (partitions <= 0 || recordCapacity <= partitions) {
+			throw new IllegalArgumentException(String.format("Illegal journal of %d partitions and %d records", partitions, recordCapacity));
+		}
+		this.file = file;
+		this.partitions = partitions;
+		this.sourceSize = sourceSize;
+		this.recordCapacity = recordCapacity;
+		this.recoveredPositions = new long[partitions];
+		this.journaledPositions = new long[partitions];
+		Arrays.fill(this.recoveredPositions, NO_POSITION);
+		Arrays.fill(this.journaledPositions, NO_POSITION);
+
+		if (file.exists()) {
+			this.recover();
+		}
+		System.arraycopy(this.recoveredPositions, 0, this.journaledPositions, 0, partitions);
+		this.rewrite();
+	}
+
+	// True if the journal was left by an earlier run of the same broadcast
+	public boolean isResumed() {
+		for (long position : this.recoveredPositions) {
+			if (position != NO_POSITION) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// The journaled resume position of the partition, or the given default if none was journaled
+	public long getResumePosition(final int partition, final long defaultPosition) {
+		final long position = this.recoveredPositions[partition];
+		return position == NO_POSITION ? defaultPosition : position;
+	}
+
+	public synchronized void track(final BroadcastProgress progress) {
+		if (progress.getPartition() < 0 || progress.getPartition() >= this.partitions) {
+			throw new IllegalArgumentException(String.format("Partition %d out of %d", progress.getPartition(), this.partitions));
+		}
+		this.trackedProgress.add(progress);
+	}
+
+	// Append the resume positions that moved since the last checkpoint and force them to disk
+	public synchronized void checkpoint() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		boolean appended = false;
+		for (BroadcastProgress progress : this.trackedProgress) {
+			final long position = progress.getResumePosition();
+			if (position != this.journaledPositions[progress.getPartition()]) {
+				if (this.recordCount == this.recordCapacity) {
+					this.rewrite(); // Compaction
+				}
+				this.append(progress.getPartition(), position);
+				appended = true;
+			}
+		}
+		if (appended) {
+			this.records.force();
+		}
+	}
+
+	// Every partition was tracked and is complete
+	public synchronized boolean isComplete() {
+		if (this.trackedProgress.size() < this.partitions) {
+			return false;
+		}
+		for (BroadcastProgress progress : this.trackedProgress) {
+			if (!progress.isComplete()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// A last checkpoint, the journal of a complete broadcast is deleted.
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.checkpoint();
+		this.closed = true;
+		DirectBufferUtil.free(this.records);
+		if (this.isComplete()) {
+			if (!this.file.delete()) {
+				this.logger.warn("Failed to delete the journal of the completed broadcast " + this.file);
+			}
+		} else {
+			this.logger.info("Broadcast progress journaled in " + this.file + ": " + this.trackedProgress);
+		}
+	}
+
+	private void recover() throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
+		try {
+			final FileChannel fileChannel = randomAccessFile.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			fileChannel.read(header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				this.logger.warn(this.file + " is not a progress journal, starting over");
+				return;
+			}
+			if (header.getInt(PARTITIONS_OFFSET) != this.partitions || header.getLong(SOURCE_SIZE_OFFSET) != this.sourceSize) {
+				this.logger.warn(String.format("%s was journaled for %d partitions of a %d long source, starting over",
+						this.file, header.getInt(PARTITIONS_OFFSET), header.getLong(SOURCE_SIZE_OFFSET)));
+				return;
+			}
+			final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+			long recordNumber = 0;
+			while (true) {
+				record.clear();
+				if (fileChannel.read(record, HEADER_LENGTH + recordNumber * RECORD_LENGTH) < RECORD_LENGTH) {
+					break;
+				}
+				final int partition = record.getInt(0);
+				final long position = record.getLong(8);
+				if (record.getLong(16) != recordNumber || record.getLong(24) != ProgressJournal.checksum(partition, position, recordNumber)
+						|| partition < 0 || partition >= this.partitions) {
+					break;
+				}
+				this.recoveredPositions[partition] = position;
+				recordNumber++;
+			}
+			this.logger.info(String.format("%d journal records recovered from %s: %s", recordNumber, this.file, Arrays.toString(this.recoveredPositions)));
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private void writeHeader() {
+		this.records.putInt(0, MAGIC);
+		this.records.putInt(4, VERSION);
+		this.records.putInt(PARTITIONS_OFFSET, this.partitions);
+		this.records.putLong(SOURCE_SIZE_OFFSET, this.sourceSize);
+	}
+
+	// The checksum goes last, a record is valid once it is written
+	private void append(final int partition, final long position) {
+		final int offset = HEADER_LENGTH + this.recordCount * RECORD_LENGTH;
+		this.records.putInt(offset, partition);
+		this.records.putInt(offset + 4, 0);
+		this.records.putLong(offset + 8, position);
+		this.records.putLong(offset + 16, this.recordCount);
+		this.records.putLong(offset + 24, ProgressJournal.checksum(partition, position, this.recordCount));
+		this.recordCount++;
+		this.journaledPositions[partition] = position;
+	}
+
+	// Write the last record of each partition to a new file of full length and move it over the journal,
+	// so the journal on disk is never without them.
+	private void rewrite() throws IOException {
+		final File rewrittenFile = new File(this.file.getPath() + ".tmp");
+		final long length = HEADER_LENGTH + (long)this.recordCapacity * RECORD_LENGTH;
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(rewrittenFile, "rw");
+		final MappedByteBuffer records;
+		try {
+			randomAccessFile.setLength(0);
+			randomAccessFile.setLength(length);
+			records = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			randomAccessFile.close(); // The mapping stays valid
+		}
+		final MappedByteBuffer oldRecords = this.records;
+		this.records = records;
+		this.recordCount = 0;
+		this.writeHeader();
+		for (int partition = 0; partition < this.partitions; partition++) {
+			if (this.journaledPositions[partition] != NO_POSITION) {
+				this.append(partition, this.journaledPositions[partition]);
+			}
+		}
+		records.force();
+		Files.move(rewrittenFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (oldRecords != null) {
+			DirectBufferUtil.free(oldRecords);
+		}
+	}
+
+	private static long checksum(final int partition, final long position, final long recordNumber) {
+		long h = (((long)partition << 32) ^ position) * 0x9E3779B97F4A7C15L ^ recordNumber ^ MAGIC;
+		// Finalizer of MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,10 @@
+package com.hxd.push;
+
+// A connection of a PushController to the APNs gateway, sending notifications taken from its queue.
+// When it ends, for whatever reason, it calls pushRunnableWillTerminate of its controller once.
+public interface PushConnection {
+	// Ask the connection to end once its written notifications are flushed
+	void terminate();
+	// How full the outbound buffer is up to the high water mark, from 0 to 1; 1 while the channel is not writable.
+	double getWriteBufferUtilization();
+}
@@ -3,13 +3,17 @@ package com.hxd.push;
 import java.security.KeyStore;
 import java.util.Collection;
 
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.EventLoopGroup;
 
 public interface PushController {
 	KeyStore getKeyStore();
 	APNSEnviroment getApnsEnviroment();
 	char[] getKeystorePassword();
+	ApnsClientSslContext getSslContext();
 	EventLoopGroup getNioEventLoopGroup();
+	FlushStrategy getFlushStrategy();
 	
 	public void setPushControllerDelegate(final PushControllerDelegate delegate);
 	public PushControllerDelegate getPushControllerDelegate();
@@ -21,10 +25,17 @@ public interface PushController {
 	public void start();
 	public void stop();
 	public void doPush(String token, String payload) throws InterruptedException;
+	public void doPush(byte[] token, BroadcastPayload payload) throws InterruptedException;
+	public void doPush(SendablePushNotification notification) throws InterruptedException;
 	
 	/*
-	 * Callback for PushRunnable
+	 * Callback for PushRunnable and EventLoopPushConnection
 	 */
-	void pushRunnableWillTerminate();
+	void pushRunnableWillTerminate(final PushConnection connection);
+	// A connected, handshaken channel with the given handler installed under the given name, or null to connect one
+	Channel takeStandbyChannel(final String name, final ChannelHandler handler);
+	void pushConnectionDidConnect(final PushConnection connection, final Channel channel);
+	// The connection is up but can not send, it closes and its replacement has to wait for the circuit breaker
+	void pushConnectionDidFail(final PushConnection connection, final String cause);
 	void reportRejectedNotification(final String token, final RejectedNotificationReason reason);
 }
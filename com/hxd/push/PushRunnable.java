@@ -1,7 +1,6 @@
 package com.hxd.push;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
@@ -9,32 +8,29 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.AbstractNioChannel.NioUnsafe;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.codec.MessageToByteEncoder;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.hxd.push.PushNotificationDataItem;
 import com.hxd.push.RejectedNotification;
 import com.hxd.push.RejectedNotificationReason;
 import com.hxd.push.SendablePushNotification;
-import com.hxd.push.SslHandlerUtil;
 
 
-public class PushRunnable implements Runnable {
+public class PushRunnable implements Runnable, PushConnection {
 
-	private static final long POLL_TIMEOUT = 50;
-	private static final TimeUnit MILLISECONDS_TIME_UNIT = TimeUnit.MILLISECONDS;
+	private static final long POLL_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long WRITE_COMPLETION_TIMEOUT_MILLISECONDS = 5000;
+	// After a failed write, how long the gateway is given to close the connection with its error response
+	private static final long GATEWAY_CLOSE_TIMEOUT_MILLISECONDS = 5000;
 	
 	private final NotificationReclaimableConsumeQueue notificationQueue;
 	private final PushController controller;
@@ -42,75 +38,44 @@ public class PushRunnable implements Runnable {
 	private final Logger logger = LoggerFactory.getLogger(PushRunnable.class);
 	private final SentNotificationCache notificationCache;
 	private final Object channelWritabilityNotifier = new Object();
+	private final FlushStrategy flushStrategy;
 	
-	private boolean requestTermination = false;
-	private Channel channel;
-	private AtomicInteger notificationsWriten = new AtomicInteger(0);
+	private volatile boolean requestTermination = false;
+	private volatile boolean rejected = false;
+	private volatile boolean writeFailed = false;
+	private volatile Channel channel;
+	// Writes complete in order, once the last one is done the listeners of all the others have run
+	private ChannelFuture lastWriteFuture;
+	
+	// Unflushed writes, only touched by the running thread
+	private int pendingNotifications = 0;
+	private long pendingBytes = 0;
+	private long pendingSince = 0;
 	
 	public PushRunnable(final NotificationReclaimableConsumeQueue notificationQueue, final PushController controller) {
 		this.notificationQueue = notificationQueue;
 		this.controller = controller;
 		this.notificationCache = new SentNotificationCache(APNConnectionManager.SENT_BUFFER_CAPACITY_PER_TASK);
+		this.flushStrategy = controller.getFlushStrategy();
 		final PushRunnable pushRunnable = this;
 		this.bootstrap = new Bootstrap()
 							.group(controller.getNioEventLoopGroup())
 							.channel(NioSocketChannel.class)
 							.option(ChannelOption.SO_KEEPALIVE, true)
+							.option(ChannelOption.AUTO_CLOSE, false) // See close()
 							.handler(new ChannelInitializer<SocketChannel>() {
 			@Override
 			protected void initChannel(final SocketChannel channel) throws Exception {
 				final ChannelPipeline pipeline = channel.pipeline();
-				pipeline.addLast("ssl", SslHandlerUtil.createSslHandler(controller.getKeyStore(), controller.getKeystorePassword()));
+				controller.getSslContext().configurePipeline(pipeline, controller.getApnsEnviroment().getApnsGatewayHost(), controller.getApnsEnviroment().getApnsGatewayPort());
 				pipeline.addLast("decoder", new RejectedNotificationDecoder());
 				pipeline.addLast("encoder", new ApnsPushNotificationEncoder());
 				pipeline.addLast("handler", new ApnsErrorHandler(pushRunnable));
+				flushStrategy.configurePipeline(pipeline);
 			}
 		});
 	}
 	
-	
-	private class RejectedNotificationDecoder extends ByteToMessageDecoder {
-
-		// Per Apple's docs, APNS errors will have a one-byte "command", a one-byte status, and a 4-byte notification ID
-		private static final int EXPECTED_BYTE_SIZE = 6;
-		private static final byte EXPECTED_COMMAND = 8;
-		
-		@Override
-		protected void decode(final ChannelHandlerContext context, final ByteBuf in, final List<Object> out) {
-			if (in.readableBytes() >= EXPECTED_BYTE_SIZE) {
-				final byte command = in.readByte();
-				final byte code = in.readByte();
-				
-				final int notificationId = in.readInt();
-				
-				if (command != EXPECTED_COMMAND) {
-					logger.error(String.format("Unexpected command: %d", command));
-				}
-				
-				final RejectedNotificationReason errorCode = RejectedNotificationReason.getByErrorCode(code);
-				out.add(new RejectedNotification(notificationId, errorCode));
-			}
-		}
-	}
-	
-	private class ApnsPushNotificationEncoder extends MessageToByteEncoder<SendablePushNotification> {
-
-		private static final byte MODERN_FOMAT_NOTIFICATION_COMMAND = 2;
-
-		@Override
-		protected void encode(final ChannelHandlerContext context, final SendablePushNotification sendablePushNotification, final ByteBuf out) throws Exception {
-		
-			out.writeByte(MODERN_FOMAT_NOTIFICATION_COMMAND);
-			out.writeInt(sendablePushNotification.getFrameLength());
-			
-			for (PushNotificationDataItem dataItem : sendablePushNotification.getItems()) {
-				out.writeByte(dataItem.getItemID());
-				out.writeShort(dataItem.getItemLength());
-				out.writeBytes(dataItem.getItemData());
-			}
-		}
-	}
-
 	private class ApnsErrorHandler extends SimpleChannelInboundHandler<RejectedNotification> {
 
 		private final PushRunnable pushRunnable;
@@ -143,16 +108,42 @@ public class PushRunnable implements Runnable {
 		}
 	}
 	
-	public synchronized void terminate() {
+	// Not synchronized, connect() holds the lock while waiting on the event loop that may be calling this
+	@Override
+	public void terminate() {
 		this.requestTermination = true;
 	}
 	
+	@Override
+	public double getWriteBufferUtilization() {
+		return PushRunnable.writeBufferUtilization(this.channel);
+	}
+	
+	static double writeBufferUtilization(final Channel channel) {
+		if (channel == null || !channel.isActive()) {
+			return 0;
+		}
+		if (!channel.isWritable()) {
+			return 1;
+		}
+		final int highWaterMark = channel.config().getWriteBufferHighWaterMark();
+		return 1 - Math.min(1.0, (double)channel.bytesBeforeUnwritable() / highWaterMark);
+	}
+	
 	private synchronized boolean connect() throws InterruptedException {
+		final Channel standbyChannel = this.controller.takeStandbyChannel("handler", new ApnsErrorHandler(this));
+		if (standbyChannel != null) {
+			this.channel = standbyChannel;
+			this.logger.debug(this.toString() + "Took a standby channel");
+			this.controller.pushConnectionDidConnect(this, standbyChannel);
+			return true;
+		}
 		ChannelFuture future = this.bootstrap.connect(this.controller.getApnsEnviroment().getApnsGatewayHost(), this.controller.getApnsEnviroment().getApnsGatewayPort());
 		future.await();
 		if (future.isSuccess()) {
 			this.channel = future.channel();
 			this.logger.debug(this.toString() + "Connected");
+			this.controller.pushConnectionDidConnect(this, this.channel);
 			return true;
 		} else {
 			this.logger.error("Connect to APS error! Reason: " + future.cause().getMessage());
@@ -160,41 +151,76 @@ public class PushRunnable implements Runnable {
 		}
 	}
 	
-	// NOT Thread Safe: Should be private and called only once
-	// Return true if writing operation performed, false if not
-	private boolean sendNotification(final SendablePushNotification notification) throws InterruptedException {
-		if (notification == null) {
-			this.notificationsWriten.set(0);
-			this.channel.flush();
-			return true;
+	// NOT Thread Safe: Should be private and called only by the running thread
+	// Write the batch, flushing whenever the flush strategy asks to. Return the number of notifications written,
+	// the ones after it were not written because the channel stopped being usable.
+	private int sendNotifications(final List<SendablePushNotification> notifications) {
+		int notificationsWritten = 0;
+		for (final SendablePushNotification notification : notifications) {
+			if (!this.awaitWritability()) {
+				break;
+			}
+			
+			final int identifier = this.notificationCache.addNotification(notification);
+			this.lastWriteFuture = this.channel.write(notification);
+			this.lastWriteFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+	
+				@Override
+				public void operationComplete(ChannelFuture future) throws Exception {
+					if (!future.isSuccess()) {
+						handlerNotificationIOError(identifier);
+					}
+				}
+			});
+			notificationsWritten++;
+			
+			final long now = System.nanoTime();
+			if (this.pendingNotifications++ == 0) {
+				this.pendingSince = now;
+			}
+			this.pendingBytes += ApnsPushNotificationEncoder.FRAME_HEADER_LENGTH + notification.getFrameLength();
+			if (this.flushStrategy.shouldFlush(this.pendingNotifications, this.pendingBytes, now - this.pendingSince)) {
+				this.flush();
+			}
+		}
+		return notificationsWritten;
+	}
+	
+	private void flush() {
+		this.channel.flush();
+		this.pendingNotifications = 0;
+		this.pendingBytes = 0;
+	}
+	
+	// While writes are pending, the queue is not waited on past the flush deadline of the strategy.
+	private long pollTimeoutNanos() {
+		if (this.pendingNotifications == 0) {
+			return PushRunnable.POLL_TIMEOUT_NANOS;
+		}
+		final long untilDeadline = this.pendingSince + this.flushStrategy.getMaxFlushDelayNanos() - System.nanoTime();
+		return Math.max(0, Math.min(PushRunnable.POLL_TIMEOUT_NANOS, untilDeadline));
+	}
+	
+	// Return false if the channel can not be written any more.
+	// Interruption keeps the interrupted status so the rest of the batch can still be reclaimed by the caller.
+	private boolean awaitWritability() {
+		if (!this.channel.isWritable() && this.pendingNotifications > 0) {
+			// Unflushed writes count toward the high water mark, what is pending has to go out for the channel to drain
+			this.flush();
 		}
-
 		synchronized (this.channelWritabilityNotifier) {
 			while (!this.channel.isWritable()) {
 				if (!this.channel.isActive() || this.requestTermination || Thread.currentThread().isInterrupted()) {
 					this.requestTermination = true;
 					return false;
 				}
-				this.channelWritabilityNotifier.wait(5 * 1000); // 5 seconds
-			}
-		}
-		
-		this.notificationCache.addNotification(notification);
-		this.channel.write(notification).addListener(new GenericFutureListener<ChannelFuture>() {
-
-			@Override
-			public void operationComplete(ChannelFuture future) throws Exception {
-				if (!future.isSuccess()) {
-					handlerNotificationIOError(notification.getIdentifier());
+				try {
+					this.channelWritabilityNotifier.wait(5 * 1000); // 5 seconds
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
 			}
-		});
-		
-		if (this.notificationsWriten.incrementAndGet() == APNConnectionManager.BATCH_SIZE) {
-			this.notificationsWriten.set(0);
-			this.channel.flush();
 		}
-		
 		return true;
 	}
 	
@@ -202,26 +228,68 @@ public class PushRunnable implements Runnable {
 		SendablePushNotification cachedNotification = this.notificationCache.getAndRemoveNotificationWithIdentifier(failedNotificationIdentifier);
 		this.logger.debug("Channel handle failed IO notification id: " + failedNotificationIdentifier + " sendablenotification: " + cachedNotification);
 		this.notificationQueue.reclaimFailedNotification(cachedNotification);
+		this.writeFailed = true;
 		this.requestTermination = true;
 	}
 	
 	private void handlerNotificationRejectedError(final RejectedNotification rejectedNotification) {
 		ArrayList<SendablePushNotification> notifications = this.notificationCache.getAllNotificationsAfterIdentifierAndPurgeCache(rejectedNotification.getIdentifier());
-		if (notifications.size() > 0) {
+		if (notifications.size() > 0 && notifications.get(0).getIdentifier() == rejectedNotification.getIdentifier()) {
 			SendablePushNotification rejectedOne = notifications.get(0);
 			this.controller.reportRejectedNotification(rejectedOne.getToken(), rejectedNotification.getRejectionReason());
+			rejectedOne.acknowledge();
 			notifications.remove(0);
-			this.notificationQueue.reclaimFailedNotifications(notifications);
-			this.logger.debug(String.format("Hanlder rejected notification, reclaimed %d ", notifications.size()));
 		} else {
+			// Evicted already, the notifications written after it are still resent
 			this.logger.error("Failed to find the rejected notification in SentNotificationCache");
 		}
+		this.notificationQueue.reclaimFailedNotifications(notifications);
+		this.logger.debug(String.format("Hanlder rejected notification, reclaimed %d ", notifications.size()));
+		this.rejected = true;
 		this.requestTermination = true;
 	}
 	
+	// A future wakes its waiters before it notifies its listeners, the failure listeners of the last writes may
+	// still be reclaiming when await() returns. Listeners run in the order they were added: wait for one added last.
+	private boolean awaitWriteListeners(final ChannelFuture writeFuture) {
+		final CountDownLatch listenersDone = new CountDownLatch(1);
+		writeFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				listenersDone.countDown();
+			}
+		});
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return listenersDone.await(WRITE_COMPLETION_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// Nothing to close when the connect failed.
+	// Writes usually fail because the gateway closed the connection after rejecting a notification, and its error
+	// response may still be unread when they do: a busy event loop reads it after the next write hit the closed
+	// connection. Closing then would drop the response, and the notifications written after the rejected one would
+	// count as delivered (see https://github.com/relayrides/pushy/issues/6). A failed write does not close the channel
+	// (AUTO_CLOSE is off), the event loop reads on until the gateway's close.
 	private synchronized void close() throws InterruptedException {
-		if (this.channel != null && this.channel.isOpen()) {
-			((NioUnsafe)this.channel.unsafe()).read(); // Temporary strategy, reference from https://github.com/relayrides/pushy/issues/6 for details.
+		if (this.channel == null) {
+			return;
+		}
+		if (this.writeFailed && !this.rejected && this.channel.isOpen()) {
+			this.logger.debug("write failed, waiting for the gateway to close the channel");
+			this.channel.closeFuture().await(GATEWAY_CLOSE_TIMEOUT_MILLISECONDS);
+		}
+		if (this.channel.isOpen()) {
 			this.logger.debug("channel is about to close");
 			this.channel.close();
 		} else {
@@ -248,29 +316,61 @@ public class PushRunnable implements Runnable {
 			}
 			
 			this.logger.debug("pushRunnable ready to send" + this);
+			final List<SendablePushNotification> batch = new ArrayList<SendablePushNotification>(APNConnectionManager.BATCH_SIZE);
 			while (!this.requestTermination && !Thread.currentThread().isInterrupted()) {
-				SendablePushNotification notification = this.notificationQueue.pollNotification(PushRunnable.POLL_TIMEOUT, PushRunnable.MILLISECONDS_TIME_UNIT);
-				if (!sendNotification(notification)) {
-					this.notificationQueue.reclaimFailedNotification(notification);
+				batch.clear();
+				if (this.notificationQueue.drainNotifications(batch, APNConnectionManager.BATCH_SIZE, this.pollTimeoutNanos(), TimeUnit.NANOSECONDS) == 0) {
+					if (this.pendingNotifications > 0) {
+						this.flush();
+					}
+					continue;
+				}
+				final int notificationsWritten = this.sendNotifications(batch);
+				if (notificationsWritten < batch.size()) {
+					this.notificationQueue.reclaimFailedNotifications(batch.subList(notificationsWritten, batch.size()));
 				}
 			}
 			this.logger.debug("pushRunnable finish sending" + this);
+			if (this.pendingNotifications > 0) {
+				this.flush();
+			}
 			this.close();
 		} catch (InterruptedException e) {
 			this.logger.debug("pushRunnable aborted due to InterruptedException!");
 			interrupted = Thread.interrupted();
 		} finally {
+			// The controller must hear of the end whatever the cleanup throws, or the connection is neither
+			// replaced nor counted as a failed connect
 			try {
-				this.logger.debug("pushRunnable finally close");
-				this.close(); // Calling close() more than once is harmless
-			} catch (InterruptedException e) {
-				// Task is going to the end, so just ignore it.
-				this.logger.debug("exception happend in finnally");
-			}
-			if (interrupted) {
-				Thread.currentThread().interrupt();
+				try {
+					this.logger.debug("pushRunnable finally close");
+					this.close(); // Calling close() more than once is harmless
+				} catch (InterruptedException e) {
+					// Task is going to the end, so just ignore it.
+					this.logger.debug("exception happend in finnally");
+				}
+				if (this.lastWriteFuture != null && !this.awaitWriteListeners(this.lastWriteFuture)) {
+					this.logger.warn("Writes still pending after the channel closed");
+				}
+				if (this.rejected) {
+					// The gateway discards everything after a rejected notification, writes that went out
+					// between the rejection and the close were never delivered either.
+					final ArrayList<SendablePushNotification> discarded = this.notificationCache.getAllNotificationsAfterPurgeAndPurgeCache();
+					this.notificationQueue.reclaimFailedNotifications(discarded);
+					this.logger.debug(String.format("Reclaimed %d notifications written after the rejection", discarded.size()));
+				}
+				// The rest were written before any rejection and not reclaimed as failed writes, they are settled
+				for (SendablePushNotification notification : this.notificationCache.removeAllNotifications()) {
+					notification.acknowledge();
+				}
+			} catch (RuntimeException e) {
+				this.logger.error("pushRunnable cleanup failed", e);
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				this.controller.pushRunnableWillTerminate(this);
 			}
-			this.controller.pushRunnableWillTerminate();
 		}
 	}
 
@@ -0,0 +1,11 @@
+package com.hxd.push;
+
+import java.util.Collection;
+
+public interface ReclaimableNotificationQueue extends NotificationEnqueue, NotificationReclaimableConsumeQueue {
+	Collection<SendablePushNotification> remainNotifications();
+	// Notifications waiting to be sent, reclaimed ones included. An estimate while producers and consumers run.
+	int size();
+	// Of the working and of the reclaim queue each. Reclaiming past it raises a runtime exception.
+	int capacity();
+}
@@ -0,0 +1,37 @@
+package com.hxd.push;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Decodes the error response APNs writes before closing a connection on which it rejected a notification.
+public class RejectedNotificationDecoder extends ByteToMessageDecoder {
+
+	// Per Apple's docs, APNS errors will have a one-byte "command", a one-byte status, and a 4-byte notification ID
+	private static final int EXPECTED_BYTE_SIZE = 6;
+	private static final byte EXPECTED_COMMAND = 8;
+
+	private final Logger logger = LoggerFactory.getLogger(RejectedNotificationDecoder.class);
+
+	@Override
+	protected void decode(final ChannelHandlerContext context, final ByteBuf in, final List<Object> out) {
+		if (in.readableBytes() >= EXPECTED_BYTE_SIZE) {
+			final byte command = in.readByte();
+			final byte code = in.readByte();
+
+			final int notificationId = in.readInt();
+
+			if (command != EXPECTED_COMMAND) {
+				this.logger.error(String.format("Unexpected command: %d", command));
+			}
+
+			final RejectedNotificationReason errorCode = RejectedNotificationReason.getByErrorCode(code);
+			out.add(new RejectedNotification(notificationId, errorCode));
+		}
+	}
+}
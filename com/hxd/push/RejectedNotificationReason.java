@@ -12,6 +12,9 @@ public enum RejectedNotificationReason {
 	INVALID_PAYLOAD_SIZE((byte)7),
 	INVALID_TOKEN((byte)8),
 	SHUTDOWN((byte)10),
+	// HTTP/2 only, the gateway never sends this code: the token is valid, but for another topic than the notification's.
+	// Not an invalid token, it is valid for the other apps of the team.
+	TOKEN_NOT_FOR_TOPIC((byte)254),
 	UNKNOWN((byte)255);
 	
 	private final byte errorCode;
@@ -33,4 +36,29 @@ public enum RejectedNotificationReason {
 		
 		throw new IllegalArgumentException(String.format("Unrecognized error code: %d", errorCode));
 	}
+	
+	// The reason in the JSON body of an HTTP/2 provider API response, UNKNOWN for reasons without a binary counterpart.
+	// InvalidProviderToken and MissingProviderToken refuse the connection rather than a notification, they are not rejections.
+	public static RejectedNotificationReason getByHttp2Reason(final String reason) {
+		if ("BadDeviceToken".equals(reason) || "Unregistered".equals(reason)) {
+			return INVALID_TOKEN;
+		} else if ("DeviceTokenNotForTopic".equals(reason)) {
+			return TOKEN_NOT_FOR_TOPIC;
+		} else if ("MissingDeviceToken".equals(reason)) {
+			return MISSING_DEVICE_TOKEN;
+		} else if ("MissingTopic".equals(reason)) {
+			return MISSING_TOPIC;
+		} else if ("PayloadEmpty".equals(reason)) {
+			return MISSING_PAYLOAD;
+		} else if ("PayloadTooLarge".equals(reason)) {
+			return INVALID_PAYLOAD_SIZE;
+		} else if ("BadTopic".equals(reason) || "TopicDisallowed".equals(reason)) {
+			return INVALID_TOPIC_SIZE;
+		} else if ("InternalServerError".equals(reason)) {
+			return PROCESSING_ERROR;
+		} else if ("Shutdown".equals(reason) || "ServiceUnavailable".equals(reason)) {
+			return SHUTDOWN;
+		}
+		return UNKNOWN;
+	}
 }
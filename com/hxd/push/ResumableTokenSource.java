@@ -0,0 +1,7 @@
+package com.hxd.push;
+
+// A token source that can be reopened where an earlier one stopped.
+public interface ResumableTokenSource extends TokenSource {
+	// The position following the last token read, a new source of the same range started here reads the tokens after it.
+	long getPosition();
+}
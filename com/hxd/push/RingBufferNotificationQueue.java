@@ -0,0 +1,211 @@
+package com.hxd.push;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// ThreadSafe, lock free
+// A NotificationQueue alternative built on two bounded, pre-allocated multi-producer multi-consumer rings:
+// the working ring fed by producers and a priority ring for reclaimed notifications, which is always polled first.
+// No node is allocated per notification. Blocked producers and consumers spin briefly, then park for short intervals.
+// As with NotificationQueue, reclaimed notifications should not exceed the capacity, otherwise runtime exceptions will be raised.
+public class RingBufferNotificationQueue implements ReclaimableNotificationQueue {
+	
+	private static final int SPINS_BEFORE_PARKING = 64;
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	
+	private final Ring workingRing;
+	private final Ring reclaimRing;
+	private final int capacity;
+	
+	public RingBufferNotificationQueue(final int capacity) {
+		this.capacity = capacity; // The rings round it up to a power of two
+		this.workingRing = new Ring(capacity);
+		this.reclaimRing = new Ring(capacity);
+	}
+	
+	@Override
+	public void put(final SendablePushNotification notification) throws InterruptedException {
+		int spins = 0;
+		while (!this.workingRing.offer(notification)) {
+			spins = RingBufferNotificationQueue.backOff(spins);
+		}
+	}
+	
+	@Override
+	public SendablePushNotification pollNotification(final long timeout, final TimeUnit unit) throws InterruptedException {
+		SendablePushNotification notification = this.poll();
+		if (notification != null) {
+			return notification;
+		}
+		
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int spins = 0;
+		while ((notification = this.poll()) == null) {
+			if (System.nanoTime() - deadline >= 0) {
+				return null;
+			}
+			spins = RingBufferNotificationQueue.backOff(spins);
+		}
+		return notification;
+	}
+	
+	@Override
+	public int drainNotifications(final Collection<? super SendablePushNotification> notifications, final int maxNotifications, final long timeout, final TimeUnit unit) throws InterruptedException {
+		int drained = this.drainTo(notifications, maxNotifications);
+		if (drained == 0 && maxNotifications > 0) {
+			final SendablePushNotification notification = this.pollNotification(timeout, unit);
+			if (notification != null) {
+				notifications.add(notification);
+				drained = 1 + this.drainTo(notifications, maxNotifications - 1);
+			}
+		}
+		return drained;
+	}
+	
+	// Move up to maxNotifications available notifications into the collection without blocking, reclaimed ones first.
+	public int drainTo(final Collection<? super SendablePushNotification> notifications, final int maxNotifications) {
+		int drained = 0;
+		SendablePushNotification notification = null;
+		while (drained < maxNotifications && (notification = this.poll()) != null) {
+			notifications.add(notification);
+			drained++;
+		}
+		return drained;
+	}
+	
+	private SendablePushNotification poll() {
+		final SendablePushNotification notification = this.reclaimRing.poll();
+		return notification != null ? notification : this.workingRing.poll();
+	}
+
+	@Override
+	public void reclaimFailedNotifications(final Collection<SendablePushNotification> notifications) {
+		if (notifications != null) {
+			for (SendablePushNotification notification : notifications) {
+				this.reclaimFailedNotification(notification);
+			}
+		}
+	}
+
+	@Override
+	public void reclaimFailedNotification(final SendablePushNotification notification) {
+		if (notification != null && !this.reclaimRing.offer(notification)) {
+			throw new IllegalStateException("Reclaim queue full");
+		}
+	}
+	
+	// Best effort snapshot, meant to be taken once producers and consumers have stopped.
+	@Override
+	public Collection<SendablePushNotification> remainNotifications() {
+		final Collection<SendablePushNotification> unsentNotifications = new ArrayList<SendablePushNotification>();
+		this.workingRing.snapshot(unsentNotifications);
+		this.reclaimRing.snapshot(unsentNotifications);
+		return unsentNotifications;
+	}
+	
+	@Override
+	public int size() {
+		return this.workingRing.size() + this.reclaimRing.size();
+	}
+	
+	@Override
+	public int capacity() {
+		return this.capacity;
+	}
+	
+	private static int backOff(final int spins) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if (spins < SPINS_BEFORE_PARKING) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return spins + 1;
+	}
+	
+	// Bounded MPMC array queue after Dmitry Vyukov: every slot carries a sequence number telling
+	// producers and consumers whose turn it is, so slots are claimed with a single CAS on the position.
+	private static final class Ring {
+		private final int mask;
+		private final AtomicReferenceArray<SendablePushNotification> slots;
+		private final AtomicLongArray sequences;
+		private final AtomicLong enqueuePosition = new AtomicLong(0);
+		private final AtomicLong dequeuePosition = new AtomicLong(0);
+		
+		Ring(final int capacity) {
+			int size = 1;
+			while (size < capacity) {
+				size <<= 1;
+			}
+			this.mask = size - 1;
+			this.slots = new AtomicReferenceArray<SendablePushNotification>(size);
+			this.sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				this.sequences.set(i, i);
+			}
+		}
+		
+		boolean offer(final SendablePushNotification notification) {
+			long position = this.enqueuePosition.get();
+			while (true) {
+				final int index = (int)position & this.mask;
+				final long difference = this.sequences.get(index) - position;
+				if (difference == 0) {
+					if (this.enqueuePosition.compareAndSet(position, position + 1)) {
+						this.slots.lazySet(index, notification);
+						this.sequences.set(index, position + 1);
+						return true;
+					}
+					position = this.enqueuePosition.get();
+				} else if (difference < 0) {
+					return false; // Full
+				} else {
+					position = this.enqueuePosition.get();
+				}
+			}
+		}
+		
+		SendablePushNotification poll() {
+			long position = this.dequeuePosition.get();
+			while (true) {
+				final int index = (int)position & this.mask;
+				final long difference = this.sequences.get(index) - (position + 1);
+				if (difference == 0) {
+					if (this.dequeuePosition.compareAndSet(position, position + 1)) {
+						final SendablePushNotification notification = this.slots.get(index);
+						this.slots.lazySet(index, null);
+						this.sequences.set(index, position + this.mask + 1);
+						return notification;
+					}
+					position = this.dequeuePosition.get();
+				} else if (difference < 0) {
+					return null; // Empty
+				} else {
+					position = this.dequeuePosition.get();
+				}
+			}
+		}
+		
+		int size() {
+			return (int)Math.max(0, this.enqueuePosition.get() - this.dequeuePosition.get());
+		}
+		
+		void snapshot(final Collection<SendablePushNotification> notifications) {
+			final long end = this.enqueuePosition.get();
+			for (long position = this.dequeuePosition.get(); position < end; position++) {
+				final int index = (int)position & this.mask;
+				final SendablePushNotification notification = this.slots.get(index);
+				if (this.sequences.get(index) == position + 1 && notification != null) {
+					notifications.add(notification);
+				}
+			}
+		}
+	}
+}
@@ -1,62 +1,177 @@
 package com.hxd.push;
 
-import java.util.ArrayList;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
 import java.util.Date;
 
+// The notification keeps its items as raw fields and writes them straight into the outbound frame,
+// so no per-item objects are created for each notification.
 public class SendablePushNotification implements APNBasicNotification {
 	
-	private final int identifier;
-	private final String tokenString;
+	// Assigned by the SentNotificationCache of the connection sending it, and reassigned if it is resent elsewhere.
+	private volatile int identifier;
 	private final String payload;
-	private ArrayList<PushNotificationDataItem> items;
+	private final byte[] tokenBytes;
+	private final byte[] payloadBytes;
+	private final BroadcastPayload sharedPayload;
+	private final int expirationTime;
+	// The apns-topic of the HTTP/2 API, null for the default topic of the controller
+	private final String topic;
+	// Set by the producer before the notification is queued, when the broadcast progress is journaled
+	private BroadcastProgress progress;
+	private long sequence;
+	// Answers of the HTTP/2 gateway asking to send it again later, see Http2PushConnection
+	private int retries;
 	
 	private static final int ITEM_ID_FIELD_LENGTH = 1;
 	private static final int ITEM_DATA_LENGTH_FIELD_LENGTH = 2;
+	private static final int ITEM_HEADER_LENGTH = ITEM_ID_FIELD_LENGTH + ITEM_DATA_LENGTH_FIELD_LENGTH;
+	private static final int FIXED_ITEMS_LENGTH = ITEM_HEADER_LENGTH * 5
+			+ DeviceTokenDataItem.ITEM_LENGTH
+			+ NotificationIdentifierDataItem.ITEM_LENGTH
+			+ ExpirationDateDataItem.ITEM_LENGTH
+			+ PriorityDataItem.ITEM_LENGTH;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	public SendablePushNotification(final String token,
 			final String payload, final Date deliveryInvalidationTime) {
+		this(DeviceTokenDataItem.tokenStringToBytes(token), payload, deliveryInvalidationTime);
+	}
+	
+	public SendablePushNotification(final byte[] token,
+			final String payload, final Date deliveryInvalidationTime) {
+		this(token, payload, deliveryInvalidationTime, null);
+	}
+	
+	public SendablePushNotification(final byte[] token,
+			final String payload, final Date deliveryInvalidationTime, final String topic) {
 		super();
-		this.identifier = APNIdentifierGenerator.generateIdentifer();
+		this.topic = topic;
 		this.payload = payload;
-		this.tokenString = token;
-		this.items = new ArrayList<PushNotificationDataItem>();
-		this.items.add(new DeviceTokenDataItem(token));
-		this.items.add(new PayloadDataItem(payload));
-		this.items.add(new NotificationIdentifierDataItem(identifier));
-		
-		if (deliveryInvalidationTime != null) {
-			this.items.add(new ExpirationDateDataItem(deliveryInvalidationTime));
-		} else {
-			this.items.add(new ExpirationDateDataItem(new Date(0)));
-		}
-		this.items.add(new PriorityDataItem());
+		this.tokenBytes = token;
+		this.payloadBytes = payload.getBytes(UTF8);
+		this.sharedPayload = null;
+		this.expirationTime = SendablePushNotification.expirationTime(deliveryInvalidationTime);
+	}
+	
+	public SendablePushNotification(final byte[] token,
+			final BroadcastPayload sharedPayload, final Date deliveryInvalidationTime) {
+		this(token, sharedPayload, deliveryInvalidationTime, null);
+	}
+	
+	public SendablePushNotification(final byte[] token,
+			final BroadcastPayload sharedPayload, final Date deliveryInvalidationTime, final String topic) {
+		super();
+		this.topic = topic;
+		this.payload = null;
+		this.tokenBytes = token;
+		this.payloadBytes = null;
+		this.sharedPayload = sharedPayload;
+		this.expirationTime = SendablePushNotification.expirationTime(deliveryInvalidationTime);
+	}
+	
+	private static int expirationTime(final Date deliveryInvalidationTime) {
+		return deliveryInvalidationTime != null ? (int)(deliveryInvalidationTime.getTime() / 1000) : 0;
 	}
 
 	public int getFrameLength() {
-		int frameLength = 0;
-		for (PushNotificationDataItem dataItem : this.getItems()) {
-			frameLength += dataItem.getItemLength() + ITEM_ID_FIELD_LENGTH + ITEM_DATA_LENGTH_FIELD_LENGTH;
-		}
-		return frameLength;
+		return FIXED_ITEMS_LENGTH + this.getPayloadLength();
+	}
+	
+	public int getPayloadLength() {
+		return this.sharedPayload != null ? this.sharedPayload.getLength() : this.payloadBytes.length;
+	}
+	
+	public boolean hasSharedPayload() {
+		return this.sharedPayload != null;
+	}
+	
+	// Only valid when hasSharedPayload() returns true, the caller owns the returned buffer.
+	public ByteBuf retainedSharedPayloadBuffer() {
+		return this.sharedPayload.retainedPayloadBuffer();
+	}
+	
+	// The payload as the body of an HTTP/2 request, the caller owns the returned buffer. A shared payload is not copied.
+	public ByteBuf retainedPayloadBuffer() {
+		return this.sharedPayload != null ? this.sharedPayload.retainedPayloadBuffer() : Unpooled.wrappedBuffer(this.payloadBytes);
+	}
+	
+	public String getTopic() {
+		return this.topic;
+	}
+	
+	// Seconds since the epoch, 0 to not store the notification when the device is offline
+	public int getExpirationTime() {
+		return this.expirationTime;
 	}
 
-	public ArrayList<PushNotificationDataItem> getItems() {
-		return items;
+	// The payload item goes last so a shared payload can be appended by the caller as a separate buffer.
+	// When the payload is shared, its bytes are NOT written here.
+	public void writeItems(final ByteBuf out) {
+		out.writeByte(DeviceTokenDataItem.ITEM_ID);
+		out.writeShort(DeviceTokenDataItem.ITEM_LENGTH);
+		out.writeBytes(this.tokenBytes);
+		
+		out.writeByte(NotificationIdentifierDataItem.ITEM_ID);
+		out.writeShort(NotificationIdentifierDataItem.ITEM_LENGTH);
+		out.writeInt(this.identifier);
+		
+		out.writeByte(ExpirationDateDataItem.ITEM_ID);
+		out.writeShort(ExpirationDateDataItem.ITEM_LENGTH);
+		out.writeInt(this.expirationTime);
+		
+		out.writeByte(PriorityDataItem.ITEM_ID);
+		out.writeShort(PriorityDataItem.ITEM_LENGTH);
+		out.writeByte(PriorityDataItem.DEFAULT_PRIORITY);
+		
+		out.writeByte(PayloadDataItem.ITEM_ID);
+		out.writeShort(this.getPayloadLength());
+		if (this.sharedPayload == null) {
+			out.writeBytes(this.payloadBytes);
+		}
 	}
 	
 	@Override
 	public String getPayload() {
-		return this.payload;
+		return this.sharedPayload != null ? this.sharedPayload.getPayload() : this.payload;
 	}
+	// The hex form is only needed for reporting, so it is rebuilt on demand rather than kept per notification.
 	@Override
 	public String getToken() {
-		return this.tokenString;
+		return DeviceTokenCodec.encode(this.tokenBytes);
+	}
+	
+	public byte[] getTokenBytes() {
+		return this.tokenBytes;
 	}
 	@Override
 	public int getIdentifier() {
 		return identifier;
 	}
 	
+	void setIdentifier(final int identifier) {
+		this.identifier = identifier;
+	}
+	
+	void trackProgress(final BroadcastProgress progress, final long sequence) {
+		this.progress = progress;
+		this.sequence = sequence;
+	}
+	
+	// Count one more retry, return the retries so far
+	int retried() {
+		return ++this.retries;
+	}
+	
+	// The notification is settled and will not be sent again, see BroadcastProgress.
+	public void acknowledge() {
+		if (this.progress != null) {
+			this.progress.acknowledge(this.sequence);
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return String.format("<%s, identifier: %d>", super.toString(), this.getIdentifier());
@@ -1,54 +1,107 @@
 package com.hxd.push;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 // SentNotificationCache is implemented as a burn-after-querying cache whose size is defined by the capacity ivar.
-// When new notification added, if the max size is reached, the eldest notification will be discarded.
+// The cache hands out the identifiers of the notifications sent on its connection, one increasing sequence,
+// and keeps each notification in a circular array at index identifier modulo the (power of two) slot count.
+// When new notification added, if the max size is reached, the eldest notification is overwritten and acknowledged.
+// ThreadSafe with a single writer: addNotification is called by the sending thread only,
+// lookups may come from any thread and take no lock.
 public class SentNotificationCache {
-	private final int capacity;
-	private final LinkedHashMap<Integer, SendablePushNotification> bufferedNotifications;
+	private final int mask;
+	private final AtomicReferenceArray<SendablePushNotification> bufferedNotifications;
+	
+	private volatile int nextIdentifier = 1;
+	private volatile int purgedBefore = 1;
 
 	public SentNotificationCache(final int capacity) {
-		this.bufferedNotifications = new LinkedHashMap<Integer, SendablePushNotification>();
-		this.capacity = capacity;
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.bufferedNotifications = new AtomicReferenceArray<SendablePushNotification>(size);
 	}
 
-	public synchronized void addNotification(final SendablePushNotification sentNotification) {
-		this.bufferedNotifications.put(sentNotification.getIdentifier(), sentNotification);
-		if (this.bufferedNotifications.size() == this.capacity) {
-			int theEldestKey = ((Integer)this.bufferedNotifications.keySet().toArray()[0]).intValue();
-			this.bufferedNotifications.remove(theEldestKey);
+	// Assign the next identifier to the notification and cache it, return the identifier.
+	public int addNotification(final SendablePushNotification sentNotification) {
+		final int identifier = this.nextIdentifier;
+		sentNotification.setIdentifier(identifier);
+		final SendablePushNotification evictedNotification = this.bufferedNotifications.getAndSet(identifier & this.mask, sentNotification);
+		if (evictedNotification != null) {
+			evictedNotification.acknowledge();
 		}
+		this.nextIdentifier = identifier + 1;
+		return identifier;
+	}
+	
+	private boolean isCached(final int identifier, final int nextIdentifier) {
+		// Differences rather than comparisons, so identifiers may wrap around
+		return identifier - this.purgedBefore >= 0
+				&& nextIdentifier - identifier > 0
+				&& nextIdentifier - identifier <= this.mask + 1;
+	}
+	
+	private SendablePushNotification notificationAt(final int identifier) {
+		final SendablePushNotification notification = this.bufferedNotifications.get(identifier & this.mask);
+		return notification != null && notification.getIdentifier() == identifier ? notification : null;
 	}
 
-	public synchronized SendablePushNotification getAndRemoveNotificationWithIdentifier(final int identifier) {
-		SendablePushNotification notification = this.bufferedNotifications.get(identifier);
-		if (notification != null) {
-			this.bufferedNotifications.remove(identifier);
+	public SendablePushNotification getAndRemoveNotificationWithIdentifier(final int identifier) {
+		if (!this.isCached(identifier, this.nextIdentifier)) {
+			return null;
 		}
-		return notification;
+		final SendablePushNotification notification = this.notificationAt(identifier);
+		if (notification != null && this.bufferedNotifications.compareAndSet(identifier & this.mask, notification, null)) {
+			return notification;
+		}
+		return null;
 	}
 
-	// Include notification with this identifier
+	// Include notification with this identifier, when it is still cached.
+	// The gateway discards every notification written after a rejected one: for an identifier that was already
+	// evicted, all notifications still cached follow it and are returned. Nothing is returned for an identifier
+	// that was never handed out or was purged before.
 	public synchronized ArrayList<SendablePushNotification> getAllNotificationsAfterIdentifierAndPurgeCache(final int identifier) {
-		Set<Map.Entry<Integer, SendablePushNotification>> entrySet = this.bufferedNotifications.entrySet();
-		boolean findIt = false;
-		ArrayList<SendablePushNotification> notificationsFollowingTheIdentifier = new ArrayList<SendablePushNotification>();
-		for (Map.Entry<Integer, SendablePushNotification> entry : entrySet) {
-			if ( (entry.getKey()).intValue() == identifier ) {
-				findIt = true;
-			}
-			
-			if (findIt) {
-				notificationsFollowingTheIdentifier.add(entry.getValue());
+		final int nextIdentifier = this.nextIdentifier;
+		final ArrayList<SendablePushNotification> notificationsFollowingTheIdentifier = new ArrayList<SendablePushNotification>();
+		if (identifier - this.purgedBefore >= 0 && nextIdentifier - identifier > 0) {
+			final int first = nextIdentifier - identifier > this.mask + 1 ? nextIdentifier - this.mask - 1 : identifier;
+			for (int i = first; nextIdentifier - i > 0; i++) {
+				final SendablePushNotification notification = this.notificationAt(i);
+				if (notification != null && this.bufferedNotifications.compareAndSet(i & this.mask, notification, null)) {
+					notificationsFollowingTheIdentifier.add(notification);
+				}
 			}
-			
 		}
-		this.bufferedNotifications.clear();
+		this.purgedBefore = nextIdentifier;
 		return notificationsFollowingTheIdentifier;
 	}
+	
+	// All notifications added since the last purge, the cache is emptied.
+	// Called once the connection is closed, when no more identifiers will be added.
+	public synchronized ArrayList<SendablePushNotification> getAllNotificationsAfterPurgeAndPurgeCache() {
+		final int nextIdentifier = this.nextIdentifier;
+		int identifier = this.purgedBefore;
+		if (nextIdentifier - identifier > this.mask + 1) {
+			identifier = nextIdentifier - this.mask - 1;
+		}
+		return this.getAllNotificationsAfterIdentifierAndPurgeCache(identifier);
+	}
+	
+	// Every notification still cached, purged or not, the cache is emptied.
+	public synchronized ArrayList<SendablePushNotification> removeAllNotifications() {
+		final ArrayList<SendablePushNotification> notifications = new ArrayList<SendablePushNotification>();
+		for (int i = 0; i <= this.mask; i++) {
+			final SendablePushNotification notification = this.bufferedNotifications.getAndSet(i, null);
+			if (notification != null) {
+				notifications.add(notification);
+			}
+		}
+		this.purgedBefore = this.nextIdentifier;
+		return notifications;
+	}
 }
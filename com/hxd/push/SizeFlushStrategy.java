@@ -0,0 +1,24 @@
+package com.hxd.push;
+
+import java.util.concurrent.TimeUnit;
+
+// Flush every given number of notifications.
+public class SizeFlushStrategy extends FlushStrategy {
+	
+	private final int notificationsPerFlush;
+	
+	public SizeFlushStrategy(final int notificationsPerFlush, final long maxFlushDelay, final TimeUnit unit) {
+		super(maxFlushDelay, unit);
+		this.notificationsPerFlush = notificationsPerFlush;
+	}
+
+	@Override
+	public boolean shouldFlush(final int pendingNotifications, final long pendingBytes, final long pendingNanos) {
+		return pendingNotifications >= this.notificationsPerFlush;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: notificationsPerFlush:%d, maxFlushDelayNanos:%d", super.toString(), this.notificationsPerFlush, this.getMaxFlushDelayNanos());
+	}
+}
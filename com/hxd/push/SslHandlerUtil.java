@@ -1,8 +1,14 @@
 package com.hxd.push;
 
-import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 
-import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -10,35 +16,53 @@ import java.security.Security;
 import java.security.UnrecoverableKeyException;
 
 import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.TrustManagerFactory;
 
 public class SslHandlerUtil {
-	private static final String PROTOCOL = "TLS";
 	private static final String DEFAULT_ALGORITHM = "SunX509";
-	
+
 	protected SslHandlerUtil() {}
-	
-	protected static SslHandler createSslHandler(final KeyStore keyStore, final char[] keyStorePassword) throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException {
+
+	// OpenSSL when netty-tcnative is on the classpath, the JDK otherwise
+	protected static SslProvider getSslProvider() {
+		return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+	}
+
+	// A null trustManagerFactory means the platform default trust store
+	protected static SslContext createSslContext(final KeyStore keyStore, final char[] keyStorePassword, TrustManagerFactory trustManagerFactory) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, SSLException {
+		return SslHandlerUtil.createSslContext(keyStore, keyStorePassword, trustManagerFactory, false);
+	}
+
+	// With http2 the context negotiates h2 by ALPN and offers the ciphers HTTP/2 allows.
+	// A null keyStore presents no client certificate, for provider token authentication.
+	protected static SslContext createSslContext(final KeyStore keyStore, final char[] keyStorePassword, TrustManagerFactory trustManagerFactory, final boolean http2) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, SSLException {
 		String algorithm = Security.getProperty("ssl.KeyManagerFactory.algorithm");
-		
+
         if (algorithm == null) {
             algorithm = DEFAULT_ALGORITHM;
         }
-        
-		final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(algorithm);
-		trustManagerFactory.init((KeyStore) null);
-		
-		final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(algorithm);
-		keyManagerFactory.init(keyStore, keyStorePassword);
-		
-		final SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
-		sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-		
-		final SSLEngine sslEngine = sslContext.createSSLEngine();
-		sslEngine.setUseClientMode(true);
-		
-		return new SslHandler(sslEngine);
+
+		if (trustManagerFactory == null) {
+			trustManagerFactory = TrustManagerFactory.getInstance(algorithm);
+			trustManagerFactory.init((KeyStore) null);
+		}
+
+		final SslContextBuilder builder = SslContextBuilder.forClient()
+								.sslProvider(SslHandlerUtil.getSslProvider())
+								.trustManager(trustManagerFactory);
+		if (keyStore != null) {
+			final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(algorithm);
+			keyManagerFactory.init(keyStore, keyStorePassword);
+			builder.keyManager(keyManagerFactory);
+		}
+		if (http2) {
+			builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+					.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+							ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+							ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+							ApplicationProtocolNames.HTTP_2));
+		}
+		return builder.build();
 	}
 }
@@ -0,0 +1,212 @@
+package com.hxd.push;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keeps channels to the gateway connected and handshaken ahead of time, so a connection replacing one that ended
+// takes a ready channel instead of connecting. A standby channel has the pipeline of a push connection with a
+// placeholder in place of its "handler"; take() swaps in the handler of the connection and connects another
+// standby channel. Channels closed while on standby are replaced. Failed connects are retried after a delay of
+// their own, RETRY_DELAY doubling with each failure in a row up to MAX_RETRY_DELAY.
+// Standby connects do not count towards the circuit breaker of the controller: only the replacement of a live connection
+// moves an open breaker on, standby failures alone would keep it open while the live connections are healthy.
+// While the breaker is not closed no standby channel is connected.
+// ThreadSafe
+public class StandbyChannelPool {
+
+	private static final String STANDBY_HANDLER_NAME = "standby";
+	private static final long RETRY_DELAY_MILLISECONDS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLISECONDS = 30 * 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(StandbyChannelPool.class);
+	private final PushController controller;
+	private final GatewayCircuitBreaker circuitBreaker;
+	private final Bootstrap bootstrap;
+	private final int size;
+	private final Queue<Channel> readyChannels = new ConcurrentLinkedQueue<Channel>();
+	private final AtomicInteger connectingChannels = new AtomicInteger(0);
+	private final AtomicLong takenChannels = new AtomicLong(0);
+	private final AtomicLong missedTakes = new AtomicLong(0);
+	private final AtomicLong failedConnects = new AtomicLong(0);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+	private volatile boolean closed = false;
+
+	public StandbyChannelPool(final PushController controller, final GatewayCircuitBreaker circuitBreaker, final int size) {
+		this.controller = controller;
+		this.circuitBreaker = circuitBreaker;
+		this.size = size;
+		final FlushStrategy flushStrategy = controller.getFlushStrategy();
+		this.bootstrap = new Bootstrap()
+							.group(controller.getNioEventLoopGroup())
+							.channel(NioSocketChannel.class)
+							.option(ChannelOption.SO_KEEPALIVE, true)
+							.handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			protected void initChannel(final SocketChannel channel) throws Exception {
+				final ChannelPipeline pipeline = channel.pipeline();
+				controller.getSslContext().configurePipeline(pipeline, controller.getApnsEnviroment().getApnsGatewayHost(), controller.getApnsEnviroment().getApnsGatewayPort());
+				pipeline.addLast("decoder", new RejectedNotificationDecoder());
+				pipeline.addLast("encoder", new ApnsPushNotificationEncoder());
+				pipeline.addLast(STANDBY_HANDLER_NAME, new StandbyHandler());
+				flushStrategy.configurePipeline(pipeline);
+			}
+		});
+	}
+
+	public void start() {
+		this.refill();
+	}
+
+	// A ready channel with the given handler in place of the placeholder, or null if none is ready
+	public Channel take(final String name, final ChannelHandler handler) {
+		Channel channel;
+		while ((channel = this.readyChannels.poll()) != null) {
+			this.refill();
+			if (!channel.isActive()) {
+				continue;
+			}
+			try {
+				channel.pipeline().replace(STANDBY_HANDLER_NAME, name, handler);
+				this.takenChannels.incrementAndGet();
+				return channel;
+			} catch (NoSuchElementException e) {
+				// Closed meanwhile, its pipeline is torn down
+			}
+		}
+		this.missedTakes.incrementAndGet();
+		return null;
+	}
+
+	public void close() {
+		this.closed = true;
+		Channel channel;
+		while ((channel = this.readyChannels.poll()) != null) {
+			channel.close();
+		}
+	}
+
+	public int getReadyCount() {
+		return this.readyChannels.size();
+	}
+
+	public long getTakenCount() {
+		return this.takenChannels.get();
+	}
+
+	// Takes that found no ready channel and left the connection to connect by itself
+	public long getMissedTakeCount() {
+		return this.missedTakes.get();
+	}
+
+	// Standby connects and handshakes that failed
+	public long getFailedConnectCount() {
+		return this.failedConnects.get();
+	}
+
+	// Connect channels up to the size of the pool
+	void refill() {
+		while (!this.closed && this.circuitBreaker.getState() == GatewayCircuitBreaker.State.CLOSED) {
+			final int connecting = this.connectingChannels.get();
+			if (this.readyChannels.size() + connecting >= this.size) {
+				return;
+			}
+			if (this.connectingChannels.compareAndSet(connecting, connecting + 1)) {
+				this.connect();
+			}
+		}
+	}
+
+	private void connect() {
+		final ChannelFuture connectFuture = this.bootstrap.connect(this.controller.getApnsEnviroment().getApnsGatewayHost(), this.controller.getApnsEnviroment().getApnsGatewayPort());
+		connectFuture.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					logger.warn("Standby connect to APS failed: " + future.cause().getMessage());
+					retry();
+					return;
+				}
+				future.channel().pipeline().get(SslHandler.class).handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+					@Override
+					public void operationComplete(final Future<Channel> handshakeFuture) throws Exception {
+						if (handshakeFuture.isSuccess()) {
+							ready(handshakeFuture.getNow());
+						} else {
+							logger.warn("Standby TLS handshake with APS failed: " + handshakeFuture.cause().getMessage());
+							future.channel().close();
+							retry();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void ready(final Channel channel) {
+		this.consecutiveFailures.set(0);
+		this.readyChannels.add(channel);
+		this.connectingChannels.decrementAndGet();
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				// Replace a standby channel the gateway closed, a taken one is not in the queue any more
+				if (readyChannels.remove(channel)) {
+					refill();
+				}
+			}
+		});
+		if (this.closed) {
+			this.close();
+		}
+	}
+
+	private void retry() {
+		this.failedConnects.incrementAndGet();
+		final int failures = this.consecutiveFailures.incrementAndGet();
+		if (this.closed) {
+			this.connectingChannels.decrementAndGet();
+			return;
+		}
+		this.controller.getNioEventLoopGroup().schedule(new Runnable() {
+			@Override
+			public void run() {
+				connectingChannels.decrementAndGet();
+				refill();
+			}
+		}, Math.min(MAX_RETRY_DELAY_MILLISECONDS, RETRY_DELAY_MILLISECONDS << Math.min(15, failures - 1)), TimeUnit.MILLISECONDS);
+	}
+
+	// Placeholder for the handler of the connection taking the channel
+	private class StandbyHandler extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+			logger.debug("Standby channel failed: " + cause.getMessage());
+			context.close();
+		}
+	}
+}
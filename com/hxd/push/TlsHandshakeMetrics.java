@@ -0,0 +1,71 @@
+package com.hxd.push;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts and times the TLS handshakes of the connections sharing an ApnsClientSslContext,
+// from the channel becoming active to the handshake completing.
+// ThreadSafe
+public class TlsHandshakeMetrics {
+
+	private final AtomicLong fullHandshakes = new AtomicLong(0);
+	private final AtomicLong resumedHandshakes = new AtomicLong(0);
+	private final AtomicLong failedHandshakes = new AtomicLong(0);
+	private final AtomicLong fullHandshakeNanos = new AtomicLong(0);
+	private final AtomicLong resumedHandshakeNanos = new AtomicLong(0);
+	private final AtomicLong maxHandshakeNanos = new AtomicLong(0);
+
+	void handshakeSucceeded(final long nanos, final boolean resumed) {
+		if (resumed) {
+			this.resumedHandshakes.incrementAndGet();
+			this.resumedHandshakeNanos.addAndGet(nanos);
+		} else {
+			this.fullHandshakes.incrementAndGet();
+			this.fullHandshakeNanos.addAndGet(nanos);
+		}
+		long max;
+		while (nanos > (max = this.maxHandshakeNanos.get()) && !this.maxHandshakeNanos.compareAndSet(max, nanos)) {
+			// Retry
+		}
+	}
+
+	void handshakeFailed() {
+		this.failedHandshakes.incrementAndGet();
+	}
+
+	public long getFullHandshakeCount() {
+		return this.fullHandshakes.get();
+	}
+
+	// Handshakes that resumed a cached session instead of exchanging certificates again
+	public long getResumedHandshakeCount() {
+		return this.resumedHandshakes.get();
+	}
+
+	public long getFailedHandshakeCount() {
+		return this.failedHandshakes.get();
+	}
+
+	public double getMeanFullHandshakeMillis() {
+		return TlsHandshakeMetrics.meanMillis(this.fullHandshakeNanos.get(), this.fullHandshakes.get());
+	}
+
+	public double getMeanResumedHandshakeMillis() {
+		return TlsHandshakeMetrics.meanMillis(this.resumedHandshakeNanos.get(), this.resumedHandshakes.get());
+	}
+
+	public double getMaxHandshakeMillis() {
+		return this.maxHandshakeNanos.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static double meanMillis(final long nanos, final long count) {
+		return count == 0 ? 0 : nanos / (double)count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TlsHandshakeMetrics: %d full handshakes, mean %.2f ms, %d resumed, mean %.2f ms, %d failed, max %.2f ms",
+				this.getFullHandshakeCount(), this.getMeanFullHandshakeMillis(), this.getResumedHandshakeCount(), this.getMeanResumedHandshakeMillis(),
+				this.getFailedHandshakeCount(), this.getMaxHandshakeMillis());
+	}
+}
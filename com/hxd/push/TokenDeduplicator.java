@@ -0,0 +1,187 @@
+package com.hxd.push;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// An exact set of the tokens seen in one broadcast, to skip the repeated ones of a token export.
+// Tokens are kept off heap in open addressing tables of 32 byte slots, 100M tokens take about 4.3GB.
+// The set is split into SEGMENTS tables picked by hash, each with its own lock, so partitioned producers rarely contend,
+// and a segment doubles when it passes its load factor. Call release() when the broadcast is done.
+// ThreadSafe
+public class TokenDeduplicator {
+
+	public static final long DEFAULT_EXPECTED_TOKENS = 10 * 1000 * 1000;
+
+	private static final int SEGMENT_BITS = 6;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	private static final int MAX_SEGMENT_SLOTS = 1 << 25; // 1GB direct buffer
+	private static final int MIN_SEGMENT_SLOTS = 1 << 10;
+	private static final int MAX_LOAD_PERCENT = 75;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final AtomicLong duplicates = new AtomicLong(0);
+
+	public TokenDeduplicator() {
+		this(DEFAULT_EXPECTED_TOKENS);
+	}
+
+	public TokenDeduplicator(final long expectedTokens) {
+		final long segmentTokens = expectedTokens / SEGMENTS * 100 / MAX_LOAD_PERCENT + 1;
+		int slots = MIN_SEGMENT_SLOTS;
+		while (slots < segmentTokens && slots < MAX_SEGMENT_SLOTS) {
+			slots <<= 1;
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment(slots);
+		}
+	}
+
+	// Return true the first time a token is added, false for a duplicate.
+	public boolean add(final byte[] token) {
+		final long first = TokenDeduplicator.getLong(token, 0);
+		final long second = TokenDeduplicator.getLong(token, 8);
+		final long third = TokenDeduplicator.getLong(token, 16);
+		final long fourth = TokenDeduplicator.getLong(token, 24);
+		final long hash = TokenDeduplicator.mix(first ^ Long.rotateLeft(second, 17) ^ Long.rotateLeft(third, 37) ^ Long.rotateLeft(fourth, 53));
+		final Segment segment = this.segments[(int)(hash >>> (64 - SEGMENT_BITS))];
+		final boolean added;
+		synchronized (segment) {
+			added = segment.add(hash, first, second, third, fourth);
+		}
+		if (!added) {
+			this.duplicates.incrementAndGet();
+		}
+		return added;
+	}
+
+	public long getUniqueTokenCount() {
+		long tokens = 0;
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				tokens += segment.size;
+			}
+		}
+		return tokens;
+	}
+
+	public long getDuplicateCount() {
+		return this.duplicates.get();
+	}
+
+	public void release() {
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				segment.release();
+			}
+		}
+	}
+
+	// Big endian, as the slot buffers read it
+	private static long getLong(final byte[] bytes, final int index) {
+		long value = 0;
+		for (int i = index; i < index + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	// Finalizer of MurmurHash3
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// NOT Thread Safe: guarded by its own monitor. An all zero slot is empty, the all zero token is tracked apart.
+	private static final class Segment {
+
+		private ByteBuffer slots;
+		private int mask;
+		private int threshold;
+		private int size = 0;
+		private boolean containsZeroToken = false;
+
+		public Segment(final int slotCount) {
+			this.allocate(slotCount);
+		}
+
+		private void allocate(final int slotCount) {
+			this.slots = ByteBuffer.allocateDirect(slotCount * DeviceTokenCodec.TOKEN_LENGTH);
+			this.mask = slotCount - 1;
+			this.threshold = (int)((long)slotCount * MAX_LOAD_PERCENT / 100);
+		}
+
+		public boolean add(final long hash, final long first, final long second, final long third, final long fourth) {
+			if ((first | second | third | fourth) == 0) {
+				if (this.containsZeroToken) {
+					return false;
+				}
+				this.containsZeroToken = true;
+				this.size++;
+				return true;
+			}
+			if (!this.insert(this.slots, this.mask, hash, first, second, third, fourth)) {
+				return false;
+			}
+			if (++this.size > this.threshold) {
+				this.grow();
+			}
+			return true;
+		}
+
+		private boolean insert(final ByteBuffer slots, final int mask, final long hash, final long first, final long second, final long third, final long fourth) {
+			int slot = (int)hash & mask;
+			while (true) {
+				final int offset = slot * DeviceTokenCodec.TOKEN_LENGTH;
+				final long slotFirst = slots.getLong(offset);
+				final long slotSecond = slots.getLong(offset + 8);
+				final long slotThird = slots.getLong(offset + 16);
+				final long slotFourth = slots.getLong(offset + 24);
+				if ((slotFirst | slotSecond | slotThird | slotFourth) == 0) {
+					slots.putLong(offset, first);
+					slots.putLong(offset + 8, second);
+					slots.putLong(offset + 16, third);
+					slots.putLong(offset + 24, fourth);
+					return true;
+				}
+				if (slotFirst == first && slotSecond == second && slotThird == third && slotFourth == fourth) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private void grow() {
+			final int slotCount = this.mask + 1;
+			if (slotCount >= MAX_SEGMENT_SLOTS) {
+				if (this.size >= slotCount - 1) {
+					throw new IllegalStateException("Token deduplicator segment is full: " + slotCount + " slots");
+				}
+				return; // Past the load factor but still probing, only slower
+			}
+			final ByteBuffer oldSlots = this.slots;
+			this.allocate(slotCount << 1);
+			for (int offset = 0; offset < oldSlots.capacity(); offset += DeviceTokenCodec.TOKEN_LENGTH) {
+				final long first = oldSlots.getLong(offset);
+				final long second = oldSlots.getLong(offset + 8);
+				final long third = oldSlots.getLong(offset + 16);
+				final long fourth = oldSlots.getLong(offset + 24);
+				if ((first | second | third | fourth) != 0) {
+					final long hash = TokenDeduplicator.mix(first ^ Long.rotateLeft(second, 17) ^ Long.rotateLeft(third, 37) ^ Long.rotateLeft(fourth, 53));
+					this.insert(this.slots, this.mask, hash, first, second, third, fourth);
+				}
+			}
+			DirectBufferUtil.free(oldSlots);
+		}
+
+		public void release() {
+			if (this.slots != null) {
+				DirectBufferUtil.free(this.slots);
+				this.slots = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.hxd.push;
+
+import java.io.Closeable;
+
+// ThreadSafe: records may be written from any thread, event loops included, so a sink must not block on I/O.
+// Each record is one line, e.g. a hex token or a token with its expiration date.
+// Writers that cannot afford to lose records check canWrite() and stop producing them until whenWritable() runs.
+public interface TokenSink extends Closeable {
+	// Return false if the record was dropped rather than accepted.
+	boolean write(String record);
+	// Whether that many records would all be accepted now
+	boolean canWrite(int records);
+	// Run the listener once canWrite(records) holds, or the sink is empty if it can never hold that many.
+	// Runs on a thread of the sink, or at once on the caller if it holds already.
+	void whenWritable(int records, Runnable listener);
+}
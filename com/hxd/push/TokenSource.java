@@ -0,0 +1,11 @@
+package com.hxd.push;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// NOT Thread Safe: a source is consumed by a single producer.
+// Illegal tokens are skipped and logged by the source itself.
+public interface TokenSource extends Closeable {
+	// Read the next legal token into the given array, return false when the source is exhausted.
+	boolean next(byte[] token) throws IOException;
+}
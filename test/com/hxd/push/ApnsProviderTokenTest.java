@@ -0,0 +1,88 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ApnsProviderTokenTest {
+
+	private static final String BEARER = "bearer ";
+
+	private static KeyPair keyPair;
+
+	@BeforeClass
+	public static void generateKeyPair() throws GeneralSecurityException {
+		keyPair = ApnsProviderTokenTest.newKeyPair();
+	}
+
+	// r and s of random signatures, some shorter than 32 bytes, some with the high bit set
+	@Test
+	public void signaturesSurviveTheRoundTripThroughJose() throws GeneralSecurityException {
+		final Signature signer = Signature.getInstance("SHA256withECDSA");
+		final Signature verifier = Signature.getInstance("SHA256withECDSA");
+		final byte[] message = "signing input".getBytes();
+		for (int i = 0; i < 200; i++) {
+			signer.initSign(keyPair.getPrivate());
+			signer.update(message);
+			final byte[] der = signer.sign();
+
+			final byte[] jose = ApnsProviderToken.derToJose(der);
+			assertEquals(64, jose.length);
+			assertArrayEquals(der, ApnsProviderToken.joseToDer(jose));
+
+			verifier.initVerify(keyPair.getPublic());
+			verifier.update(message);
+			assertTrue(verifier.verify(ApnsProviderToken.joseToDer(jose)));
+		}
+	}
+
+	@Test
+	public void joseComponentsWithLeadingZerosAndHighBits() {
+		final byte[] jose = new byte[64];
+		Arrays.fill(jose, 0, 32, (byte)0x80); // r needs a sign byte
+		jose[34] = 0x01; // s has two leading zero bytes
+		jose[63] = 0x7F;
+		final byte[] der = ApnsProviderToken.joseToDer(jose);
+		assertEquals(0x30, der[0]);
+		assertEquals(der.length - 2, der[1]);
+		assertEquals(33, der[3]); // r with its sign byte
+		assertEquals(30, der[2 + 2 + 33 + 1]); // s without its leading zeros
+		assertArrayEquals(jose, ApnsProviderToken.derToJose(der));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void joseSignaturesAre64BytesLong() {
+		ApnsProviderToken.joseToDer(new byte[63]);
+	}
+
+	@Test
+	public void tokensVerifyWithTheirKeyOnly() throws GeneralSecurityException {
+		final ApnsProviderToken providerToken = new ApnsProviderToken(keyPair.getPrivate(), "TEAM123456", "KEY1234567");
+		final String authorization = providerToken.refresh().toString();
+		assertTrue(authorization.startsWith(BEARER));
+		final String token = authorization.substring(BEARER.length());
+
+		final long issuedAt = ApnsProviderToken.verify(token, keyPair.getPublic());
+		assertTrue(Math.abs(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - issuedAt) <= 1);
+		assertEquals(-1, ApnsProviderToken.verify(token, ApnsProviderTokenTest.newKeyPair().getPublic()));
+		assertEquals(-1, ApnsProviderToken.verify(token.substring(0, token.length() - 4) + "AAAA", keyPair.getPublic()));
+		assertEquals(-1, ApnsProviderToken.verify("not a token", keyPair.getPublic()));
+	}
+
+	private static KeyPair newKeyPair() throws GeneralSecurityException {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(new ECGenParameterSpec("secp256r1"));
+		return generator.generateKeyPair();
+	}
+}
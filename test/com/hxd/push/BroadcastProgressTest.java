@@ -0,0 +1,86 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BroadcastProgressTest {
+
+	@Test
+	public void outOfOrderAcknowledgesWaitForTheLowWatermark() {
+		final BroadcastProgress progress = new BroadcastProgress(0, 5);
+		final long first = progress.register(10);
+		final long second = progress.register(20);
+		final long third = progress.register(30);
+
+		progress.acknowledge(third);
+		progress.acknowledge(second);
+		assertEquals(0, progress.getLowWatermark());
+		assertEquals(5, progress.getResumePosition());
+
+		progress.acknowledge(first);
+		assertEquals(3, progress.getLowWatermark());
+		assertEquals(30, progress.getResumePosition());
+		assertEquals(0, progress.getOutstandingCount());
+	}
+
+	@Test
+	public void aGapHoldsTheResumePosition() {
+		final BroadcastProgress progress = new BroadcastProgress(0, 0);
+		final long first = progress.register(10);
+		final long reclaimed = progress.register(20);
+		final long third = progress.register(30);
+
+		progress.acknowledge(first);
+		progress.acknowledge(third);
+		assertEquals(10, progress.getResumePosition());
+		assertEquals(2, progress.getOutstandingCount());
+
+		progress.acknowledge(reclaimed); // Sent again and settled under the same sequence number
+		assertEquals(30, progress.getResumePosition());
+	}
+
+	@Test
+	public void repeatedAndUnknownAcknowledgesAreIgnored() {
+		final BroadcastProgress progress = new BroadcastProgress(0, 0);
+		final long first = progress.register(10);
+		final long second = progress.register(20);
+		progress.acknowledge(first);
+		progress.acknowledge(first);
+		progress.acknowledge(-1);
+		progress.acknowledge(second + 1);
+		assertEquals(1, progress.getLowWatermark());
+		assertEquals(10, progress.getResumePosition());
+	}
+
+	@Test
+	public void theWindowGrowsPastItsInitialSize() {
+		final int tokens = (1 << 16) * 2 + 3;
+		final BroadcastProgress progress = new BroadcastProgress(0, 0);
+		final long[] sequences = new long[tokens];
+		for (int i = 0; i < tokens; i++) {
+			sequences[i] = progress.register((i + 1) * 10L);
+		}
+		for (int i = tokens - 1; i > 0; i--) {
+			progress.acknowledge(sequences[i]);
+		}
+		assertEquals(0, progress.getResumePosition());
+		assertEquals(tokens, progress.getOutstandingCount());
+
+		progress.acknowledge(sequences[0]);
+		assertEquals(tokens * 10L, progress.getResumePosition());
+		assertEquals(0, progress.getOutstandingCount());
+	}
+
+	@Test
+	public void completeOnceTheSourceIsExhaustedAndEverythingSettled() {
+		final BroadcastProgress progress = new BroadcastProgress(0, 0);
+		final long sequence = progress.register(10);
+		progress.sourceExhausted();
+		assertFalse(progress.isComplete());
+		progress.acknowledge(sequence);
+		assertTrue(progress.isComplete());
+	}
+}
@@ -0,0 +1,39 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DeviceTokenCodecTest {
+
+	private final byte[] token = InvalidTokenFilterTest.randomTokens(1, 4)[0];
+	private final String hex = DeviceTokenCodec.encode(this.token);
+
+	@Test
+	public void separatorsAreSkipped() {
+		final StringBuilder spaced = new StringBuilder("<");
+		for (int i = 0; i < this.hex.length(); i += 8) {
+			spaced.append(this.hex, i, i + 8).append(' ');
+		}
+		spaced.append('>');
+		assertArrayEquals(this.token, DeviceTokenCodec.decode(spaced));
+		assertArrayEquals(this.token, DeviceTokenCodec.decode(this.hex.toUpperCase()));
+	}
+
+	@Test
+	public void otherCharactersAreIllegalUnlessLenient() {
+		final String dashed = this.hex.substring(0, 8) + "-" + this.hex.substring(8) + "é";
+		assertNull(DeviceTokenCodec.decode(dashed));
+		assertArrayEquals(this.token, DeviceTokenCodec.decodeLenient(dashed));
+		assertArrayEquals(this.token, DeviceTokenDataItem.tokenStringToBytes(dashed));
+	}
+
+	@Test
+	public void wrongDigitCountsAreIllegal() {
+		assertNull(DeviceTokenCodec.decode(this.hex.substring(1)));
+		assertNull(DeviceTokenCodec.decode(this.hex + "0"));
+		assertNull(DeviceTokenCodec.decodeLenient("xx" + this.hex.substring(2)));
+		assertNull(DeviceTokenCodec.decodeLenient(this.hex + "-0"));
+	}
+}
@@ -0,0 +1,98 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class GatewayCircuitBreakerTest {
+
+	@Test
+	public void opensAfterTheFailureThreshold() {
+		final GatewayCircuitBreaker circuitBreaker = new GatewayCircuitBreaker();
+		for (int i = 1; i < GatewayCircuitBreaker.FAILURE_THRESHOLD; i++) {
+			circuitBreaker.connectFailed();
+			assertEquals(GatewayCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+			assertTrue(circuitBreaker.reconnectDelayMillis() > 0);
+		}
+		circuitBreaker.connectFailed();
+		assertEquals(GatewayCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertEquals(1, circuitBreaker.getOpenCount());
+
+		// Started before it opened, the backoff is not lengthened
+		circuitBreaker.connectFailed();
+		assertEquals(GatewayCircuitBreaker.FAILURE_THRESHOLD, circuitBreaker.getConsecutiveFailureCount());
+		assertEquals(GatewayCircuitBreaker.FAILURE_THRESHOLD + 1, circuitBreaker.getFailureCount());
+	}
+
+	@Test(timeout = 10000)
+	public void aLiveHandshakeClosesTheBreakerAndReleasesTheProducers() throws InterruptedException {
+		final GatewayCircuitBreaker circuitBreaker = new GatewayCircuitBreaker();
+		circuitBreaker.trip();
+		assertEquals(GatewayCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		final Thread producer = GatewayCircuitBreakerTest.awaitClosed(circuitBreaker);
+		producer.join(100);
+		assertTrue(producer.isAlive());
+
+		// A live connection started before the breaker opened completes its handshake
+		circuitBreaker.connectSucceeded();
+		producer.join();
+		assertEquals(GatewayCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		assertEquals(0, circuitBreaker.getConsecutiveFailureCount());
+		assertEquals(0, circuitBreaker.reconnectDelayMillis());
+	}
+
+	@Test(timeout = 10000)
+	public void halfOpenLetsOneProbeThrough() throws InterruptedException {
+		final GatewayCircuitBreaker circuitBreaker = new GatewayCircuitBreaker();
+		for (int i = 0; i < GatewayCircuitBreaker.FAILURE_THRESHOLD; i++) {
+			circuitBreaker.connectFailed();
+		}
+		long delay;
+		while ((delay = circuitBreaker.reconnectDelayMillis()) > 0) {
+			assertEquals(GatewayCircuitBreaker.State.OPEN, circuitBreaker.getState());
+			TimeUnit.MILLISECONDS.sleep(delay);
+		}
+		assertEquals(GatewayCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+		assertTrue(circuitBreaker.reconnectDelayMillis() > 0);
+
+		// The probe failing opens the breaker again
+		circuitBreaker.connectFailed();
+		assertEquals(GatewayCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertEquals(2, circuitBreaker.getOpenCount());
+		while ((delay = circuitBreaker.reconnectDelayMillis()) > 0) {
+			TimeUnit.MILLISECONDS.sleep(delay);
+		}
+		circuitBreaker.connectSucceeded();
+		assertEquals(GatewayCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test(timeout = 10000)
+	public void shutdownReleasesTheProducers() throws InterruptedException {
+		final GatewayCircuitBreaker circuitBreaker = new GatewayCircuitBreaker();
+		circuitBreaker.trip();
+		final Thread producer = GatewayCircuitBreakerTest.awaitClosed(circuitBreaker);
+		circuitBreaker.shutdown();
+		producer.join();
+		assertFalse(circuitBreaker.getState() == GatewayCircuitBreaker.State.CLOSED);
+	}
+
+	// A producer held until the breaker closes
+	static Thread awaitClosed(final GatewayCircuitBreaker circuitBreaker) {
+		final Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					circuitBreaker.awaitClosed();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		producer.start();
+		return producer;
+	}
+}
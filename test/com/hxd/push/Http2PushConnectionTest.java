@@ -0,0 +1,152 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ChannelDuplexHandler;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class Http2PushConnectionTest {
+
+	// Both the stream limit and the capacity of the reclaim ring
+	private static final int STREAMS = 8;
+
+	private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+	private final EventLoopGroup serverGroup = new NioEventLoopGroup(1);
+
+	@After
+	public void shutdown() {
+		this.eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+		this.serverGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(timeout = 20000)
+	public void delayedRetriesHoldTheirStreamsUntilTheConnectionEnds() throws Exception {
+		final AtomicInteger requests = new AtomicInteger(0);
+		final Channel server = this.throttlingGateway(requests);
+		final RingBufferNotificationQueue queue = new RingBufferNotificationQueue(STREAMS);
+		final CountDownLatch terminated = new CountDownLatch(1);
+		final PushController controller = new StandbyChannelPoolTest.GatewayController(this.eventLoopGroup, ((InetSocketAddress)server.localAddress()).getPort()) {
+			@Override
+			public ApnsClientSslContext getSslContext() {
+				return new PlaintextSslContext();
+			}
+
+			@Override
+			public void pushConnectionDidConnect(final PushConnection connection, final Channel channel) {
+			}
+
+			@Override
+			public void pushRunnableWillTerminate(final PushConnection connection) {
+				terminated.countDown();
+			}
+		};
+
+		// Retried before, the next retry is seconds away
+		final List<SendablePushNotification> notifications = new ArrayList<SendablePushNotification>();
+		for (int i = 0; i < 2 * STREAMS; i++) {
+			final SendablePushNotification notification = new SendablePushNotification(InvalidTokenFilterTest.randomTokens(1, i)[0], "{}", null);
+			for (int retry = 0; retry < 6; retry++) {
+				notification.retried();
+			}
+			notifications.add(notification);
+		}
+		for (SendablePushNotification notification : notifications.subList(0, STREAMS)) {
+			queue.put(notification);
+		}
+		final Http2PushConnection connection = new Http2PushConnection(queue, controller, null, STREAMS, null);
+		connection.start();
+		while (queue.size() > 0 || requests.get() < STREAMS) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		for (SendablePushNotification notification : notifications.subList(STREAMS, 2 * STREAMS)) {
+			queue.put(notification);
+		}
+
+		// Every stream is held by a delayed retry, the connection takes no more
+		TimeUnit.MILLISECONDS.sleep(500);
+		assertEquals(STREAMS, requests.get());
+		assertEquals(STREAMS, queue.size());
+
+		// Ending, the delayed retries fit into the reclaim ring
+		connection.terminate();
+		assertTrue(terminated.await(10, TimeUnit.SECONDS));
+		assertEquals(2 * STREAMS, queue.size());
+		final List<SendablePushNotification> drained = new ArrayList<SendablePushNotification>();
+		queue.drainTo(drained, 2 * STREAMS);
+		final Set<SendablePushNotification> unique = new HashSet<SendablePushNotification>(drained);
+		assertEquals(2 * STREAMS, unique.size());
+		assertTrue(unique.containsAll(notifications));
+		assertTrue(queue.remainNotifications().isEmpty());
+		server.close().sync();
+	}
+
+	// Answers every request 429, over cleartext HTTP/2 with prior knowledge
+	private Channel throttlingGateway(final AtomicInteger requests) throws InterruptedException {
+		return new ServerBootstrap()
+				.group(this.serverGroup)
+				.channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(final SocketChannel channel) throws Exception {
+						channel.pipeline().addLast(Http2FrameCodecBuilder.forServer()
+								.initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(STREAMS))
+								.build());
+						channel.pipeline().addLast(new Http2ChannelDuplexHandler() {
+							@Override
+							public void channelRead(final ChannelHandlerContext context, final Object message) throws Exception {
+								try {
+									if (message instanceof Http2DataFrame && ((Http2DataFrame)message).isEndStream()) {
+										requests.incrementAndGet();
+										context.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status(HttpResponseStatus.TOO_MANY_REQUESTS.codeAsText()), true)
+												.stream(((Http2DataFrame)message).stream()));
+									}
+								} finally {
+									ReferenceCountUtil.release(message);
+								}
+							}
+						});
+					}
+				})
+				.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+	}
+
+	// Leaves TLS out of the pipeline, the test gateway speaks cleartext
+	private static class PlaintextSslContext extends ApnsClientSslContext {
+
+		PlaintextSslContext() {
+			super(null, null, null, true);
+		}
+
+		@Override
+		public void configurePipeline(final ChannelPipeline pipeline, final String host, final int port) {
+		}
+	}
+}
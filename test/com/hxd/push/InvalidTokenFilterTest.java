@@ -0,0 +1,93 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InvalidTokenFilterTest {
+
+	private static final int EXPECTED_TOKENS = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final InvalidTokenFilter filter = new InvalidTokenFilter(EXPECTED_TOKENS, 0.001);
+
+	@After
+	public void release() {
+		this.filter.release();
+	}
+
+	@Test
+	public void addedTokensAreAlwaysReported() {
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(EXPECTED_TOKENS, 1);
+		for (byte[] token : tokens) {
+			this.filter.add(token);
+		}
+		for (byte[] token : tokens) {
+			assertTrue(this.filter.mightContain(token));
+		}
+		assertEquals(EXPECTED_TOKENS, this.filter.getTokenCount());
+		assertEquals(EXPECTED_TOKENS, this.filter.getHitCount());
+	}
+
+	@Test
+	public void otherTokensAreReportedNearTheFalsePositiveRate() {
+		for (byte[] token : InvalidTokenFilterTest.randomTokens(EXPECTED_TOKENS, 1)) {
+			this.filter.add(token);
+		}
+		int falsePositives = 0;
+		for (byte[] token : InvalidTokenFilterTest.randomTokens(100000, 2)) {
+			if (this.filter.mightContain(token)) {
+				falsePositives++;
+			}
+		}
+		// 100 expected at 0.001
+		assertTrue("false positives: " + falsePositives, falsePositives < 200);
+		assertEquals(100000, this.filter.getCheckCount());
+		assertTrue(this.filter.getEstimatedFalsePositiveRate() < 0.002);
+	}
+
+	@Test
+	public void anEmptyFilterReportsNothing() {
+		assertFalse(this.filter.mightContain(new byte[DeviceTokenCodec.TOKEN_LENGTH]));
+		assertEquals(0, this.filter.getHitCount());
+	}
+
+	@Test
+	public void loadsTokenAndFeedbackFilesSkippingIllegalLines() throws IOException {
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(3, 3);
+		final File file = this.folder.newFile("invalid-tokens.txt");
+		final PrintWriter writer = new PrintWriter(file);
+		writer.println(DeviceTokenCodec.encode(tokens[0]));
+		writer.println(DeviceTokenCodec.encode(tokens[1]) + "-2015-06-01 10:00:00");
+		writer.println("not a token");
+		writer.println("");
+		writer.println(DeviceTokenCodec.encode(tokens[2]).substring(2));
+		writer.close();
+
+		assertEquals(2, this.filter.load(file));
+		assertTrue(this.filter.mightContain(tokens[0]));
+		assertTrue(this.filter.mightContain(tokens[1]));
+		assertFalse(this.filter.mightContain(tokens[2]));
+	}
+
+	static byte[][] randomTokens(final int count, final long seed) {
+		final Random random = new Random(seed);
+		final byte[][] tokens = new byte[count][DeviceTokenCodec.TOKEN_LENGTH];
+		for (byte[] token : tokens) {
+			random.nextBytes(token);
+		}
+		return tokens;
+	}
+}
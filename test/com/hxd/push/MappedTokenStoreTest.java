@@ -0,0 +1,192 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedTokenStoreTest {
+
+	// The layout of the header, see MappedTokenStore
+	private static final int LIVE_COUNT_OFFSET = 16;
+	private static final int EXPIRED_COUNT_OFFSET = 24;
+	private static final int CLEAN_OFFSET = 32;
+	// 64 slots, full at 48 tokens
+	private static final long CAPACITY = 64;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recountsTheTokensAfterAnUncleanClose() throws IOException {
+		final File file = this.folder.newFile("tokens.store");
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(12, 1);
+		final MappedTokenStore store = new MappedTokenStore(file, CAPACITY);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(store.add(tokens[i]));
+		}
+		assertTrue(store.markExpired(tokens[0]));
+		assertTrue(store.markExpired(tokens[10]));
+		store.close();
+
+		// The process died after the slots were written but before the counts were
+		this.overwriteLong(file, LIVE_COUNT_OFFSET, 1000);
+		this.overwriteLong(file, EXPIRED_COUNT_OFFSET, 1000);
+		this.overwriteByte(file, CLEAN_OFFSET, 0);
+		final MappedTokenStore recovered = new MappedTokenStore(file, CAPACITY);
+		assertEquals(CAPACITY, recovered.getSlotCount());
+		assertEquals(9, recovered.getLiveTokenCount());
+		assertEquals(2, recovered.getExpiredTokenCount());
+		assertTrue(recovered.isExpired(tokens[0]));
+		assertTrue(recovered.isLive(tokens[9]));
+		assertFalse(recovered.isLive(tokens[11]));
+		recovered.close();
+
+		// Closed cleanly, the counts are taken from the header
+		final MappedTokenStore reopened = new MappedTokenStore(file, CAPACITY);
+		assertEquals(9, reopened.getLiveTokenCount());
+		assertEquals(2, reopened.getExpiredTokenCount());
+		reopened.close();
+	}
+
+	@Test
+	public void anOpenStoreIsRecountedWhenOpenedAgain() throws IOException {
+		final File file = this.folder.newFile("tokens.store");
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(5, 2);
+		final MappedTokenStore store = new MappedTokenStore(file, CAPACITY);
+		for (byte[] token : tokens) {
+			store.add(token);
+		}
+		store.force();
+		store.markExpired(tokens[0]);
+
+		// Never closed: the header still says 5 live tokens and 0 expired ones, and is not marked clean
+		final MappedTokenStore recovered = new MappedTokenStore(file, CAPACITY);
+		assertEquals(4, recovered.getLiveTokenCount());
+		assertEquals(1, recovered.getExpiredTokenCount());
+		recovered.close();
+		store.close();
+	}
+
+	@Test
+	public void anExpiredTokenIsNotAddedBackUntilCompacted() throws IOException {
+		final MappedTokenStore store = new MappedTokenStore(this.folder.newFile("tokens.store"), CAPACITY);
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(2, 3);
+		assertTrue(store.add(tokens[0]));
+		assertTrue(store.markExpired(tokens[0]));
+		assertFalse(store.markExpired(tokens[0]));
+		assertFalse(store.add(tokens[0]));
+		assertTrue(store.isExpired(tokens[0]));
+
+		// Expired before it was ever added
+		assertTrue(store.markExpired(tokens[1]));
+		assertFalse(store.add(tokens[1]));
+		assertEquals(0, store.getLiveTokenCount());
+		assertEquals(2, store.getExpiredTokenCount());
+
+		assertEquals(2, store.compact());
+		assertFalse(store.isExpired(tokens[0]));
+		assertTrue(store.add(tokens[0]));
+		assertTrue(store.isLive(tokens[0]));
+		assertEquals(1, store.getLiveTokenCount());
+		assertEquals(0, store.getExpiredTokenCount());
+		store.close();
+	}
+
+	@Test
+	public void compactKeepsTheLiveTokens() throws IOException {
+		final File file = this.folder.newFile("tokens.store");
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(45, 4);
+		final MappedTokenStore store = new MappedTokenStore(file, CAPACITY);
+		for (int i = 0; i < 30; i++) {
+			store.add(tokens[i]);
+		}
+		// Tombstones among the live tokens and in their probe sequences
+		for (int i = 0; i < 30; i += 2) {
+			store.markExpired(tokens[i]);
+		}
+		for (int i = 30; i < 45; i++) {
+			store.markExpired(tokens[i]);
+		}
+		assertEquals(30, store.compact());
+		assertEquals(15, store.getLiveTokenCount());
+		assertEquals(0, store.getExpiredTokenCount());
+		store.close();
+
+		final MappedTokenStore reopened = new MappedTokenStore(file, CAPACITY);
+		for (int i = 0; i < 45; i++) {
+			assertEquals(i < 30 && i % 2 == 1, reopened.isLive(tokens[i]));
+			assertFalse(reopened.isExpired(tokens[i]));
+		}
+		assertEquals(15, this.liveTokens(reopened).size());
+		reopened.close();
+	}
+
+	@Test
+	public void aFullStoreDropsItsTombstonesUnlessTokensAreRead() throws IOException {
+		final MappedTokenStore store = new MappedTokenStore(this.folder.newFile("tokens.store"), CAPACITY);
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(50, 5);
+		for (int i = 0; i < 40; i++) {
+			store.add(tokens[i]);
+		}
+		for (int i = 40; i < 48; i++) {
+			store.markExpired(tokens[i]);
+		}
+
+		final ResumableTokenSource source = store.liveTokens();
+		try {
+			store.add(tokens[48]);
+			fail("Compacted while a token source was open");
+		} catch (IllegalStateException e) {
+			// Expected, the store is full and the source would miss moved tokens
+		}
+		source.close();
+
+		assertTrue(store.add(tokens[48]));
+		assertEquals(41, store.getLiveTokenCount());
+		assertEquals(0, store.getExpiredTokenCount());
+		assertEquals(41, this.liveTokens(store).size());
+		store.close();
+	}
+
+	private Set<String> liveTokens(final MappedTokenStore store) throws IOException {
+		final Set<String> tokens = new HashSet<String>();
+		final ResumableTokenSource source = store.liveTokens();
+		final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+		while (source.next(token)) {
+			assertTrue("Token read twice", tokens.add(DeviceTokenCodec.encode(token)));
+		}
+		source.close();
+		return tokens;
+	}
+
+	private void overwriteLong(final File file, final long offset, final long value) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(offset);
+			randomAccessFile.writeLong(value);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private void overwriteByte(final File file, final long offset, final int value) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(offset);
+			randomAccessFile.writeByte(value);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProgressJournalTest {
+
+	// The layout of the journal file, see ProgressJournal
+	private static final int HEADER_LENGTH = 64;
+	private static final int RECORD_LENGTH = 32;
+	private static final long SOURCE_SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recoversTheLastPositionOfEachPartition() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		final ProgressJournal journal = new ProgressJournal(file, 2, SOURCE_SIZE);
+		assertFalse(journal.isResumed());
+		final BroadcastProgress first = this.settled(journal, 0, 0, 100, 200);
+		final BroadcastProgress second = this.settled(journal, 1, 500, 600);
+		journal.checkpoint();
+		first.acknowledge(first.register(300));
+		journal.close();
+		assertEquals(600, second.getResumePosition());
+		assertTrue(file.exists());
+
+		final ProgressJournal recovered = new ProgressJournal(file, 2, SOURCE_SIZE);
+		assertTrue(recovered.isResumed());
+		assertEquals(300, recovered.getResumePosition(0, 0));
+		assertEquals(600, recovered.getResumePosition(1, 500));
+		recovered.close();
+	}
+
+	@Test
+	public void ignoresATornLastRecord() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		final ProgressJournal journal = new ProgressJournal(file, 1, SOURCE_SIZE);
+		final BroadcastProgress progress = this.settled(journal, 0, 0, 100);
+		journal.checkpoint();
+		progress.acknowledge(progress.register(200));
+		journal.close();
+
+		// The process died while writing the second record, its checksum did not make it
+		this.overwriteLong(file, HEADER_LENGTH + RECORD_LENGTH + 24, 0);
+		final ProgressJournal recovered = new ProgressJournal(file, 1, SOURCE_SIZE);
+		assertEquals(100, recovered.getResumePosition(0, 0));
+		recovered.close();
+	}
+
+	@Test
+	public void ignoresEverythingAfterACorruptRecord() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		final ProgressJournal journal = new ProgressJournal(file, 2, SOURCE_SIZE);
+		final BroadcastProgress first = this.settled(journal, 0, 0, 100);
+		journal.checkpoint();
+		first.acknowledge(first.register(200));
+		journal.checkpoint();
+		this.settled(journal, 1, 500, 600);
+		journal.close();
+
+		// The position of the second record no longer matches its checksum, the valid third record is not trusted either
+		this.overwriteLong(file, HEADER_LENGTH + RECORD_LENGTH + 8, 900);
+		final ProgressJournal recovered = new ProgressJournal(file, 2, SOURCE_SIZE);
+		assertEquals(100, recovered.getResumePosition(0, 0));
+		assertEquals(500, recovered.getResumePosition(1, 500));
+		recovered.close();
+	}
+
+	@Test
+	public void startsOverForAnotherPartitionCount() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		final ProgressJournal journal = new ProgressJournal(file, 2, SOURCE_SIZE);
+		this.settled(journal, 0, 0, 100);
+		this.settled(journal, 1, 500, 600);
+		journal.close();
+
+		final ProgressJournal repartitioned = new ProgressJournal(file, 4, SOURCE_SIZE);
+		assertFalse(repartitioned.isResumed());
+		assertEquals(0, repartitioned.getResumePosition(0, 0));
+		repartitioned.close();
+	}
+
+	@Test
+	public void startsOverForAFileThatIsNoJournal() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		this.overwriteLong(file, 0, 0x1234567812345678L);
+		final ProgressJournal journal = new ProgressJournal(file, 1, SOURCE_SIZE);
+		assertFalse(journal.isResumed());
+		journal.close();
+	}
+
+	@Test
+	public void keepsTheLastPositionsWhenRewritingAFullJournal() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		final ProgressJournal journal = new ProgressJournal(file, 2, SOURCE_SIZE, 3);
+		final BroadcastProgress first = this.settled(journal, 0, 0, 10);
+		final BroadcastProgress second = this.settled(journal, 1, 500, 510);
+		for (int i = 2; i <= 20; i++) {
+			journal.checkpoint();
+			first.acknowledge(first.register(i * 10));
+			second.acknowledge(second.register(500 + i * 10));
+		}
+		journal.close();
+
+		final ProgressJournal recovered = new ProgressJournal(file, 2, SOURCE_SIZE, 3);
+		assertEquals(200, recovered.getResumePosition(0, 0));
+		assertEquals(700, recovered.getResumePosition(1, 500));
+		recovered.close();
+	}
+
+	// Full again right after a rewrite
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsACapacityOfOneRecordPerPartition() throws IOException {
+		new ProgressJournal(this.folder.newFile("progress.journal"), 2, SOURCE_SIZE, 2);
+	}
+
+	@Test
+	public void deletesTheJournalOfACompleteBroadcast() throws IOException {
+		final File file = this.folder.newFile("progress.journal");
+		final ProgressJournal journal = new ProgressJournal(file, 1, SOURCE_SIZE);
+		final BroadcastProgress progress = this.settled(journal, 0, 0, 100);
+		progress.sourceExhausted();
+		assertTrue(journal.isComplete());
+		journal.close();
+		assertFalse(file.exists());
+	}
+
+	// A tracked partition whose notifications ending at the given positions are all settled
+	private BroadcastProgress settled(final ProgressJournal journal, final int partition, final long startPosition, final long... positions) {
+		final BroadcastProgress progress = new BroadcastProgress(partition, journal.getResumePosition(partition, startPosition));
+		for (long position : positions) {
+			progress.acknowledge(progress.register(position));
+		}
+		journal.track(progress);
+		return progress;
+	}
+
+	private void overwriteLong(final File file, final long offset, final long value) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(offset);
+			randomAccessFile.writeLong(value);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PushRunnableTest {
+
+	private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+
+	@After
+	public void shutdown() {
+		this.eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(timeout = 20000)
+	public void aRefusedConnectStillTellsTheController() throws Exception {
+		final CountDownLatch terminated = new CountDownLatch(1);
+		final PushConnection[] terminatedConnection = new PushConnection[1];
+		final PushController controller = new StandbyChannelPoolTest.GatewayController(this.eventLoopGroup, StandbyChannelPoolTest.closedPort()) {
+			@Override
+			public Channel takeStandbyChannel(final String name, final ChannelHandler handler) {
+				return null;
+			}
+
+			@Override
+			public void pushRunnableWillTerminate(final PushConnection connection) {
+				terminatedConnection[0] = connection;
+				terminated.countDown();
+			}
+		};
+		final PushRunnable pushRunnable = new PushRunnable(new NotificationQueue(16), controller);
+
+		// Never got a channel, the controller is told all the same so it counts the failure and replaces it
+		final Thread thread = new Thread(pushRunnable);
+		thread.start();
+		assertTrue(terminated.await(10, TimeUnit.SECONDS));
+		assertSame(pushRunnable, terminatedConnection[0]);
+		thread.join();
+	}
+}
@@ -0,0 +1,147 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class RingBufferNotificationQueueTest {
+
+	private static final int PRODUCERS = 4;
+	private static final int CONSUMERS = 4;
+	private static final int NOTIFICATIONS_PER_PRODUCER = 50000;
+	private static final int BATCH_SIZE = 32;
+
+	@Test(timeout = 60000)
+	public void everyNotificationIsConsumedExactlyOnce() throws Exception {
+		// A small ring, so producers keep running into a full ring and consumers into an empty one
+		final RingBufferNotificationQueue queue = new RingBufferNotificationQueue(100);
+		final ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + CONSUMERS);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean producing = new AtomicBoolean(true);
+		try {
+			final List<Future<?>> producers = new ArrayList<Future<?>>();
+			for (int p = 0; p < PRODUCERS; p++) {
+				final int producer = p;
+				producers.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < NOTIFICATIONS_PER_PRODUCER; i++) {
+							queue.put(RingBufferNotificationQueueTest.notification(producer * NOTIFICATIONS_PER_PRODUCER + i));
+						}
+						return null;
+					}
+				}));
+			}
+			final List<Future<List<SendablePushNotification>>> consumers = new ArrayList<Future<List<SendablePushNotification>>>();
+			for (int c = 0; c < CONSUMERS; c++) {
+				consumers.add(executor.submit(new Callable<List<SendablePushNotification>>() {
+					@Override
+					public List<SendablePushNotification> call() throws Exception {
+						final List<SendablePushNotification> consumed = new ArrayList<SendablePushNotification>();
+						start.await();
+						while (true) {
+							// Read before draining: once the producers are done, an empty drain means an empty queue
+							final boolean more = producing.get();
+							if (queue.drainNotifications(consumed, BATCH_SIZE, 10, TimeUnit.MILLISECONDS) == 0 && !more) {
+								return consumed;
+							}
+						}
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<?> producer : producers) {
+				producer.get();
+			}
+			producing.set(false);
+
+			final boolean[] seen = new boolean[PRODUCERS * NOTIFICATIONS_PER_PRODUCER];
+			int consumedCount = 0;
+			for (Future<List<SendablePushNotification>> consumer : consumers) {
+				for (SendablePushNotification notification : consumer.get()) {
+					final int number = RingBufferNotificationQueueTest.number(notification);
+					assertFalse("Notification " + number + " consumed twice", seen[number]);
+					seen[number] = true;
+					consumedCount++;
+				}
+			}
+			assertEquals(seen.length, consumedCount);
+			assertEquals(0, queue.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void reclaimedNotificationsAreDrainedFirst() throws InterruptedException {
+		final RingBufferNotificationQueue queue = new RingBufferNotificationQueue(8);
+		final SendablePushNotification first = RingBufferNotificationQueueTest.notification(1);
+		final SendablePushNotification second = RingBufferNotificationQueueTest.notification(2);
+		final SendablePushNotification reclaimed = RingBufferNotificationQueueTest.notification(3);
+		final SendablePushNotification alsoReclaimed = RingBufferNotificationQueueTest.notification(4);
+		queue.put(first);
+		queue.put(second);
+		queue.reclaimFailedNotification(reclaimed);
+		queue.reclaimFailedNotifications(Arrays.asList(alsoReclaimed));
+		assertEquals(4, queue.size());
+
+		final List<SendablePushNotification> drained = new ArrayList<SendablePushNotification>();
+		assertEquals(3, queue.drainNotifications(drained, 3, 0, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList(reclaimed, alsoReclaimed, first), drained);
+
+		queue.reclaimFailedNotification(first);
+		assertSame(first, queue.pollNotification(0, TimeUnit.MILLISECONDS));
+		assertSame(second, queue.pollNotification(0, TimeUnit.MILLISECONDS));
+		assertNull(queue.pollNotification(1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void theRingsHoldTheCapacityRoundedUpToAPowerOfTwo() throws InterruptedException {
+		final RingBufferNotificationQueue queue = new RingBufferNotificationQueue(5);
+		assertEquals(5, queue.capacity());
+		for (int i = 0; i < 8; i++) {
+			queue.reclaimFailedNotification(RingBufferNotificationQueueTest.notification(i));
+		}
+		try {
+			queue.reclaimFailedNotification(RingBufferNotificationQueueTest.notification(8));
+			throw new AssertionError("The reclaim ring took a ninth notification");
+		} catch (IllegalStateException e) {
+			// Expected, the reclaim ring is full
+		}
+		assertEquals(8, queue.remainNotifications().size());
+		final List<SendablePushNotification> drained = new ArrayList<SendablePushNotification>();
+		assertEquals(8, queue.drainTo(drained, 10));
+		for (int i = 0; i < 8; i++) {
+			assertEquals(i, RingBufferNotificationQueueTest.number(drained.get(i)));
+		}
+		assertTrue(queue.remainNotifications().isEmpty());
+	}
+
+	// The number goes into the first bytes of the token
+	private static SendablePushNotification notification(final int number) {
+		final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+		ByteBuffer.wrap(token).putInt(number);
+		return new SendablePushNotification(token, "{}", null);
+	}
+
+	private static int number(final SendablePushNotification notification) {
+		return ByteBuffer.wrap(notification.getTokenBytes()).getInt();
+	}
+}
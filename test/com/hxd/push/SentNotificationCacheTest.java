@@ -0,0 +1,116 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SentNotificationCacheTest {
+
+	@Test
+	public void identifiersWrapAroundTheRing() {
+		// Rounded up to 8 slots
+		final SentNotificationCache cache = new SentNotificationCache(5);
+		final List<SendablePushNotification> sent = this.send(cache, 20);
+		for (int identifier = 1; identifier <= 12; identifier++) {
+			assertNull(cache.getAndRemoveNotificationWithIdentifier(identifier));
+		}
+		for (int identifier = 13; identifier <= 20; identifier++) {
+			assertSame(sent.get(identifier - 1), cache.getAndRemoveNotificationWithIdentifier(identifier));
+			assertNull(cache.getAndRemoveNotificationWithIdentifier(identifier));
+		}
+	}
+
+	@Test
+	public void evictedNotificationsAreAcknowledged() {
+		final SentNotificationCache cache = new SentNotificationCache(4);
+		final BroadcastProgress progress = new BroadcastProgress(0, 0);
+		final List<SendablePushNotification> sent = new ArrayList<SendablePushNotification>();
+		for (int i = 1; i <= 6; i++) {
+			final SendablePushNotification notification = SentNotificationCacheTest.notification();
+			notification.trackProgress(progress, progress.register(i * 100));
+			assertEquals(i, cache.addNotification(notification));
+			assertEquals(i, notification.getIdentifier());
+			sent.add(notification);
+		}
+		// 1 and 2 were overwritten by 5 and 6
+		assertEquals(200, progress.getResumePosition());
+
+		// What is left when the connection is done counts as delivered too
+		final List<SendablePushNotification> remaining = cache.removeAllNotifications();
+		assertEquals(4, remaining.size());
+		for (SendablePushNotification notification : remaining) {
+			notification.acknowledge();
+		}
+		assertEquals(600, progress.getResumePosition());
+	}
+
+	@Test
+	public void aRejectionReplaysTheRejectedNotificationAndTheOnesAfterIt() {
+		final SentNotificationCache cache = new SentNotificationCache(8);
+		final List<SendablePushNotification> sent = this.send(cache, 8);
+		assertEquals(sent.subList(4, 8), cache.getAllNotificationsAfterIdentifierAndPurgeCache(5));
+
+		// Written before the rejection, purged: neither replayed nor found any more
+		assertNull(cache.getAndRemoveNotificationWithIdentifier(3));
+		assertTrue(cache.getAllNotificationsAfterIdentifierAndPurgeCache(3).isEmpty());
+
+		// Written after the rejection was received, discarded by the gateway as well
+		final List<SendablePushNotification> later = this.send(cache, 2);
+		assertEquals(later, cache.getAllNotificationsAfterPurgeAndPurgeCache());
+		assertTrue(cache.getAllNotificationsAfterPurgeAndPurgeCache().isEmpty());
+
+		// 9 and 10 overwrote 1 and 2, 3 and 4 are left to count as delivered
+		assertEquals(sent.subList(2, 4), cache.removeAllNotifications());
+	}
+
+	@Test
+	public void aRejectedIdentifierThatWasEvictedReplaysEverythingCached() {
+		final SentNotificationCache cache = new SentNotificationCache(4);
+		final List<SendablePushNotification> sent = this.send(cache, 10);
+		// 3 was overwritten, the gateway discarded 4 to 10 after rejecting it and 7 to 10 are still cached
+		final List<SendablePushNotification> replayed = cache.getAllNotificationsAfterIdentifierAndPurgeCache(3);
+		assertEquals(sent.subList(6, 10), replayed);
+		assertTrue(cache.removeAllNotifications().isEmpty());
+	}
+
+	@Test
+	public void anUnknownIdentifierReplaysNothing() {
+		final SentNotificationCache cache = new SentNotificationCache(4);
+		final List<SendablePushNotification> sent = this.send(cache, 3);
+		assertNull(cache.getAndRemoveNotificationWithIdentifier(0));
+		assertNull(cache.getAndRemoveNotificationWithIdentifier(4));
+		assertTrue(cache.getAllNotificationsAfterIdentifierAndPurgeCache(4).isEmpty());
+		assertTrue(cache.getAllNotificationsAfterIdentifierAndPurgeCache(0).isEmpty());
+		// The cache is purged all the same, nothing was written since
+		assertTrue(cache.getAllNotificationsAfterPurgeAndPurgeCache().isEmpty());
+		assertEquals(sent, cache.removeAllNotifications());
+	}
+
+	@Test
+	public void replayAfterPurgeSkipsNotificationsRemovedOnWriteFailure() {
+		final SentNotificationCache cache = new SentNotificationCache(8);
+		final List<SendablePushNotification> sent = this.send(cache, 4);
+		assertSame(sent.get(0), cache.getAndRemoveNotificationWithIdentifier(1));
+		assertEquals(sent.subList(1, 4), cache.getAllNotificationsAfterPurgeAndPurgeCache());
+	}
+
+	private List<SendablePushNotification> send(final SentNotificationCache cache, final int count) {
+		final List<SendablePushNotification> sent = new ArrayList<SendablePushNotification>();
+		for (int i = 0; i < count; i++) {
+			final SendablePushNotification notification = SentNotificationCacheTest.notification();
+			cache.addNotification(notification);
+			sent.add(notification);
+		}
+		return sent;
+	}
+
+	private static SendablePushNotification notification() {
+		return new SendablePushNotification(new byte[DeviceTokenCodec.TOKEN_LENGTH], "{}", null);
+	}
+}
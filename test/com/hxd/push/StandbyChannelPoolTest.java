@@ -0,0 +1,168 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.KeyStore;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StandbyChannelPoolTest {
+
+	private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+
+	@After
+	public void shutdown() {
+		this.eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(timeout = 20000)
+	public void standbyFailuresLeaveTheBreakerOfHealthyLiveConnectionsClosed() throws Exception {
+		final GatewayCircuitBreaker circuitBreaker = new GatewayCircuitBreaker();
+		// The live connections completed their handshakes
+		circuitBreaker.connectSucceeded();
+
+		// More standby channels than failures open the breaker, all refused at once
+		final int size = GatewayCircuitBreaker.FAILURE_THRESHOLD + 1;
+		final StandbyChannelPool standbyChannelPool = new StandbyChannelPool(new GatewayController(this.eventLoopGroup, StandbyChannelPoolTest.closedPort()), circuitBreaker, size);
+		standbyChannelPool.start();
+		while (standbyChannelPool.getFailedConnectCount() < size) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+
+		assertEquals(GatewayCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		assertEquals(0, circuitBreaker.getFailureCount());
+		assertEquals(0, circuitBreaker.reconnectDelayMillis());
+		assertEquals(0, standbyChannelPool.getReadyCount());
+		// Producers go on
+		GatewayCircuitBreakerTest.awaitClosed(circuitBreaker).join();
+		standbyChannelPool.close();
+	}
+
+	// A port nothing listens on, connects to it are refused
+	static int closedPort() throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(0);
+		try {
+			return serverSocket.getLocalPort();
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	// What a standby channel pool asks of its controller
+	static class GatewayController implements PushController {
+
+		private final EventLoopGroup eventLoopGroup;
+		private final APNSEnviroment environment;
+		private final ApnsClientSslContext sslContext = new ApnsClientSslContext(null, null, null);
+
+		GatewayController(final EventLoopGroup eventLoopGroup, final int port) {
+			this.eventLoopGroup = eventLoopGroup;
+			this.environment = new APNSEnviroment("127.0.0.1", port, "127.0.0.1", port);
+		}
+
+		@Override
+		public KeyStore getKeyStore() {
+			return null;
+		}
+
+		@Override
+		public APNSEnviroment getApnsEnviroment() {
+			return this.environment;
+		}
+
+		@Override
+		public char[] getKeystorePassword() {
+			return null;
+		}
+
+		@Override
+		public ApnsClientSslContext getSslContext() {
+			return this.sslContext;
+		}
+
+		@Override
+		public EventLoopGroup getNioEventLoopGroup() {
+			return this.eventLoopGroup;
+		}
+
+		@Override
+		public FlushStrategy getFlushStrategy() {
+			return new SizeFlushStrategy(APNConnectionManager.BATCH_SIZE, 0, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void setPushControllerDelegate(final PushControllerDelegate delegate) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public PushControllerDelegate getPushControllerDelegate() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<SendablePushNotification> getRemainNotifications() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void start() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void stop() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void doPush(final String token, final String payload) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void doPush(final byte[] token, final BroadcastPayload payload) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void doPush(final SendablePushNotification notification) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void pushRunnableWillTerminate(final PushConnection connection) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Channel takeStandbyChannel(final String name, final ChannelHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void pushConnectionDidConnect(final PushConnection connection, final Channel channel) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void pushConnectionDidFail(final PushConnection connection, final String cause) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void reportRejectedNotification(final String token, final RejectedNotificationReason reason) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
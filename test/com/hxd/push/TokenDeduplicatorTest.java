@@ -0,0 +1,55 @@
+package com.hxd.push;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TokenDeduplicatorTest {
+
+	// Far fewer than are added, the segments have to grow
+	private final TokenDeduplicator deduplicator = new TokenDeduplicator(1000);
+
+	@After
+	public void release() {
+		this.deduplicator.release();
+	}
+
+	@Test
+	public void onlyTheFirstOfEqualTokensIsAdded() {
+		final byte[] token = InvalidTokenFilterTest.randomTokens(1, 1)[0];
+		assertTrue(this.deduplicator.add(token));
+		assertFalse(this.deduplicator.add(token.clone()));
+		assertFalse(this.deduplicator.add(token));
+		assertEquals(1, this.deduplicator.getUniqueTokenCount());
+		assertEquals(2, this.deduplicator.getDuplicateCount());
+	}
+
+	@Test
+	public void tokensDifferingInOneByteAreDistinct() {
+		final byte[] token = new byte[DeviceTokenCodec.TOKEN_LENGTH];
+		assertTrue(this.deduplicator.add(token));
+		for (int i = 0; i < DeviceTokenCodec.TOKEN_LENGTH; i++) {
+			final byte[] other = token.clone();
+			other[i] = 1;
+			assertTrue(this.deduplicator.add(other));
+		}
+		assertEquals(DeviceTokenCodec.TOKEN_LENGTH + 1, this.deduplicator.getUniqueTokenCount());
+		assertEquals(0, this.deduplicator.getDuplicateCount());
+	}
+
+	@Test
+	public void tokensAreKeptWhileTheSegmentsGrow() {
+		final byte[][] tokens = InvalidTokenFilterTest.randomTokens(200000, 2);
+		for (byte[] token : tokens) {
+			assertTrue(this.deduplicator.add(token));
+		}
+		for (byte[] token : tokens) {
+			assertFalse(this.deduplicator.add(token));
+		}
+		assertEquals(tokens.length, this.deduplicator.getUniqueTokenCount());
+		assertEquals(tokens.length, this.deduplicator.getDuplicateCount());
+	}
+}